@@ -0,0 +1,232 @@
+package patrick.pfr.zebralabelprinter;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Author:      Patrick Snelgar
+ * Name:        BarcodeLookupService.java
+ * Description: Runs barcode lookups on a dedicated background thread so file access never happens
+ *              on the detector or UI threads. For single scans only the latest request matters: submitting
+ *              a new lookup cancels the one in flight. In continuous scanning lookups are queued instead, and a
+ *              single scan in between does not drop them.
+ *              Results are delivered on the main thread.
+ */
+class BarcodeLookupService {
+
+    private static final String TAG = BarcodeLookupService.class.getSimpleName();
+
+    /**
+     * Receives the result of a lookup on the main thread.
+     */
+    interface Callback {
+        void onLookupComplete(LookupResult result);
+    }
+
+    /**
+     * Receives the results of a batch of lookups on the main thread.
+     */
+    interface BatchCallback {
+        void onLookupComplete(List<LookupResult> results);
+    }
+
+    /**
+     * Outcome of a single lookup request.
+     */
+    static class LookupResult {
+
+        enum Status { FOUND, NOT_FOUND, NO_LOOKUP_FILE, ERROR }
+
+        final String barcode;
+        final Status status;
+        // The matching csv line and the file it was found in, only set when the status is FOUND.
+        final String record;
+        final LookupSource source;
+
+        LookupResult(String barcode, Status status, String record, LookupSource source) {
+            this.barcode = barcode;
+            this.status = status;
+            this.record = record;
+            this.source = source;
+        }
+    }
+
+    private final LookupIndexManager mLookupIndex;
+    private final ExecutorService mExecutor = Executors.newSingleThreadExecutor();
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+    // Advanced by every submit() and cancel(), a submitted lookup only reports if it is still the latest.
+    private final AtomicInteger mSubmitGeneration = new AtomicInteger();
+    // Advanced only by cancel(), so a submit() does not drop the queued lookups of continuous scanning.
+    private final AtomicInteger mQueueGeneration = new AtomicInteger();
+
+    private Future<?> mPending;
+
+    BarcodeLookupService(LookupIndexManager lookupIndex) {
+        mLookupIndex = lookupIndex;
+    }
+
+    /**
+     * Starts a lookup of the barcode, cancelling any lookup that has not yet completed.
+     * @param barcode
+     * @param callback called on the main thread, unless this request is superseded first
+     */
+    synchronized void submit(String barcode, Callback callback) {
+        submitBatch(Collections.singletonList(barcode), singleResult(callback));
+    }
+
+    /**
+     * Queues a lookup behind any others without cancelling them, used when every scanned code must be printed.
+     * @param barcode
+     * @param callback called on the main thread, unless cancel() is called first
+     */
+    synchronized void enqueue(String barcode, Callback callback) {
+        enqueueBatch(Collections.singletonList(barcode), singleResult(callback));
+    }
+
+    /**
+     * Looks up a group of barcodes together, e.g. every code found in one frame,
+     * cancelling any lookup that has not yet completed.
+     * @param barcodes
+     * @param callback called on the main thread with a result per barcode, in the same order
+     */
+    synchronized void submitBatch(List<String> barcodes, BatchCallback callback) {
+        cancelPending();
+        int generation = mSubmitGeneration.incrementAndGet();
+        mPending = mExecutor.submit(lookupTask(barcodes, mSubmitGeneration, generation, callback));
+    }
+
+    /**
+     * Queues a group of lookups behind any others without cancelling them.
+     * @param barcodes
+     * @param callback called on the main thread with a result per barcode, in the same order
+     */
+    synchronized void enqueueBatch(List<String> barcodes, BatchCallback callback) {
+        mExecutor.execute(lookupTask(barcodes, mQueueGeneration, mQueueGeneration.get(), callback));
+    }
+
+    /**
+     * @param generations counter the task is superseded through, it is dropped once the counter moves past generation
+     * @param generation
+     */
+    private Runnable lookupTask(final List<String> barcodes, final AtomicInteger generations, final int generation,
+                                final BatchCallback callback) {
+        return new Runnable() {
+            @Override
+            public void run() {
+                final List<LookupResult> results = new ArrayList<>(barcodes.size());
+                // Superseded by a newer submit() or cancelled.
+                CsvReader.Cancellation superseded = new CsvReader.Cancellation() {
+                    @Override
+                    public boolean isCancelled() {
+                        return generation != generations.get();
+                    }
+                };
+                for (String barcode : barcodes) {
+                    if (superseded.isCancelled()) return;
+                    LookupResult result = lookup(barcode, superseded);
+                    if (result == null) return;
+                    results.add(result);
+                }
+
+                mMainHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        // A newer request may have been submitted while this was queued.
+                        if (generation == generations.get())
+                            callback.onLookupComplete(results);
+                    }
+                });
+            }
+        };
+    }
+
+    private static BatchCallback singleResult(final Callback callback) {
+        return new BatchCallback() {
+            @Override
+            public void onLookupComplete(List<LookupResult> results) {
+                callback.onLookupComplete(results.get(0));
+            }
+        };
+    }
+
+    /**
+     * Cancels the lookup in flight and every queued lookup, their callbacks will not be called.
+     */
+    synchronized void cancel() {
+        cancelPending();
+        mSubmitGeneration.incrementAndGet();
+        mQueueGeneration.incrementAndGet();
+    }
+
+    synchronized void shutdown() {
+        cancel();
+        // Not shutdownNow(), interrupting a lookup would close the shared index channels.
+        mExecutor.shutdown();
+    }
+
+    /**
+     * Drops the queued lookup without interrupting the thread, an interrupt would close the shared index channels.
+     * A lookup already reading through a file sees its generation has moved on and stops at its next read.
+     */
+    private void cancelPending() {
+        if (mPending != null) {
+            mPending.cancel(false);
+            mPending = null;
+        }
+    }
+
+    /**
+     * @param superseded checked while reading through the files
+     * @return the result of the lookup, or null if it was superseded part way through.
+     */
+    private LookupResult lookup(String barcode, CsvReader.Cancellation superseded) {
+        long start = LatencyStats.begin(LatencyStats.Stage.LOOKUP);
+        LookupResult result = null;
+        boolean finished = false;
+        try {
+            result = lookupRecord(barcode, superseded);
+            finished = true;
+        } finally {
+            // The lookup thread is reused, a section left open would hold every later one.
+            if (!finished) LatencyStats.abandon(LatencyStats.Stage.LOOKUP);
+        }
+        if (result == null) {
+            LatencyStats.abandon(LatencyStats.Stage.LOOKUP);
+        } else if (result.status == LookupResult.Status.ERROR) {
+            LatencyStats.endWithError(LatencyStats.Stage.LOOKUP);
+        } else {
+            LatencyStats.end(LatencyStats.Stage.LOOKUP, start);
+        }
+        return result;
+    }
+
+    private LookupResult lookupRecord(String barcode, CsvReader.Cancellation superseded) {
+        List<LookupSource> sources = mLookupIndex.getSources();
+        if (sources.isEmpty()) {
+            return new LookupResult(barcode, LookupResult.Status.NO_LOOKUP_FILE, null, null);
+        }
+
+        try {
+            LookupIndexFile.Match match = mLookupIndex.lookup(sources, barcode, superseded);
+            if (match == null)
+                return new LookupResult(barcode, LookupResult.Status.NOT_FOUND, null, null);
+            return new LookupResult(barcode, LookupResult.Status.FOUND, match.record, sources.get(match.source));
+        } catch (CsvReader.CancelledException e) {
+            Log.d(TAG, "Lookup cancelled: " + barcode);
+            return null;
+        } catch (IOException e) {
+            Log.e(TAG, "Error looking up " + barcode + ": " + e.getLocalizedMessage());
+            return new LookupResult(barcode, LookupResult.Status.ERROR, null, null);
+        }
+    }
+}
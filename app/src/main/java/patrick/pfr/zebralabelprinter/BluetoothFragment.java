@@ -24,12 +24,16 @@ import com.zebra.sdk.printer.discovery.BluetoothDiscoverer;
 import com.zebra.sdk.printer.discovery.DiscoveredPrinter;
 import com.zebra.sdk.printer.discovery.DiscoveryHandler;
 
-import java.util.ArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
 
 /**
  * Author:      Patrick Snelgar
  * Name:        BluetoothFragment.java
  * Description: Handles the discovery and display of Zebra Bluetooth label printers.
+ *              Printers cached by the PrinterRegistry are listed immediately, a full discovery
+ *              only runs when the cache has expired or the user asks for one. Bluetooth is only checked
+ *              once the first frame has been drawn, so startup does not wait on the adapter or discovery.
  */
 
 public class BluetoothFragment extends Fragment {
@@ -37,10 +41,12 @@ public class BluetoothFragment extends Fragment {
     private final String TAG = BluetoothFragment.class.getSimpleName();
     private final int BLUETOOTH_ENABLE_CODE = 68;
     private ListView mListViewDevices;
-    private ArrayList<DiscoveredPrinter> mListFoundDevices;
+    private PrinterDiscoveryModel mPrinters;
     private PrinterAdapter mPrinterAdapter;
     private MainActivity mainActivity;
     private SharedPreferences preferences;
+    private PrinterRegistry mRegistry;
+    private PrinterPool mPool;
     private boolean SCAN_STARTED = false;
     private boolean startup = true;
 
@@ -55,8 +61,9 @@ public class BluetoothFragment extends Fragment {
         @Override
         public void foundPrinter(DiscoveredPrinter discoveredPrinter) {
             Log.d(TAG, "Printer found: " + discoveredPrinter.address);
-            mListFoundDevices.add(discoveredPrinter);
-            mPrinterAdapter.notifyDataSetChanged();
+            mRegistry.recordDiscovered(discoveredPrinter);
+            // Called on the discovery thread, the model merges it into the list on the main thread.
+            mPrinters.report(discoveredPrinter);
         }
 
         @Override
@@ -67,6 +74,7 @@ public class BluetoothFragment extends Fragment {
         @Override
         public void discoveryFinished() {
             SCAN_STARTED = false;
+            mRegistry.removeExpired();
             Log.d(TAG, "Discovery finished");
             Snackbar.make(getView(), "Scan complete.", Snackbar.LENGTH_SHORT).show();
         }
@@ -88,17 +96,22 @@ public class BluetoothFragment extends Fragment {
 
         @Override
         public int getCount() {
-            return mListFoundDevices.size();
+            return mPrinters.size();
         }
 
         @Override
         public Object getItem(int position) {
-            return mListFoundDevices.get(position);
+            return mPrinters.get(position);
         }
 
         @Override
         public long getItemId(int position) {
-            return position;
+            return mPrinters.get(position).id;
+        }
+
+        @Override
+        public boolean hasStableIds() {
+            return true;
         }
 
         @Override
@@ -116,12 +129,12 @@ public class BluetoothFragment extends Fragment {
                 viewHolder = (ViewHolder) convertView.getTag();
             }
 
-            DiscoveredPrinter printer = mListFoundDevices.get(position);
-            TextView textAddress = (TextView) convertView.findViewById(R.id.textPrinterAddress);
-            TextView textName = (TextView) convertView.findViewById(R.id.textPrinterName);
-
-            textAddress.setText(printer.address);
-            textName.setText(printer.getDiscoveryDataMap().get("FRIENDLY_NAME"));
+            PrinterDiscoveryModel.PrinterItem printer = mPrinters.get(position);
+            viewHolder.textPrinterAddress.setText(printer.address);
+            viewHolder.textPrinterName.setText(printer.friendlyName);
+            // Marks the printers sharing the print load.
+            viewHolder.textPrinterName.setCompoundDrawablesWithIntrinsicBounds(
+                    mPool.isMember(printer.address) ? android.R.drawable.checkbox_on_background : 0, 0, 0, 0);
 
             return convertView;
         }
@@ -133,6 +146,7 @@ public class BluetoothFragment extends Fragment {
         View view = inflater.inflate(R.layout.fragment_bluetooth, container, false);
         mListViewDevices = (ListView) view.findViewById(R.id.list_devices);
         mListViewDevices.setOnItemClickListener(onItemClickListener);
+        mListViewDevices.setOnItemLongClickListener(onItemLongClickListener);
 
         return view;
     }
@@ -141,12 +155,31 @@ public class BluetoothFragment extends Fragment {
     public void onActivityCreated(Bundle savedInstanceState) {
         super.onActivityCreated(savedInstanceState);
 
-        initializeBluetooth();
-
-        mListFoundDevices = new ArrayList<>();
+        // Show the printers remembered from previous sessions straight away.
+        mRegistry = PrinterRegistry.getInstance(getContext());
+        mPool = PrinterPool.getInstance(getContext());
+        mPrinters = new PrinterDiscoveryModel();
+        for (PrinterRegistry.Entry entry : mRegistry.getPrinters()) {
+            mPrinters.report(entry.address, entry.friendlyName);
+        }
 
         mPrinterAdapter = new PrinterAdapter();
         mListViewDevices.setAdapter(mPrinterAdapter);
+        mPrinters.setListener(new PrinterDiscoveryModel.Listener() {
+            @Override
+            public void onPrintersChanged() {
+                mPrinterAdapter.notifyDataSetChanged();
+            }
+        });
+
+        StartupTimer.afterFirstFrame(getView(), new Runnable() {
+            @Override
+            public void run() {
+                if (!isAdded()) return;
+                initializeBluetooth();
+                StartupTimer.mark("Bluetooth initialised");
+            }
+        });
 
         startup = false;
     }
@@ -157,6 +190,12 @@ public class BluetoothFragment extends Fragment {
         preferences = PreferenceManager.getDefaultSharedPreferences(mainActivity);
     }
 
+    @Override
+    public void onDestroy() {
+        super.onDestroy();
+        if (mPrinters != null) mPrinters.release();
+    }
+
     /**
      * Ensures Bluetooth is enabled or requests it to be enabled before continuing
      */
@@ -167,10 +206,44 @@ public class BluetoothFragment extends Fragment {
         } else if (bluetoothAdapter.isEnabled()){
             // Need to make sure the adapter is enabled before scanning,
             // otherwise the scan never finishes.
+            refreshPrinters();
+        }
+    }
+
+    /**
+     * Checks the last used printer with a direct connection, and only runs a full discovery
+     * when there is nothing cached or the cache has expired.
+     */
+    private void refreshPrinters() {
+        verifyLastUsedPrinter();
+        if (mRegistry.needsDiscovery()) {
             scanForPrinters();
         }
     }
 
+    private void verifyLastUsedPrinter() {
+        final String address = PreferenceManager.getDefaultSharedPreferences(getContext()).getString("printer_address", null);
+        if (address == null) return;
+
+        final Future<Boolean> connected = PrinterConnectionManager.getInstance(getContext()).prewarm(address);
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    if (!connected.get()) {
+                        Log.d(TAG, "Last used printer not reachable: " + address);
+                        return;
+                    }
+                } catch (InterruptedException | ExecutionException e) {
+                    return;
+                }
+
+                PrinterRegistry.Entry entry = mRegistry.get(address);
+                if (entry != null) mPrinters.report(entry.address, entry.friendlyName);
+            }
+        }).start();
+    }
+
 
     public void scanForPrinters(){
         if (SCAN_STARTED){
@@ -182,8 +255,6 @@ public class BluetoothFragment extends Fragment {
             public void run() {
                 try {
                     SCAN_STARTED = true;
-                    // Remove any previously discovered devices.
-                    mListFoundDevices.clear();
                     // Start the Link-OS discovery method.
                     BluetoothDiscoverer.findPrinters(mainActivity, new ZebraDeviceHandler());
 
@@ -205,7 +276,7 @@ public class BluetoothFragment extends Fragment {
                 mainActivity.finish();
             } else if (resultCode == Activity.RESULT_OK && BluetoothAdapter.getDefaultAdapter().isEnabled()) {
                 // User enabled Bluetooth, and the adapter is enabled so we can start a scan.
-                scanForPrinters();
+                refreshPrinters();
             }
         }else {
             super.onActivityResult(requestCode, resultCode, data);
@@ -223,9 +294,27 @@ public class BluetoothFragment extends Fragment {
     final AdapterView.OnItemClickListener onItemClickListener = new AdapterView.OnItemClickListener() {
         @Override
         public void onItemClick(AdapterView<?> parent, View view, int position, long id) {
-            DiscoveredPrinter printer = mListFoundDevices.get(position);
+            PrinterDiscoveryModel.PrinterItem printer = mPrinters.get(position);
             preferences.edit().putString("printer_address",printer.address).commit();
             Log.d(TAG,"Selected printer: " + printer.address);
         }
     };
+
+    /**
+     * Long pressing a printer adds it to, or removes it from, the pool of printers labels are shared between.
+     */
+    final AdapterView.OnItemLongClickListener onItemLongClickListener = new AdapterView.OnItemLongClickListener() {
+        @Override
+        public boolean onItemLongClick(AdapterView<?> parent, View view, int position, long id) {
+            PrinterDiscoveryModel.PrinterItem printer = mPrinters.get(position);
+            boolean added = mPool.toggle(printer.address);
+            mPrinterAdapter.notifyDataSetChanged();
+
+            int size = mPool.getMembers().size();
+            Snackbar.make(getView(), (added ? "Added to" : "Removed from") + " print pool, "
+                    + size + (size == 1 ? " printer" : " printers"), Snackbar.LENGTH_SHORT).show();
+            Log.d(TAG, (added ? "Pooled printer: " : "Unpooled printer: ") + printer.address);
+            return true;
+        }
+    };
 }
@@ -0,0 +1,63 @@
+package patrick.pfr.zebralabelprinter;
+
+import com.zebra.sdk.comm.BluetoothConnection;
+import com.zebra.sdk.comm.Connection;
+import com.zebra.sdk.comm.ConnectionException;
+
+import java.io.IOException;
+
+/**
+ * Author:      Patrick Snelgar
+ * Name:        BluetoothPrintTransport.java
+ * Description: PrintTransport over the Zebra SDK's Bluetooth connection, completion is read back with PrintCompletionMonitor.
+ */
+class BluetoothPrintTransport implements PrintTransport {
+
+    @Override
+    public Link connect(String address) throws IOException {
+        Connection connection = new BluetoothConnection(address);
+        try {
+            connection.open();
+        } catch (ConnectionException e) {
+            throw new IOException(e.getLocalizedMessage(), e);
+        }
+        return new BluetoothLink(connection);
+    }
+
+    private static class BluetoothLink implements Link {
+
+        private final Connection mConnection;
+
+        BluetoothLink(Connection connection) {
+            mConnection = connection;
+        }
+
+        @Override
+        public void write(byte[] data) throws IOException {
+            try {
+                mConnection.write(data);
+            } catch (ConnectionException e) {
+                throw new IOException(e.getLocalizedMessage(), e);
+            }
+        }
+
+        @Override
+        public PrintResult awaitCompletion(long timeoutMs) {
+            return PrintCompletionMonitor.awaitCompletion(mConnection, timeoutMs);
+        }
+
+        @Override
+        public boolean isConnected() {
+            return mConnection.isConnected();
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                mConnection.close();
+            } catch (ConnectionException e) {
+                throw new IOException(e.getLocalizedMessage(), e);
+            }
+        }
+    }
+}
@@ -0,0 +1,205 @@
+package patrick.pfr.zebralabelprinter;
+
+import android.os.Bundle;
+import android.preference.PreferenceManager;
+import android.support.annotation.Nullable;
+import android.support.design.widget.Snackbar;
+import android.support.v7.app.AppCompatActivity;
+import android.view.MenuItem;
+import android.view.View;
+import android.widget.Button;
+import android.widget.EditText;
+import android.widget.ProgressBar;
+import android.widget.TextView;
+
+/**
+ * Author:      Patrick Snelgar
+ * Name:        BulkPrintActivity.java
+ * Description: Prints labels for every row of the lookup file, or the rows whose code falls in a range,
+ *              through the BulkPrintManager. Shows the run's progress and lets the user pause, resume or
+ *              cancel it, or carry on with a run that was interrupted.
+ */
+public class BulkPrintActivity extends AppCompatActivity implements BulkPrintRun.Listener {
+
+    private BulkPrintManager mManager;
+    private EditText mEditFrom;
+    private EditText mEditTo;
+    private Button mButtonStart;
+    private Button mButtonResumeInterrupted;
+    private Button mButtonPause;
+    private Button mButtonCancel;
+    private ProgressBar mProgress;
+    private TextView mTextStatus;
+
+    @Override
+    protected void onCreate(@Nullable Bundle savedInstanceState) {
+        super.onCreate(savedInstanceState);
+        setContentView(R.layout.activity_bulk_print);
+        mManager = BulkPrintManager.getInstance(this);
+
+        mEditFrom = (EditText) findViewById(R.id.edit_bulk_from);
+        mEditTo = (EditText) findViewById(R.id.edit_bulk_to);
+        mButtonStart = (Button) findViewById(R.id.button_bulk_start);
+        mButtonResumeInterrupted = (Button) findViewById(R.id.button_bulk_resume_interrupted);
+        mButtonPause = (Button) findViewById(R.id.button_bulk_pause);
+        mButtonCancel = (Button) findViewById(R.id.button_bulk_cancel);
+        mProgress = (ProgressBar) findViewById(R.id.progress_bulk);
+        mTextStatus = (TextView) findViewById(R.id.text_bulk_status);
+
+        mButtonStart.setOnClickListener(onClickListenerStart);
+        mButtonResumeInterrupted.setOnClickListener(onClickListenerResumeInterrupted);
+        mButtonPause.setOnClickListener(onClickListenerPause);
+        mButtonCancel.setOnClickListener(onClickListenerCancel);
+
+        getSupportActionBar().setTitle("Bulk print");
+        getSupportActionBar().setDisplayHomeAsUpEnabled(true);
+        getSupportActionBar().setDisplayShowHomeEnabled(true);
+    }
+
+    @Override
+    protected void onResume() {
+        super.onResume();
+        showIdle();
+        mManager.setListener(this);
+    }
+
+    @Override
+    protected void onPause() {
+        super.onPause();
+        mManager.setListener(null);
+    }
+
+    @Override
+    public boolean onOptionsItemSelected(MenuItem item) {
+        if (item.getItemId() == android.R.id.home) {
+            finish();
+            return true;
+        }
+        return super.onOptionsItemSelected(item);
+    }
+
+    @Override
+    public void onUpdate(BulkPrintRun.Status status) {
+        boolean active = status.state == BulkPrintRun.State.RUNNING || status.state == BulkPrintRun.State.PAUSED;
+        if (!active) {
+            showIdle();
+        } else {
+            mButtonStart.setEnabled(false);
+            mButtonResumeInterrupted.setVisibility(View.GONE);
+        }
+        mButtonPause.setEnabled(active);
+        mButtonPause.setText(status.state == BulkPrintRun.State.PAUSED ? "Resume" : "Pause");
+        mButtonCancel.setEnabled(active);
+
+        int percent = status.percent();
+        mProgress.setIndeterminate(active && percent < 0);
+        mProgress.setProgress(status.state == BulkPrintRun.State.FINISHED ? 100 : Math.max(percent, 0));
+
+        StringBuilder text = new StringBuilder();
+        switch (status.state) {
+            case RUNNING:
+                text.append("Printing");
+                break;
+            case PAUSED:
+                text.append("Paused");
+                break;
+            case CANCELLED:
+                text.append("Cancelled");
+                break;
+            case FINISHED:
+                text.append("Finished");
+                break;
+            case FAILED:
+                text.append("Stopped");
+                break;
+        }
+        text.append(", ").append(status.printedRows).append(" labels printed");
+        if (status.failedRows > 0) text.append(", ").append(status.failedRows).append(" to print again");
+        if (status.unconfirmedRows > 0) text.append(", ").append(status.unconfirmedRows).append(" to check");
+        if (status.message != null) text.append("\n").append(status.message);
+        mTextStatus.setText(text);
+    }
+
+    /**
+     * Enables starting a new run, and offers to carry on with an interrupted one.
+     */
+    private void showIdle() {
+        if (mManager.isActive()) return;
+        mButtonStart.setEnabled(true);
+        mButtonPause.setEnabled(false);
+        mButtonCancel.setEnabled(false);
+
+        BulkPrintCheckpoint interrupted = mManager.getInterrupted();
+        mButtonResumeInterrupted.setVisibility(interrupted != null ? View.VISIBLE : View.GONE);
+        if (interrupted != null)
+            mButtonResumeInterrupted.setText("Resume interrupted run (" + interrupted.printedRows + " printed)");
+    }
+
+    /**
+     * @return the address of the selected printer, or null when printing on the pool.
+     * @throws IllegalStateException if no printer has been selected
+     */
+    private String getPrinterAddress() {
+        if (PrinterPool.getInstance(this).isEnabled()) return null;
+        String printerMAC = PreferenceManager.getDefaultSharedPreferences(this).getString("printer_address", null);
+        if (printerMAC == null) throw new IllegalStateException("Could not get printer address");
+        return printerMAC;
+    }
+
+    /**
+     * @return the selected lookup file, with the delimiter and key column set in the preferences.
+     * @throws IllegalStateException if none has been chosen
+     */
+    private LookupSource getLookupSource() {
+        String uri = LookupIndexManager.getInstance(this).getLookupUri();
+        if (LookupIndexManager.NO_LOOKUP_FILE.equals(uri)) throw new IllegalStateException("No lookup file selected");
+        return LookupSource.withCurrentSettings(PreferenceManager.getDefaultSharedPreferences(this), uri);
+    }
+
+    private static String bound(EditText edit) {
+        String text = edit.getText().toString().trim();
+        return text.isEmpty() ? null : text;
+    }
+
+    final View.OnClickListener onClickListenerStart = new View.OnClickListener() {
+        @Override
+        public void onClick(View v) {
+            try {
+                mManager.start(getLookupSource(), getPrinterAddress(), bound(mEditFrom), bound(mEditTo));
+            } catch (IllegalStateException e) {
+                Snackbar.make(mTextStatus, e.getMessage(), Snackbar.LENGTH_SHORT).show();
+            }
+        }
+    };
+
+    final View.OnClickListener onClickListenerResumeInterrupted = new View.OnClickListener() {
+        @Override
+        public void onClick(View v) {
+            try {
+                if (!mManager.resumeInterrupted(getLookupSource(), getPrinterAddress())) {
+                    mManager.discardInterrupted();
+                    showIdle();
+                    Snackbar.make(mTextStatus, "The lookup file or its settings have changed, start a new run",
+                            Snackbar.LENGTH_LONG).show();
+                }
+            } catch (IllegalStateException e) {
+                Snackbar.make(mTextStatus, e.getMessage(), Snackbar.LENGTH_SHORT).show();
+            }
+        }
+    };
+
+    final View.OnClickListener onClickListenerPause = new View.OnClickListener() {
+        @Override
+        public void onClick(View v) {
+            if (mManager.isPaused()) mManager.resume();
+            else mManager.pause();
+        }
+    };
+
+    final View.OnClickListener onClickListenerCancel = new View.OnClickListener() {
+        @Override
+        public void onClick(View v) {
+            mManager.cancel();
+        }
+    };
+}
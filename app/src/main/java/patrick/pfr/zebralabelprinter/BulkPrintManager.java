@@ -0,0 +1,225 @@
+package patrick.pfr.zebralabelprinter;
+
+import android.content.ContentResolver;
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.Looper;
+import android.preference.PreferenceManager;
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Collection;
+import java.util.concurrent.Executor;
+
+/**
+ * Author:      Patrick Snelgar
+ * Name:        BulkPrintManager.java
+ * Description: Owns the BulkPrintRun printing the lookup file, so the run carries on while the screen is closed.
+ *              Labels go straight to the PrintQueue rather than the PrintSpool, as the run keeps its own
+ *              checkpoint in app storage and prints failed rows again itself. A checkpoint left behind by a
+ *              run that was interrupted can be resumed as long as the lookup file, its delimiter and key column
+ *              have not changed since.
+ */
+class BulkPrintManager implements BulkPrintRun.Listener {
+
+    private static final String TAG = BulkPrintManager.class.getSimpleName();
+
+    private static final String BULK_PRINT_DIRECTORY = "bulk_print";
+    private static final String CHECKPOINT_NAME = "checkpoint";
+
+    private static BulkPrintManager sInstance;
+
+    private final ContentResolver mContentResolver;
+    private final SharedPreferences mPreferences;
+    private final LabelTemplateManager mTemplates;
+    private final PrintQueue mQueue;
+    private final File mCheckpointFile;
+    private final Executor mMainExecutor;
+
+    // Only accessed on the main thread.
+    private BulkPrintRun mRun;
+    private BulkPrintRun.Status mStatus;
+    private BulkPrintRun.Listener mListener;
+
+    static synchronized BulkPrintManager getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new BulkPrintManager(context.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    private BulkPrintManager(Context context) {
+        mContentResolver = context.getContentResolver();
+        mPreferences = PreferenceManager.getDefaultSharedPreferences(context);
+        mTemplates = LabelTemplateManager.getInstance(context);
+        mQueue = PrintQueue.getInstance(context);
+        File directory = new File(context.getFilesDir(), BULK_PRINT_DIRECTORY);
+        if (!directory.exists() && !directory.mkdirs())
+            Log.e(TAG, "Could not create " + directory);
+        mCheckpointFile = new File(directory, CHECKPOINT_NAME);
+
+        final Handler mainHandler = new Handler(Looper.getMainLooper());
+        mMainExecutor = new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                mainHandler.post(command);
+            }
+        };
+    }
+
+    /**
+     * Starts printing every row of the lookup file whose key column is within the range,
+     * replacing any interrupted run. Ignored while another run is active.
+     * @param lookupSource lookup file to print, read with its delimiter and key column
+     * @param printerAddress null to print on the printer pool
+     * @param from first key to print, null to start at the top of the file
+     * @param to last key to print, null to carry on to the end
+     */
+    void start(LookupSource lookupSource, String printerAddress, String from, String to) {
+        LookupFileStamp stamp = LookupFileStamp.query(mContentResolver, lookupSource.uri);
+        startRun(stamp, lookupSource, printerAddress, new BulkPrintCheckpoint(identify(stamp, lookupSource), from, to));
+    }
+
+    /**
+     * @return the checkpoint of a run that was interrupted before it finished, or null if there is none.
+     */
+    BulkPrintCheckpoint getInterrupted() {
+        if (isActive()) return null;
+        try {
+            return BulkPrintCheckpoint.read(mCheckpointFile);
+        } catch (IOException e) {
+            Log.e(TAG, "Error reading bulk print checkpoint: " + e.getLocalizedMessage());
+            discardInterrupted();
+            return null;
+        }
+    }
+
+    /**
+     * Carries on with the interrupted run. Ignored while another run is active.
+     * @param lookupSource lookup file currently selected
+     * @param printerAddress null to print on the printer pool
+     * @return false if there is no interrupted run, or the lookup file, its delimiter or key column is not
+     *         the one it was printing.
+     */
+    boolean resumeInterrupted(LookupSource lookupSource, String printerAddress) {
+        BulkPrintCheckpoint checkpoint = getInterrupted();
+        if (checkpoint == null) return false;
+
+        LookupFileStamp stamp = LookupFileStamp.query(mContentResolver, lookupSource.uri);
+        if (!identify(stamp, lookupSource).equals(checkpoint.source)) {
+            Log.d(TAG, "Lookup file changed since the run was interrupted: " + checkpoint.source);
+            return false;
+        }
+        startRun(stamp, lookupSource, printerAddress, checkpoint);
+        return true;
+    }
+
+    void discardInterrupted() {
+        if (mCheckpointFile.exists() && !mCheckpointFile.delete())
+            Log.e(TAG, "Could not delete " + mCheckpointFile);
+    }
+
+    /**
+     * @return whether a run is printing or paused.
+     */
+    boolean isActive() {
+        return mStatus != null
+                && (mStatus.state == BulkPrintRun.State.RUNNING || mStatus.state == BulkPrintRun.State.PAUSED);
+    }
+
+    boolean isPaused() {
+        return mStatus != null && mStatus.state == BulkPrintRun.State.PAUSED;
+    }
+
+    void pause() {
+        if (mRun != null) mRun.pause();
+    }
+
+    void resume() {
+        if (mRun != null) mRun.resume();
+    }
+
+    void cancel() {
+        if (mRun != null) mRun.cancel();
+    }
+
+    /**
+     * Sets who is told of the run's progress, immediately given the latest status if there is a run.
+     * @param listener null to stop listening
+     */
+    void setListener(BulkPrintRun.Listener listener) {
+        mListener = listener;
+        if (listener != null && mStatus != null) listener.onUpdate(mStatus);
+    }
+
+    @Override
+    public void onUpdate(BulkPrintRun.Status status) {
+        mStatus = status;
+        if (status.message != null)
+            Log.d(TAG, "Bulk print " + status.state + ": " + status.message);
+        if (mListener != null) mListener.onUpdate(status);
+    }
+
+    /**
+     * @return the identity of the run's csv file, the range and rows of a checkpoint only hold for the same
+     *         version of the file read with the same delimiter and key column.
+     */
+    private static String identify(LookupFileStamp stamp, LookupSource lookupSource) {
+        return stamp + ", column " + lookupSource.keyColumn + ", delimiter " + (int) lookupSource.delimiter;
+    }
+
+    private void startRun(final LookupFileStamp stamp, LookupSource lookupSource, String printerAddress,
+                          BulkPrintCheckpoint checkpoint) {
+        if (isActive()) return;
+
+        final LabelTemplate template = mTemplates.getTemplate();
+        final boolean storedFormat = template.hasStoredFormat()
+                && mPreferences.getBoolean(QRScannerFragment.PREF_STORED_FORMAT, true);
+
+        BulkPrintRun.Source source = new BulkPrintRun.Source() {
+            @Override
+            public InputStream open() throws IOException {
+                InputStream is = mContentResolver.openInputStream(Uri.parse(stamp.uri));
+                if (is == null) throw new IOException("Could not open " + stamp.uri);
+                return is;
+            }
+
+            @Override
+            public long size() {
+                return stamp.size;
+            }
+        };
+        BulkPrintRun.Renderer renderer = new BulkPrintRun.Renderer() {
+            @Override
+            public StoredFormat render(String record, LabelBuffer out) {
+                if (storedFormat) {
+                    template.renderRecall(record, out);
+                    return template.getStoredFormat();
+                }
+                template.render(record, out);
+                return null;
+            }
+
+            @Override
+            public Collection<StoredGraphic> getGraphics() {
+                return template.getGraphics();
+            }
+        };
+        BulkPrintRun.Sink sink = new BulkPrintRun.Sink() {
+            @Override
+            public void submit(PrintJob job) {
+                mQueue.enqueue(job);
+            }
+        };
+
+        Log.d(TAG, "Starting bulk print of " + stamp + " from " + checkpoint.scannedRows + " rows");
+        mRun = new BulkPrintRun(source, lookupSource.getDialect(), lookupSource.keyColumn, checkpoint, mCheckpointFile,
+                renderer, printerAddress, sink, this, mMainExecutor);
+        mStatus = mRun.getStatus();
+        mRun.start();
+    }
+}
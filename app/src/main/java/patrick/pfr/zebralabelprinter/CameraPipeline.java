@@ -0,0 +1,199 @@
+package patrick.pfr.zebralabelprinter;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.preference.PreferenceManager;
+import android.util.Log;
+import android.view.SurfaceHolder;
+
+import com.google.android.gms.vision.CameraSource;
+import com.google.android.gms.vision.Detector;
+import com.google.android.gms.vision.barcode.Barcode;
+import com.google.android.gms.vision.barcode.BarcodeDetector;
+
+import java.io.IOException;
+
+/**
+ * Author:      Patrick Snelgar
+ * Name:        CameraPipeline.java
+ * Description: Owns the CameraSource for the lifetime of the scanner fragment. The source is built once
+ *              and restarted for each scan, it is only rebuilt when the camera profile changes.
+ *              Detection is limited to a region around the centre of the viewfinder, and the profile
+ *              (preview size and frame rate) steps down when the device cannot keep up with detection,
+ *              or up when codes are not being found. The profile is checked after every window of frames,
+ *              so a long continuous scan adapts too, and the camera is restarted with the new profile.
+ */
+class CameraPipeline {
+
+    private static final String TAG = CameraPipeline.class.getSimpleName();
+    static final String PREF_CAMERA_PROFILE = "camera_profile";
+    static final String PREF_SCAN_REGION = "scan_region";
+    static final int DEFAULT_SCAN_REGION_PERCENT = 60;
+
+    /**
+     * Preview size and frame rate, ordered from cheapest to most detailed.
+     */
+    private static final int[][] PROFILES = {
+            // width, height, fps
+            {640, 480, 15},
+            {800, 600, 10},
+            {1280, 720, 10},
+    };
+    private static final int DEFAULT_PROFILE = 1;
+
+    // Frames needed before the statistics are trusted enough to change profile.
+    private static final int MIN_FRAMES_TO_ADAPT = 30;
+    // Frames between profile checks while the camera is running.
+    private static final int ADAPT_WINDOW_FRAMES = 150;
+    // Detection using more than this share of the frame interval means frames are being dropped.
+    private static final float OVERLOAD_FRACTION = 0.8f;
+    // Consecutive frames without a code, while the user is aiming at one, before trying more resolution.
+    private static final int FRAMES_WITHOUT_DETECTION_TO_STEP_UP = 100;
+
+    private final Context mContext;
+    private final SharedPreferences mPreferences;
+    private final RegionOfInterestDetector mDetector;
+
+    // Guards the profile, which is adapted on the frame processing thread. That thread is joined
+    // by stop() while holding the pipeline's lock, so it must not take that lock.
+    private final Object mProfileLock = new Object();
+
+    private CameraSource mCameraSource;
+    private SurfaceHolder mHolder;
+    private int mSourceProfile = -1;
+    private volatile int mProfile;
+    // Lowest profile that could not keep up, stepping up to it again would only step back down.
+    private int mOverloadedProfile = PROFILES.length;
+    private boolean mRunning = false;
+
+    /**
+     * @param context
+     * @param barcodeDetector detector to feed, the pipeline takes ownership and releases it
+     */
+    CameraPipeline(Context context, BarcodeDetector barcodeDetector) {
+        mContext = context.getApplicationContext();
+        mPreferences = PreferenceManager.getDefaultSharedPreferences(mContext);
+        mProfile = Math.max(0, Math.min(PROFILES.length - 1, mPreferences.getInt(PREF_CAMERA_PROFILE, DEFAULT_PROFILE)));
+
+        float region = DEFAULT_SCAN_REGION_PERCENT / 100f;
+        try {
+            region = Integer.parseInt(mPreferences.getString(PREF_SCAN_REGION, String.valueOf(DEFAULT_SCAN_REGION_PERCENT))) / 100f;
+        } catch (NumberFormatException e) {
+            Log.d(TAG, "Invalid scan region, using default");
+        }
+        mDetector = new RegionOfInterestDetector(barcodeDetector, region);
+        mDetector.setWindowListener(ADAPT_WINDOW_FRAMES, new RegionOfInterestDetector.WindowListener() {
+            @Override
+            public void onWindow(RegionOfInterestDetector detector) {
+                if (!adaptProfile()) return;
+                // Restarting blocks until this thread has stopped, so do it from another one.
+                new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        restartWithProfile();
+                    }
+                }).start();
+            }
+        });
+    }
+
+    void setProcessor(Detector.Processor<Barcode> processor) {
+        mDetector.setProcessor(processor);
+    }
+
+    /**
+     * Starts the preview on the surface, building the camera source only if there is none yet
+     * or the profile has changed since it was built.
+     * @param holder
+     */
+    synchronized void start(SurfaceHolder holder) throws IOException {
+        if (mRunning) return;
+
+        if (mCameraSource == null || mSourceProfile != mProfile) {
+            // The old source is already stopped. Releasing it would release mDetector too, which the new
+            // source is built with, so it is only dropped.
+            int[] profile = PROFILES[mProfile];
+            Log.d(TAG, "Building camera source " + profile[0] + "x" + profile[1] + " @ " + profile[2] + "fps");
+            mCameraSource = new CameraSource.Builder(mContext, mDetector)
+                    .setRequestedPreviewSize(profile[0], profile[1])
+                    .setFacing(CameraSource.CAMERA_FACING_BACK)
+                    .setAutoFocusEnabled(true)
+                    .setRequestedFps(profile[2])
+                    .build();
+            mSourceProfile = mProfile;
+        }
+
+        mDetector.resetStatistics();
+        mCameraSource.start(holder);
+        mHolder = holder;
+        mRunning = true;
+    }
+
+    /**
+     * Stops the preview, keeping the camera source for the next start. Blocks while the camera
+     * shuts down, so call it off the main thread.
+     */
+    synchronized void stop() {
+        if (!mRunning) return;
+        mCameraSource.stop();
+        mRunning = false;
+        mHolder = null;
+        adaptProfile();
+    }
+
+    /**
+     * Restarts the preview on the same surface if the profile changed while it was running.
+     */
+    private synchronized void restartWithProfile() {
+        if (!mRunning || mSourceProfile == mProfile) return;
+        SurfaceHolder holder = mHolder;
+        mCameraSource.stop();
+        mRunning = false;
+        try {
+            start(holder);
+        } catch (IOException e) {
+            Log.e(TAG, "Error restarting camera: " + e.getMessage());
+        }
+    }
+
+    synchronized void release() {
+        if (mCameraSource != null) {
+            // Stopped rather than released, releasing the source would also release mDetector.
+            mCameraSource.stop();
+            mCameraSource = null;
+        }
+        mRunning = false;
+        mHolder = null;
+        mDetector.release();
+    }
+
+    /**
+     * Picks the profile from how detection went over the current window of frames.
+     * @return true if the profile changed
+     */
+    private boolean adaptProfile() {
+        synchronized (mProfileLock) {
+            long frames = mDetector.getFrames();
+            if (frames < MIN_FRAMES_TO_ADAPT) return false;
+
+            long frameIntervalMs = 1000 / PROFILES[mProfile][2];
+            long averageDetectMs = mDetector.getAverageDetectMs();
+            int profile = mProfile;
+            if (averageDetectMs > frameIntervalMs * OVERLOAD_FRACTION) {
+                mOverloadedProfile = Math.min(mOverloadedProfile, profile);
+                if (profile > 0) profile--;
+            } else if (mDetector.getFramesSinceDetection() >= FRAMES_WITHOUT_DETECTION_TO_STEP_UP
+                    && profile + 1 < Math.min(PROFILES.length, mOverloadedProfile)) {
+                profile++;
+            }
+
+            if (profile == mProfile) return false;
+            Log.d(TAG, "Camera profile " + mProfile + " -> " + profile + ", average detect "
+                    + averageDetectMs + "ms over " + frames + " frames, "
+                    + mDetector.getFramesWithDetections() + " with codes");
+            mProfile = profile;
+            mPreferences.edit().putInt(PREF_CAMERA_PROFILE, profile).apply();
+            return true;
+        }
+    }
+}
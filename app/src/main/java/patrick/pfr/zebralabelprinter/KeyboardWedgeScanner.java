@@ -0,0 +1,200 @@
+package patrick.pfr.zebralabelprinter;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.util.Log;
+import android.util.SparseBooleanArray;
+import android.view.KeyEvent;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Author:      Patrick Snelgar
+ * Name:        KeyboardWedgeScanner.java
+ * Description: Turns the keystrokes typed by a built-in or Bluetooth barcode scanner into scanned codes.
+ *              Hardware key events are taken before they reach any view, so the text field and soft keyboard
+ *              never see a scan. A scanner types far faster than a person, so keystrokes are collected into a
+ *              burst while each follows the last within the key interval. A burst ends at the suffix if one is
+ *              set, otherwise at Enter, Tab or a pause longer than the key interval, and becomes a code once the
+ *              prefix, if set, and suffix are removed.
+ *
+ *              Whether a keystroke is part of a scan is only known once the next one arrives, so the key events
+ *              of a burst are held until then. A burst that does not become a code, e.g. a single key typed by
+ *              hand, is handed back to the listener to replay to the focused view.
+ *              Only used on the main thread.
+ */
+class KeyboardWedgeScanner {
+
+    private static final String TAG = KeyboardWedgeScanner.class.getSimpleName();
+    private static final int MIN_CODE_LENGTH = 3;
+
+    /**
+     * Receives each scanned code, and the keystrokes that were not a scan, on the main thread.
+     */
+    interface Listener {
+        void onScan(String code);
+
+        /**
+         * @param event a key event held back from the focused view, to be dispatched to it now
+         */
+        void onTypedKey(KeyEvent event);
+    }
+
+    private final String mPrefix;
+    private final String mSuffix;
+    private final long mKeyIntervalMs;
+    private final Listener mListener;
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+    private final StringBuilder mBurst = new StringBuilder(64);
+    // Every event of the current burst, in order, replayed if it does not become a code.
+    private final List<KeyEvent> mHeld = new ArrayList<>(128);
+    // Keys whose down event was taken, so their up event is taken too.
+    private final SparseBooleanArray mPressed = new SparseBooleanArray();
+
+    // Event time of the last keystroke of the burst, in SystemClock.uptimeMillis().
+    private long mLastKeyTime = 0;
+
+    private final Runnable mPauseTimeout = new Runnable() {
+        @Override
+        public void run() {
+            // Without a suffix a pause ends the code, with one the burst was not a complete scan.
+            if (mSuffix.isEmpty()) finishBurst();
+            else replayBurst();
+        }
+    };
+
+    /**
+     * @param prefix characters the scanner sends before each code, empty for none
+     * @param suffix characters the scanner sends after each code, empty to end codes on Enter, Tab or a pause
+     * @param keyIntervalMs longest gap between two keystrokes of the same code
+     * @param listener
+     */
+    KeyboardWedgeScanner(String prefix, String suffix, long keyIntervalMs, Listener listener) {
+        mPrefix = prefix;
+        mSuffix = suffix;
+        mKeyIntervalMs = keyIntervalMs;
+        mListener = listener;
+    }
+
+    /**
+     * Offers a hardware key event to the scanner, called from Activity.dispatchKeyEvent.
+     * @param event
+     * @return true if the event was taken, as part of a scan or held until it is known whether it is one.
+     */
+    boolean onKeyEvent(KeyEvent event) {
+        int keyCode = event.getKeyCode();
+
+        // Some scanners deliver the whole code as one event.
+        if (event.getAction() == KeyEvent.ACTION_MULTIPLE && keyCode == KeyEvent.KEYCODE_UNKNOWN) {
+            String characters = event.getCharacters();
+            if (characters == null) return false;
+            replayIfPaused(event.getEventTime());
+            mBurst.append(characters);
+            mHeld.add(event);
+            mLastKeyTime = event.getEventTime();
+            finishBurst();
+            return true;
+        }
+
+        boolean terminator = keyCode == KeyEvent.KEYCODE_ENTER || keyCode == KeyEvent.KEYCODE_NUMPAD_ENTER
+                || keyCode == KeyEvent.KEYCODE_TAB;
+        int character = event.getUnicodeChar();
+        if (!terminator && character == 0) {
+            // Shift and the other modifiers scanners press for upper case and symbols, the held key events
+            // carry the modifier state with them.
+            return KeyEvent.isModifierKey(keyCode);
+        }
+        if (event.getAction() != KeyEvent.ACTION_DOWN) {
+            if (!mPressed.get(keyCode)) return false;
+            mPressed.delete(keyCode);
+            if (mBurst.length() > 0) mHeld.add(event);
+            return true;
+        }
+
+        if (event.getRepeatCount() > 0) {
+            // Scanners do not hold keys down, a repeating key is held by hand.
+            if (mBurst.length() > 0) replayBurst();
+            return false;
+        }
+        replayIfPaused(event.getEventTime());
+        // Enter on its own is left to the focused view, e.g. a code typed into the text field by hand.
+        if (terminator && mBurst.length() == 0) return false;
+        mLastKeyTime = event.getEventTime();
+        mHandler.removeCallbacks(mPauseTimeout);
+        mHeld.add(event);
+        mPressed.put(keyCode, true);
+
+        if (terminator && mSuffix.isEmpty()) {
+            finishBurst();
+            return true;
+        }
+        mBurst.append(terminator ? '\n' : (char) character);
+        if (!mSuffix.isEmpty() && endsWithSuffix()) {
+            mBurst.setLength(mBurst.length() - mSuffix.length());
+            finishBurst();
+        } else {
+            mHandler.postDelayed(mPauseTimeout, mKeyIntervalMs);
+        }
+        return true;
+    }
+
+    /**
+     * Drops any partial burst, e.g. when the screen is left.
+     */
+    void reset() {
+        mHandler.removeCallbacks(mPauseTimeout);
+        mBurst.setLength(0);
+        mHeld.clear();
+        mPressed.clear();
+    }
+
+    /**
+     * A keystroke arriving after a longer gap than the key interval starts a new burst, whatever came before
+     * was typed by hand or a scan that lost its terminator.
+     */
+    private void replayIfPaused(long eventTime) {
+        if (mBurst.length() > 0 && eventTime - mLastKeyTime > mKeyIntervalMs) replayBurst();
+    }
+
+    private boolean endsWithSuffix() {
+        int start = mBurst.length() - mSuffix.length();
+        if (start < 0) return false;
+        for (int i = 0; i < mSuffix.length(); i++) {
+            if (mBurst.charAt(start + i) != mSuffix.charAt(i)) return false;
+        }
+        return true;
+    }
+
+    private void finishBurst() {
+        String burst = mBurst.toString();
+        String code = burst.startsWith(mPrefix) ? burst.substring(mPrefix.length()).trim() : "";
+        if (code.length() < MIN_CODE_LENGTH) {
+            replayBurst();
+            return;
+        }
+
+        mHandler.removeCallbacks(mPauseTimeout);
+        mBurst.setLength(0);
+        mHeld.clear();
+        Log.d(TAG, "Scanned " + code + ", " + (SystemClock.uptimeMillis() - mLastKeyTime) + "ms after the last key");
+        mListener.onScan(code);
+    }
+
+    /**
+     * Hands the held events back to be dispatched as if the scanner had never seen them.
+     */
+    private void replayBurst() {
+        mHandler.removeCallbacks(mPauseTimeout);
+        if (mHeld.size() > 1) Log.d(TAG, "Replaying " + mBurst.length() + " keys that were not a scan");
+        List<KeyEvent> held = new ArrayList<>(mHeld);
+        mBurst.setLength(0);
+        mHeld.clear();
+        // Keys still down are now the focused view's, their up events go to it too.
+        mPressed.clear();
+        for (KeyEvent event : held) {
+            mListener.onTypedKey(event);
+        }
+    }
+}
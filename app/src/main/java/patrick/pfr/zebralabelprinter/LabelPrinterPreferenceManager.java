@@ -1,6 +1,8 @@
 package patrick.pfr.zebralabelprinter;
 
+import android.content.ClipData;
 import android.content.Intent;
+import android.content.SharedPreferences;
 import android.net.Uri;
 import android.os.Bundle;
 import android.preference.Preference;
@@ -11,6 +13,11 @@ import android.support.v7.app.AppCompatActivity;
 import android.util.Log;
 import android.view.MenuItem;
 
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
 /**
  * Author:      Patrick Snelgar
  * Name:        LabelPrinterPreferenceManager.java
@@ -19,22 +26,48 @@ import android.view.MenuItem;
 public class LabelPrinterPreferenceManager extends AppCompatActivity {
 
     private static final int LOOKUP_FILE_REQUEST_CODE = 70;
+    private static final int TEMPLATE_FILE_REQUEST_CODE = 71;
+    private static final int GRAPHICS_REQUEST_CODE = 73;
+    private static final int LOOKUP_SOURCES_REQUEST_CODE = 74;
     private CustomPreferenceFragment preferenceFragment;
 
     public static class CustomPreferenceFragment extends PreferenceFragment {
 
         private final String TAG = CustomPreferenceFragment.class.getSimpleName();
         private Preference preferenceLookupFile;
+        private Preference preferenceTemplateFile;
+        private Preference preferenceGraphics;
+        private Preference preferenceLookupSources;
 
         @Override
         public void onCreate(Bundle savedInstanceState) {
             super.onCreate(savedInstanceState);
             addPreferencesFromResource(R.xml.preferences);
+            addPreferencesFromResource(R.xml.preferences_printing);
             preferenceLookupFile = getPreferenceManager().findPreference("lookup_file");
             preferenceLookupFile.setOnPreferenceClickListener(onPreferenceClickListener);
             preferenceLookupFile.setSummary(getFileNameFromUri(Uri.parse(
                     getPreferenceManager().getDefaultSharedPreferences(getContext())
                             .getString("lookup_file","----"))));
+            preferenceLookupSources = getPreferenceManager().findPreference(LookupSource.PREF_LOOKUP_SOURCES);
+            preferenceLookupSources.setOnPreferenceClickListener(onLookupSourcesClickListener);
+            showLookupSources();
+            getPreferenceManager().findPreference(LookupSource.PREF_CLEAR_LOOKUP_SOURCES)
+                    .setOnPreferenceClickListener(onClearLookupSourcesClickListener);
+            preferenceTemplateFile = getPreferenceManager().findPreference(LabelTemplateManager.PREF_TEMPLATE_FILE);
+            preferenceTemplateFile.setOnPreferenceClickListener(onTemplateClickListener);
+            String templateUri = getPreferenceManager().getDefaultSharedPreferences(getContext())
+                    .getString(LabelTemplateManager.PREF_TEMPLATE_FILE, null);
+            if (templateUri != null)
+                preferenceTemplateFile.setSummary(getFileNameFromUri(Uri.parse(templateUri)));
+            preferenceGraphics = getPreferenceManager().findPreference(LabelTemplateManager.PREF_GRAPHICS);
+            preferenceGraphics.setOnPreferenceClickListener(onGraphicsClickListener);
+            Set<String> graphicUris = getPreferenceManager().getSharedPreferences()
+                    .getStringSet(LabelTemplateManager.PREF_GRAPHICS, null);
+            if (graphicUris != null && !graphicUris.isEmpty())
+                preferenceGraphics.setSummary(getGraphicNames(graphicUris));
+            getPreferenceManager().findPreference(PrinterGraphicsRegistry.PREF_FORGET_GRAPHICS)
+                    .setOnPreferenceClickListener(onForgetGraphicsClickListener);
             getPreferenceManager().findPreference("printer_address")
                     .setSummary(getPreferenceManager().getDefaultSharedPreferences(getContext())
                             .getString("printer_address", "00:00:00:00:00"));
@@ -54,11 +87,77 @@ public class LabelPrinterPreferenceManager extends AppCompatActivity {
                     Snackbar.make(getView(), "File must have '.csv' extension.", Snackbar.LENGTH_LONG).show();
                 }
 
+            } else if (requestCode == TEMPLATE_FILE_REQUEST_CODE && resultCode == RESULT_OK) {
+                Uri fileURI = data.getData();
+                preferenceTemplateFile.setSummary(getFileNameFromUri(fileURI));
+                getPreferenceManager().getSharedPreferences().edit()
+                        .putString(LabelTemplateManager.PREF_TEMPLATE_FILE, fileURI.toString())
+                        .putString(LabelTemplateManager.PREF_TEMPLATE, LabelTemplateManager.TEMPLATE_FILE)
+                .apply();
+            } else if (requestCode == GRAPHICS_REQUEST_CODE && resultCode == RESULT_OK) {
+                Set<String> graphicUris = new HashSet<>();
+                ClipData clipData = data.getClipData();
+                if (clipData != null) {
+                    for (int i = 0; i < clipData.getItemCount(); i++) {
+                        graphicUris.add(clipData.getItemAt(i).getUri().toString());
+                    }
+                } else if (data.getData() != null) {
+                    graphicUris.add(data.getData().toString());
+                }
+                preferenceGraphics.setSummary(getGraphicNames(graphicUris));
+                getPreferenceManager().getSharedPreferences().edit()
+                        .putStringSet(LabelTemplateManager.PREF_GRAPHICS, graphicUris)
+                .apply();
+            } else if (requestCode == LOOKUP_SOURCES_REQUEST_CODE && resultCode == RESULT_OK) {
+                SharedPreferences preferences = getPreferenceManager().getSharedPreferences();
+                List<LookupSource> sources = LookupSource.decode(preferences.getString(LookupSource.PREF_LOOKUP_SOURCES, ""));
+                List<String> uris = new ArrayList<>();
+                ClipData clipData = data.getClipData();
+                if (clipData != null) {
+                    for (int i = 0; i < clipData.getItemCount(); i++) {
+                        uris.add(clipData.getItemAt(i).getUri().toString());
+                    }
+                } else if (data.getData() != null) {
+                    uris.add(data.getData().toString());
+                }
+                // New files are searched after those already added, with the key column and delimiter set now.
+                for (String uri : uris) {
+                    LookupSource source = LookupSource.withCurrentSettings(preferences, uri);
+                    if (!sources.contains(source)) sources.add(source);
+                }
+                preferences.edit()
+                        .putString(LookupSource.PREF_LOOKUP_SOURCES, LookupSource.encode(sources))
+                .apply();
+                showLookupSources();
             }else {
                 super.onActivityResult(requestCode, resultCode, data);
             }
         }
 
+        private void showLookupSources() {
+            List<LookupSource> sources = LookupSource.decode(getPreferenceManager().getSharedPreferences()
+                    .getString(LookupSource.PREF_LOOKUP_SOURCES, ""));
+            if (sources.isEmpty()) {
+                preferenceLookupSources.setSummary("Searched after the lookup file, in the order they were added");
+                return;
+            }
+            StringBuilder names = new StringBuilder();
+            for (LookupSource source : sources) {
+                if (names.length() > 0) names.append(", ");
+                names.append(source);
+            }
+            preferenceLookupSources.setSummary(names.toString());
+        }
+
+        private String getGraphicNames(Set<String> uris) {
+            StringBuilder names = new StringBuilder();
+            for (String uri : uris) {
+                if (names.length() > 0) names.append(", ");
+                names.append(LabelTemplateManager.graphicName(Uri.parse(uri)));
+            }
+            return names.toString();
+        }
+
         private String getFileNameFromUri(Uri uri){
 
             String[] sections = uri.getPath().split("/");
@@ -78,6 +177,62 @@ public class LabelPrinterPreferenceManager extends AppCompatActivity {
                 return true;
             }
         };
+
+        final Preference.OnPreferenceClickListener onTemplateClickListener = new Preference.OnPreferenceClickListener() {
+            @Override
+            public boolean onPreferenceClick(Preference preference) {
+                Intent intent = new Intent(Intent.ACTION_OPEN_DOCUMENT);
+                intent.setType("*/*");
+                intent.addCategory(Intent.CATEGORY_OPENABLE);
+                startActivityForResult(intent, TEMPLATE_FILE_REQUEST_CODE);
+                return true;
+            }
+        };
+
+        final Preference.OnPreferenceClickListener onGraphicsClickListener = new Preference.OnPreferenceClickListener() {
+            @Override
+            public boolean onPreferenceClick(Preference preference) {
+                Intent intent = new Intent(Intent.ACTION_OPEN_DOCUMENT);
+                intent.setType("image/*");
+                intent.addCategory(Intent.CATEGORY_OPENABLE);
+                intent.putExtra(Intent.EXTRA_ALLOW_MULTIPLE, true);
+                startActivityForResult(intent, GRAPHICS_REQUEST_CODE);
+                return true;
+            }
+        };
+
+        final Preference.OnPreferenceClickListener onLookupSourcesClickListener = new Preference.OnPreferenceClickListener() {
+            @Override
+            public boolean onPreferenceClick(Preference preference) {
+                Intent intent = new Intent(Intent.ACTION_OPEN_DOCUMENT);
+                intent.setType("text/*");
+                intent.addCategory(Intent.CATEGORY_OPENABLE);
+                intent.putExtra(Intent.EXTRA_ALLOW_MULTIPLE, true);
+                startActivityForResult(intent, LOOKUP_SOURCES_REQUEST_CODE);
+                return true;
+            }
+        };
+
+        final Preference.OnPreferenceClickListener onClearLookupSourcesClickListener = new Preference.OnPreferenceClickListener() {
+            @Override
+            public boolean onPreferenceClick(Preference preference) {
+                getPreferenceManager().getSharedPreferences().edit()
+                        .remove(LookupSource.PREF_LOOKUP_SOURCES)
+                .apply();
+                showLookupSources();
+                Snackbar.make(getView(), "Only the lookup file will be searched", Snackbar.LENGTH_SHORT).show();
+                return true;
+            }
+        };
+
+        final Preference.OnPreferenceClickListener onForgetGraphicsClickListener = new Preference.OnPreferenceClickListener() {
+            @Override
+            public boolean onPreferenceClick(Preference preference) {
+                PrinterGraphicsRegistry.getInstance(getContext()).clear();
+                Snackbar.make(getView(), "Graphics will be sent again with the next label", Snackbar.LENGTH_SHORT).show();
+                return true;
+            }
+        };
     }
 
     @Override
@@ -0,0 +1,180 @@
+package patrick.pfr.zebralabelprinter;
+
+import android.content.ContentResolver;
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.net.Uri;
+import android.preference.PreferenceManager;
+import android.util.Log;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Author:      Patrick Snelgar
+ * Name:        LabelTemplateManager.java
+ * Description: Holds the compiled LabelTemplate selected in the preferences, either the built-in layout
+ *              or a ZPL template file chosen by the user. The template is recompiled on a background thread
+ *              whenever the template preferences change, if it fails to compile the built-in layout is used.
+ *              The images chosen as label graphics are converted to StoredGraphics at the same time, so each
+ *              is only converted and compressed once however many labels draw it.
+ */
+class LabelTemplateManager implements SharedPreferences.OnSharedPreferenceChangeListener {
+
+    private static final String TAG = LabelTemplateManager.class.getSimpleName();
+    static final String PREF_TEMPLATE = "label_template";
+    static final String PREF_TEMPLATE_FILE = "label_template_file";
+    static final String PREF_TEMPLATE_COLUMNS = "template_columns";
+    static final String PREF_GRAPHICS = "label_graphics";
+    static final String TEMPLATE_BUILT_IN = "builtin";
+    static final String TEMPLATE_FILE = "file";
+
+    private static LabelTemplateManager sInstance;
+
+    private final ContentResolver mContentResolver;
+    private final SharedPreferences mPreferences;
+    private final ExecutorService mExecutor = Executors.newSingleThreadExecutor();
+    private final LabelTemplate mBuiltIn;
+    private final AtomicReference<LabelTemplate> mTemplate = new AtomicReference<>();
+
+    static synchronized LabelTemplateManager getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new LabelTemplateManager(context.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    private LabelTemplateManager(Context context) {
+        mContentResolver = context.getContentResolver();
+        mPreferences = PreferenceManager.getDefaultSharedPreferences(context);
+        mBuiltIn = LabelTemplate.compile(LabelTemplate.DEFAULT_SOURCE, new String[0]);
+        mTemplate.set(mBuiltIn);
+        mPreferences.registerOnSharedPreferenceChangeListener(this);
+        reload();
+    }
+
+    /**
+     * @return the current template, never null.
+     */
+    LabelTemplate getTemplate() {
+        return mTemplate.get();
+    }
+
+    @Override
+    public void onSharedPreferenceChanged(SharedPreferences sharedPreferences, String key) {
+        if (PREF_TEMPLATE.equals(key) || PREF_TEMPLATE_FILE.equals(key) || PREF_TEMPLATE_COLUMNS.equals(key)
+                || PREF_GRAPHICS.equals(key)) {
+            reload();
+        }
+    }
+
+    private void reload() {
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                mTemplate.set(load());
+            }
+        });
+    }
+
+    private LabelTemplate load() {
+        String selected = mPreferences.getString(PREF_TEMPLATE, TEMPLATE_BUILT_IN);
+        String uri = mPreferences.getString(PREF_TEMPLATE_FILE, null);
+        if (!TEMPLATE_FILE.equals(selected) || uri == null) {
+            return mBuiltIn;
+        }
+
+        try {
+            String[] columnNames = mPreferences.getString(PREF_TEMPLATE_COLUMNS, "").split(",");
+            LabelTemplate template = LabelTemplate.compile(readTemplate(uri), columnNames, loadGraphics());
+            Log.d(TAG, "Loaded template " + uri + (template.hasStoredFormat() ? ", storable" : "")
+                    + ", " + template.getGraphics().size() + " graphics");
+            return template;
+        } catch (IOException | IllegalArgumentException e) {
+            Log.e(TAG, "Error loading template, using built-in layout: " + e.getLocalizedMessage());
+            return mBuiltIn;
+        }
+    }
+
+    /**
+     * Converts each image chosen in the preferences to a monochrome graphic, images that cannot be read are skipped.
+     * @return the graphics keyed by lower case file name without its extension, e.g. "logo" for logo.png
+     */
+    private Map<String, StoredGraphic> loadGraphics() {
+        Set<String> uris = mPreferences.getStringSet(PREF_GRAPHICS, Collections.<String>emptySet());
+        Map<String, StoredGraphic> graphics = new HashMap<>();
+        for (String uri : uris) {
+            try {
+                StoredGraphic graphic = readGraphic(uri);
+                graphics.put(graphicName(Uri.parse(uri)), graphic);
+                Log.d(TAG, "Converted graphic " + uri + " to " + graphic.name + ", " + graphic.definition.length + " bytes");
+            } catch (IOException e) {
+                Log.e(TAG, "Error loading graphic " + uri + ": " + e.getLocalizedMessage());
+            }
+        }
+        return graphics;
+    }
+
+    private StoredGraphic readGraphic(String uri) throws IOException {
+        InputStream is = mContentResolver.openInputStream(Uri.parse(uri));
+        if (is == null) throw new IOException("Could not open " + uri);
+
+        Bitmap bitmap;
+        try {
+            bitmap = BitmapFactory.decodeStream(is);
+        } finally {
+            is.close();
+        }
+        if (bitmap == null) throw new IOException("Not an image");
+
+        int width = bitmap.getWidth();
+        int height = bitmap.getHeight();
+        int[] pixels = new int[width * height];
+        bitmap.getPixels(pixels, 0, width, 0, 0, width, height);
+        bitmap.recycle();
+        return StoredGraphic.fromPixels(pixels, width, height);
+    }
+
+    /**
+     * @param uri
+     * @return the name ${graphic:name} placeholders use for the image, its file name without the extension.
+     */
+    static String graphicName(Uri uri) {
+        String path = uri.getPath();
+        // Document URIs look like /document/primary:Labels/logo.png
+        String name = path.substring(Math.max(path.lastIndexOf('/'), path.lastIndexOf(':')) + 1);
+        int extension = name.lastIndexOf('.');
+        if (extension > 0) name = name.substring(0, extension);
+        return name.toLowerCase(Locale.US);
+    }
+
+    private String readTemplate(String uri) throws IOException {
+        InputStream is = mContentResolver.openInputStream(Uri.parse(uri));
+        if (is == null) throw new IOException("Could not open " + uri);
+
+        BufferedReader br = new BufferedReader(new InputStreamReader(is, "UTF-8"));
+        try {
+            StringBuilder source = new StringBuilder();
+            char[] buffer = new char[1024];
+            int read;
+            while ((read = br.read(buffer)) != -1) {
+                source.append(buffer, 0, read);
+            }
+            return source.toString();
+        } finally {
+            br.close();
+        }
+    }
+}
@@ -0,0 +1,147 @@
+package patrick.pfr.zebralabelprinter;
+
+import android.os.SystemClock;
+import android.os.Trace;
+
+import java.util.Locale;
+
+/**
+ * Author:      Patrick Snelgar
+ * Name:        LatencyStats.java
+ * Description: Timings of each stage between a code coming into view and its label being printed, kept in a
+ *              LatencyHistogram per stage. Synchronous stages are also marked with a Trace section named after the
+ *              stage, so a systrace capture lines up with the histograms.
+ *
+ *              Usage: long start = LatencyStats.begin(Stage.X); ... LatencyStats.end(Stage.X, start);
+ *              begin and end must be called on the same thread, use start() and record() for stages that span threads.
+ */
+final class LatencyStats {
+
+    enum Stage {
+        DETECT("Barcode detection"),
+        LOOKUP("Lookup"),
+        RENDER("Label rendering"),
+        QUEUE("Waiting in print queue"),
+        CONNECT("Printer connect"),
+        WRITE("Printer write"),
+        ACKNOWLEDGE("Printer acknowledge"),
+        CLOSE("Printer close"),
+        PRINT("Submit to printed");
+
+        final String description;
+        final String traceName;
+        final LatencyHistogram histogram = new LatencyHistogram();
+
+        Stage(String description) {
+            this.description = description;
+            this.traceName = "ZLP:" + name();
+        }
+    }
+
+    private LatencyStats() {
+    }
+
+    /**
+     * Opens the stage's trace section.
+     * @return the start time to pass to end()
+     */
+    static long begin(Stage stage) {
+        Trace.beginSection(stage.traceName);
+        return SystemClock.elapsedRealtimeNanos();
+    }
+
+    /**
+     * Closes the stage's trace section and records its duration.
+     * @param stage
+     * @param start value returned by begin()
+     */
+    static void end(Stage stage, long start) {
+        Trace.endSection();
+        record(stage, start);
+    }
+
+    /**
+     * Closes the stage's trace section and counts it as an error rather than a duration.
+     * @param stage
+     */
+    static void endWithError(Stage stage) {
+        Trace.endSection();
+        recordError(stage);
+    }
+
+    /**
+     * Closes the stage's trace section without recording anything, e.g. when the work was cancelled.
+     * @param stage
+     */
+    static void abandon(Stage stage) {
+        Trace.endSection();
+    }
+
+    /**
+     * @return the start time of a stage without a trace section, e.g. one that finishes on another thread.
+     */
+    static long start() {
+        return SystemClock.elapsedRealtimeNanos();
+    }
+
+    static void record(Stage stage, long start) {
+        recordDuration(stage, SystemClock.elapsedRealtimeNanos() - start);
+    }
+
+    /**
+     * Records a duration measured elsewhere, e.g. by the print core on its own clock.
+     * @param stage
+     * @param durationNanos
+     */
+    static void recordDuration(Stage stage, long durationNanos) {
+        stage.histogram.record(SystemClock.elapsedRealtime(), durationNanos / 1000);
+    }
+
+    static void recordError(Stage stage) {
+        stage.histogram.recordError(SystemClock.elapsedRealtime());
+    }
+
+    static void reset() {
+        for (Stage stage : Stage.values()) {
+            stage.histogram.reset();
+        }
+    }
+
+    /**
+     * @return the stats of every stage as a human readable table, times in milliseconds.
+     */
+    static String formatTable() {
+        long now = SystemClock.elapsedRealtime();
+        StringBuilder table = new StringBuilder();
+        table.append(String.format(Locale.US, "Last %d minutes\n\n", LatencyHistogram.WINDOW_SLOTS * LatencyHistogram.SLOT_MS / 60000));
+        table.append(String.format(Locale.US, "%-22s %6s %8s %8s %8s %6s\n", "Stage", "Count", "p50", "p95", "p99", "Err%"));
+        for (Stage stage : Stage.values()) {
+            LatencyHistogram.Snapshot snapshot = stage.histogram.snapshot(now);
+            table.append(String.format(Locale.US, "%-22s %6d %8.1f %8.1f %8.1f %6.1f\n",
+                    stage.description, snapshot.count,
+                    snapshot.percentileMicros(50) / 1000.0,
+                    snapshot.percentileMicros(95) / 1000.0,
+                    snapshot.percentileMicros(99) / 1000.0,
+                    snapshot.errorRate() * 100));
+        }
+        return table.toString();
+    }
+
+    /**
+     * @return the stats of every stage as csv with a header row, times in milliseconds.
+     */
+    static String formatCsv() {
+        long now = SystemClock.elapsedRealtime();
+        StringBuilder csv = new StringBuilder("stage,count,errors,error_rate,p50_ms,p95_ms,p99_ms,max_ms\n");
+        for (Stage stage : Stage.values()) {
+            LatencyHistogram.Snapshot snapshot = stage.histogram.snapshot(now);
+            csv.append(String.format(Locale.US, "%s,%d,%d,%.4f,%.3f,%.3f,%.3f,%.3f\n",
+                    stage.name(), snapshot.count, snapshot.errors, snapshot.errorRate(),
+                    snapshot.percentileMicros(50) / 1000.0,
+                    snapshot.percentileMicros(95) / 1000.0,
+                    snapshot.percentileMicros(99) / 1000.0,
+                    snapshot.maxMicros / 1000.0));
+        }
+        return csv.toString();
+    }
+}
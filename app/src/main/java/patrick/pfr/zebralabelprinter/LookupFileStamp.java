@@ -0,0 +1,93 @@
+package patrick.pfr.zebralabelprinter;
+
+import android.content.ContentResolver;
+import android.database.Cursor;
+import android.net.Uri;
+import android.provider.DocumentsContract;
+import android.provider.OpenableColumns;
+import android.util.Log;
+
+/**
+ * Author:      Patrick Snelgar
+ * Name:        LookupFileStamp.java
+ * Description: Identifies a particular version of the lookup file by its URI, last-modified time and size.
+ *              Used to decide whether an index built from the file is still current.
+ */
+class LookupFileStamp {
+
+    private static final String TAG = LookupFileStamp.class.getSimpleName();
+
+    static final long UNKNOWN = -1;
+
+    final String uri;
+    final long lastModified;
+    final long size;
+
+    LookupFileStamp(String uri, long lastModified, long size) {
+        this.uri = uri;
+        this.lastModified = lastModified;
+        this.size = size;
+    }
+
+    /**
+     * Queries the document provider for the current last-modified time and size of the file.
+     * Columns the provider does not report are left as UNKNOWN.
+     * @param resolver
+     * @param uri
+     */
+    static LookupFileStamp query(ContentResolver resolver, String uri) {
+        long lastModified = UNKNOWN;
+        long size = UNKNOWN;
+
+        Cursor cursor = null;
+        try {
+            cursor = resolver.query(Uri.parse(uri), null, null, null, null);
+            if (cursor != null && cursor.moveToFirst()) {
+                int modifiedColumn = cursor.getColumnIndex(DocumentsContract.Document.COLUMN_LAST_MODIFIED);
+                int sizeColumn = cursor.getColumnIndex(OpenableColumns.SIZE);
+                if (modifiedColumn >= 0 && !cursor.isNull(modifiedColumn))
+                    lastModified = cursor.getLong(modifiedColumn);
+                if (sizeColumn >= 0 && !cursor.isNull(sizeColumn))
+                    size = cursor.getLong(sizeColumn);
+            }
+        } catch (Exception e) {
+            Log.e(TAG, "Could not query lookup file: " + e.getLocalizedMessage());
+        } finally {
+            if (cursor != null)
+                cursor.close();
+        }
+
+        return new LookupFileStamp(uri, lastModified, size);
+    }
+
+    /**
+     * A stamp is only trusted when the provider reported both values, otherwise
+     * we cannot tell if the file changed underneath an index.
+     */
+    boolean isKnown() {
+        return lastModified != UNKNOWN && size != UNKNOWN;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (!(o instanceof LookupFileStamp)) return false;
+        LookupFileStamp other = (LookupFileStamp) o;
+        return lastModified == other.lastModified
+                && size == other.size
+                && uri.equals(other.uri);
+    }
+
+    @Override
+    public int hashCode() {
+        int result = uri.hashCode();
+        result = 31 * result + (int) (lastModified ^ (lastModified >>> 32));
+        result = 31 * result + (int) (size ^ (size >>> 32));
+        return result;
+    }
+
+    @Override
+    public String toString() {
+        return uri + " (modified " + lastModified + ", " + size + " bytes)";
+    }
+}
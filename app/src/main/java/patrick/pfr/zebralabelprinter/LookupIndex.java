@@ -0,0 +1,146 @@
+package patrick.pfr.zebralabelprinter;
+
+import android.content.ContentResolver;
+import android.net.Uri;
+import android.os.ParcelFileDescriptor;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Author:      Patrick Snelgar
+ * Name:        LookupIndex.java
+ * Description: An opened LookupIndexFile together with the lookup csv files it indexes.
+ *              Keeps a read only descriptor on each csv so each lookup can seek straight to the matching line,
+ *              whichever file it is in.
+ */
+class LookupIndex implements Closeable {
+
+    private final List<LookupSource> mSources;
+    private final List<LookupFileStamp> mStamps;
+    private final LookupIndexFile mIndexFile;
+    private final List<ParcelFileDescriptor> mSourceDescriptors;
+    // Held so the streams, and with them the descriptors, are not finalized while the channels are in use.
+    private final List<FileInputStream> mSourceStreams;
+    private final LookupIndexFile.Source[] mIndexSources;
+
+    private LookupIndex(List<LookupSource> sources, List<LookupFileStamp> stamps, LookupIndexFile indexFile,
+                        List<ParcelFileDescriptor> sourceDescriptors, List<FileInputStream> sourceStreams,
+                        LookupIndexFile.Source[] indexSources) {
+        mSources = sources;
+        mStamps = stamps;
+        mIndexFile = indexFile;
+        mSourceDescriptors = sourceDescriptors;
+        mSourceStreams = sourceStreams;
+        mIndexSources = indexSources;
+    }
+
+    /**
+     * Opens the combined index of the sources, reusing the index file if its fingerprint still matches
+     * the content of every csv and rebuilding it otherwise.
+     * @param resolver
+     * @param sources in the order they are searched
+     * @param stamps current stamp of each source
+     * @param indexFile location of the persistent index for these sources
+     */
+    static LookupIndex open(ContentResolver resolver, List<LookupSource> sources, List<LookupFileStamp> stamps,
+                            File indexFile) throws IOException {
+        List<ParcelFileDescriptor> descriptors = new ArrayList<>(sources.size());
+        List<FileInputStream> streams = new ArrayList<>(sources.size());
+        LookupIndexFile index = null;
+        boolean succeeded = false;
+        try {
+            LookupIndexFile.Source[] indexSources = new LookupIndexFile.Source[sources.size()];
+            long[] lastModified = new long[sources.size()];
+            for (int i = 0; i < indexSources.length; i++) {
+                LookupSource source = sources.get(i);
+                ParcelFileDescriptor descriptor = resolver.openFileDescriptor(Uri.parse(source.uri), "r");
+                if (descriptor == null) throw new FileNotFoundException("Could not open " + source.uri);
+                descriptors.add(descriptor);
+                FileInputStream stream = new FileInputStream(descriptor.getFileDescriptor());
+                streams.add(stream);
+                indexSources[i] = new LookupIndexFile.Source(stream.getChannel(), source.getDialect(), source.keyColumn);
+                lastModified[i] = stamps.get(i).lastModified;
+            }
+            long fingerprint = LookupIndexFile.fingerprint(indexSources, lastModified);
+
+            if (indexFile.exists()) {
+                try {
+                    index = LookupIndexFile.open(indexFile);
+                    if (index.getFingerprint() != fingerprint) {
+                        index.close();
+                        index = null;
+                    }
+                } catch (IOException e) {
+                    index = null;
+                }
+            }
+
+            if (index == null) {
+                LookupIndexFile.build(indexFile, fingerprint, indexSources);
+                index = LookupIndexFile.open(indexFile);
+            }
+
+            LookupIndex lookupIndex = new LookupIndex(sources, stamps, index, descriptors, streams, indexSources);
+            succeeded = true;
+            return lookupIndex;
+        } finally {
+            // Also on a SecurityException from a revoked permission, not just an IOException.
+            if (!succeeded) {
+                closeQuietly(index);
+                for (FileInputStream stream : streams) {
+                    closeQuietly(stream);
+                }
+                for (ParcelFileDescriptor descriptor : descriptors) {
+                    closeQuietly(descriptor);
+                }
+            }
+        }
+    }
+
+    /**
+     * Closes what was opened before a failure, without hiding the exception that caused it.
+     * @param closeable may be null
+     */
+    private static void closeQuietly(Closeable closeable) {
+        if (closeable == null) return;
+        try {
+            closeable.close();
+        } catch (IOException e) {
+            // The original failure is the one reported.
+        }
+    }
+
+    /**
+     * @param barcode
+     * @return the matching csv line and the position of the source it is in, or null if the barcode is in none.
+     */
+    LookupIndexFile.Match lookup(String barcode) throws IOException {
+        return mIndexFile.lookup(mIndexSources, barcode);
+    }
+
+    List<LookupSource> getSources() {
+        return mSources;
+    }
+
+    List<LookupFileStamp> getStamps() {
+        return mStamps;
+    }
+
+    int size() {
+        return mIndexFile.size();
+    }
+
+    @Override
+    public void close() throws IOException {
+        mIndexFile.close();
+        for (ParcelFileDescriptor descriptor : mSourceDescriptors) {
+            descriptor.close();
+        }
+    }
+}
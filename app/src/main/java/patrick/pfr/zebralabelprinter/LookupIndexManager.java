@@ -0,0 +1,324 @@
+package patrick.pfr.zebralabelprinter;
+
+import android.content.ContentResolver;
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.net.Uri;
+import android.os.SystemClock;
+import android.preference.PreferenceManager;
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.ClosedChannelException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Author:      Patrick Snelgar
+ * Name:        LookupIndexManager.java
+ * Description: Owns the LookupIndex of the csv files selected in the preferences, every LookupSource is
+ *              indexed together so a lookup costs one search however many files there are.
+ *              The index is persisted in app-private storage, so after a restart it only needs to be reopened.
+ *              It is rebuilt on a background thread whenever the lookup preferences
+ *              or one of the files changes, and swapped in atomically once complete.
+ *              Lookups never wait for a rebuild, while no current index exists the files are scanned in turn.
+ *              Recent results are kept in a LookupCache tied to the files' stamps, so a rescan is answered from memory.
+ *              Records from files with another delimiter are returned in the default dialect, so templates and
+ *              printing read every record the same way.
+ */
+class LookupIndexManager implements SharedPreferences.OnSharedPreferenceChangeListener {
+
+    private static final String TAG = LookupIndexManager.class.getSimpleName();
+    static final String PREF_LOOKUP_FILE = "lookup_file";
+    static final String NO_LOOKUP_FILE = "---";
+
+    // Querying the provider for the file stamp is a binder call, no need to repeat it for every scan.
+    private static final long STAMP_CHECK_INTERVAL_MS = 2000;
+    // Lookups read from the index without locking, so a replaced index is kept open a little longer.
+    private static final long CLOSE_DELAY_MS = 5000;
+    private static final String INDEX_DIRECTORY = "lookup_index";
+    private static final String INDEX_EXTENSION = ".idx";
+    private static final int CACHE_CAPACITY = 512;
+
+    private static LookupIndexManager sInstance;
+
+    private final ContentResolver mContentResolver;
+    private final SharedPreferences mPreferences;
+    private final File mIndexDirectory;
+    private final ScheduledExecutorService mBuildExecutor = Executors.newSingleThreadScheduledExecutor();
+    private final AtomicReference<LookupIndex> mIndex = new AtomicReference<>();
+    private final AtomicBoolean mRebuildQueued = new AtomicBoolean(false);
+    private final LookupCache mCache = new LookupCache(CACHE_CAPACITY);
+
+    private volatile List<LookupFileStamp> mStamps;
+    private volatile long mLastStampCheck = 0;
+
+    static synchronized LookupIndexManager getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new LookupIndexManager(context.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    private LookupIndexManager(Context context) {
+        mContentResolver = context.getContentResolver();
+        mPreferences = PreferenceManager.getDefaultSharedPreferences(context);
+        mIndexDirectory = new File(context.getFilesDir(), INDEX_DIRECTORY);
+        if (!mIndexDirectory.exists() && !mIndexDirectory.mkdirs())
+            Log.e(TAG, "Could not create " + mIndexDirectory);
+        mPreferences.registerOnSharedPreferenceChangeListener(this);
+        requestRebuild();
+    }
+
+    /**
+     * @return the URI of the selected lookup file, or NO_LOOKUP_FILE if one has not been chosen.
+     */
+    String getLookupUri() {
+        return mPreferences.getString(PREF_LOOKUP_FILE, NO_LOOKUP_FILE);
+    }
+
+    /**
+     * @return the files searched by lookups in priority order, empty if no lookup file has been chosen.
+     */
+    List<LookupSource> getSources() {
+        return LookupSource.fromPreferences(mPreferences);
+    }
+
+    /**
+     * Finds the csv line whose key column matches the barcode, in the first source that has it.
+     * Answers from the cache if the barcode was looked up in the same version of the files,
+     * otherwise uses the index when it is current for the given files, or schedules a rebuild
+     * and falls back to reading through each file in turn.
+     * @param sources lookup files to search, in priority order
+     * @param barcode
+     * @param cancellation checked while reading through the files, or null if the lookup cannot be cancelled
+     * @return the matching line, in the default dialect, and the position of its source, or null if no line matched.
+     * @throws CsvReader.CancelledException if the cancellation reports the lookup is no longer wanted.
+     */
+    LookupIndexFile.Match lookup(List<LookupSource> sources, String barcode, CsvReader.Cancellation cancellation)
+            throws IOException {
+        List<LookupFileStamp> stamps = currentStamps(sources);
+        // The stamps do not cover the key column or delimiter, so the sources are part of the cache key.
+        List<Object> version = Arrays.<Object>asList(sources, stamps);
+        LookupCache.CachedResult cached = mCache.get(version, barcode);
+        if (cached != null) return cached.record == null ? null : new LookupIndexFile.Match(cached.source, cached.record);
+
+        LookupIndexFile.Match match;
+        LookupIndex index = mIndex.get();
+        if (index != null && index.getSources().equals(sources) && isCurrent(index, stamps)) {
+            try {
+                match = index.lookup(barcode);
+            } catch (ClosedChannelException e) {
+                // An interrupted read closes the channels for every later lookup, so the index must be reopened.
+                Log.e(TAG, "Lookup index closed, reopening: " + e);
+                discardIndex(index);
+                requestRebuild();
+                match = scanFiles(sources, barcode, cancellation);
+            }
+        } else {
+            requestRebuild();
+            match = scanFiles(sources, barcode, cancellation);
+        }
+
+        if (match != null) {
+            LookupSource source = sources.get(match.source);
+            if (source.delimiter != LookupSource.DEFAULT_DELIMITER)
+                match = new LookupIndexFile.Match(match.source,
+                        CsvReader.convert(match.record, source.getDialect(), CsvReader.Dialect.DEFAULT));
+        }
+        mCache.put(version, barcode, match == null ? null : match.record, match == null ? -1 : match.source);
+        return match;
+    }
+
+    LookupCache getCache() {
+        return mCache;
+    }
+
+    /**
+     * Queues a rebuild of the index, if one is not already waiting to run.
+     */
+    void requestRebuild() {
+        if (mRebuildQueued.compareAndSet(false, true)) {
+            mBuildExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    mRebuildQueued.set(false);
+                    rebuild();
+                }
+            });
+        }
+    }
+
+    @Override
+    public void onSharedPreferenceChanged(SharedPreferences sharedPreferences, String key) {
+        if (PREF_LOOKUP_FILE.equals(key) || LookupSource.PREF_LOOKUP_SOURCES.equals(key)
+                || LookupSource.PREF_KEY_COLUMN.equals(key) || LookupSource.PREF_DELIMITER.equals(key)) {
+            Log.d(TAG, "Lookup files changed");
+            mCache.invalidate();
+            requestRebuild();
+        }
+    }
+
+    /**
+     * Queries the stamps of the files at most once every STAMP_CHECK_INTERVAL_MS, reusing the last ones in between.
+     * @param sources
+     */
+    private List<LookupFileStamp> currentStamps(List<LookupSource> sources) {
+        long now = SystemClock.elapsedRealtime();
+        List<LookupFileStamp> stamps = mStamps;
+        if (stamps != null && stampsMatch(stamps, sources) && now - mLastStampCheck < STAMP_CHECK_INTERVAL_MS)
+            return stamps;
+
+        stamps = queryStamps(sources);
+        mStamps = stamps;
+        mLastStampCheck = now;
+        return stamps;
+    }
+
+    private List<LookupFileStamp> queryStamps(List<LookupSource> sources) {
+        List<LookupFileStamp> stamps = new ArrayList<>(sources.size());
+        for (LookupSource source : sources) {
+            stamps.add(LookupFileStamp.query(mContentResolver, source.uri));
+        }
+        return stamps;
+    }
+
+    private static boolean stampsMatch(List<LookupFileStamp> stamps, List<LookupSource> sources) {
+        if (stamps.size() != sources.size()) return false;
+        for (int i = 0; i < stamps.size(); i++) {
+            if (!stamps.get(i).uri.equals(sources.get(i).uri)) return false;
+        }
+        return true;
+    }
+
+    /**
+     * Checks that none of the files has changed since the index was built.
+     * @param index
+     * @param stamps current stamp of each file
+     */
+    private boolean isCurrent(LookupIndex index, List<LookupFileStamp> stamps) {
+        List<LookupFileStamp> indexed = index.getStamps();
+        for (int i = 0; i < stamps.size(); i++) {
+            LookupFileStamp stamp = stamps.get(i);
+            // If the provider does not report size and modification time we can only rely on the preference listener.
+            if (stamp.isKnown() && !stamp.equals(indexed.get(i))) return false;
+        }
+        return true;
+    }
+
+    private void rebuild() {
+        List<LookupSource> sources = getSources();
+        if (sources.isEmpty()) {
+            swapIndex(null);
+            return;
+        }
+
+        List<LookupFileStamp> stamps = queryStamps(sources);
+        LookupIndex current = mIndex.get();
+        if (current != null && current.getSources().equals(sources) && allKnown(stamps)
+                && stamps.equals(current.getStamps())) {
+            Log.d(TAG, "Index already current for " + stamps);
+            return;
+        }
+
+        long start = SystemClock.elapsedRealtime();
+        try {
+            LookupIndex index = LookupIndex.open(mContentResolver, sources, stamps, indexFileFor(sources));
+            swapIndex(index);
+            mStamps = stamps;
+            mLastStampCheck = SystemClock.elapsedRealtime();
+            Log.d(TAG, "Opened index of " + index.size() + " records for " + sources
+                    + " in " + (SystemClock.elapsedRealtime() - start) + "ms");
+            StartupTimer.mark("Lookup index open");
+            removeStaleIndexFiles(sources);
+        } catch (Exception e) {
+            Log.e(TAG, "Error opening lookup index: " + e.getLocalizedMessage());
+        }
+    }
+
+    /**
+     * Publishes the new index and closes the old one once any lookups still using it have had time to finish.
+     * @param index
+     */
+    private void swapIndex(LookupIndex index) {
+        LookupIndex previous = mIndex.getAndSet(index);
+        if (previous != null) closeLater(previous);
+    }
+
+    /**
+     * Drops the index if it is still the current one, e.g. once its channels can no longer be read.
+     * @param index
+     */
+    private void discardIndex(LookupIndex index) {
+        if (mIndex.compareAndSet(index, null)) closeLater(index);
+    }
+
+    private void closeLater(final LookupIndex previous) {
+        mBuildExecutor.schedule(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    previous.close();
+                } catch (IOException e) {
+                    Log.d(TAG, "Error closing lookup index: " + e.getLocalizedMessage());
+                }
+            }
+        }, CLOSE_DELAY_MS, TimeUnit.MILLISECONDS);
+    }
+
+    private static boolean allKnown(List<LookupFileStamp> stamps) {
+        for (LookupFileStamp stamp : stamps) {
+            if (!stamp.isKnown()) return false;
+        }
+        return true;
+    }
+
+    /**
+     * Index files are named after a hash of the sources so the same files, read the same way,
+     * always map to the same index.
+     * @param sources
+     */
+    private File indexFileFor(List<LookupSource> sources) {
+        return new File(mIndexDirectory, Long.toHexString(LookupIndexFile.hashKey(LookupSource.encode(sources))) + INDEX_EXTENSION);
+    }
+
+    /**
+     * Only the index of the currently selected files is kept.
+     * @param sources
+     */
+    private void removeStaleIndexFiles(List<LookupSource> sources) {
+        File current = indexFileFor(sources);
+        File[] files = mIndexDirectory.listFiles();
+        if (files == null) return;
+        for (File file : files) {
+            if (!file.equals(current) && file.delete())
+                Log.d(TAG, "Removed stale index " + file.getName());
+        }
+    }
+
+    /**
+     * Reads through each file in turn line by line until the barcode is found, used while no index is available.
+     * @param sources
+     * @param barcode
+     * @param cancellation
+     */
+    private LookupIndexFile.Match scanFiles(List<LookupSource> sources, String barcode,
+                                            CsvReader.Cancellation cancellation) throws IOException {
+        for (int i = 0; i < sources.size(); i++) {
+            LookupSource source = sources.get(i);
+            InputStream is = mContentResolver.openInputStream(Uri.parse(source.uri));
+            if (is == null) throw new IOException("Could not open " + source.uri);
+            String record = CsvLookup.scan(is, barcode, source.getDialect(), source.keyColumn, cancellation);
+            if (record != null) return new LookupIndexFile.Match(i, record);
+        }
+        return null;
+    }
+}
@@ -0,0 +1,139 @@
+package patrick.pfr.zebralabelprinter;
+
+import android.content.SharedPreferences;
+import android.net.Uri;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Author:      Patrick Snelgar
+ * Name:        LookupSource.java
+ * Description: A csv file searched by lookups, with the column holding the codes and the character between columns.
+ *              The lookup file chosen in the preferences is the first source and reads its key column and
+ *              delimiter from the preferences. Files added to "lookup_sources" follow in the order they were
+ *              added, each keeping the key column and delimiter set when it was added.
+ *              A code found in more than one source is taken from the first.
+ */
+final class LookupSource {
+
+    private static final String TAG = LookupSource.class.getSimpleName();
+    static final String PREF_LOOKUP_SOURCES = "lookup_sources";
+    static final String PREF_CLEAR_LOOKUP_SOURCES = "clear_lookup_sources";
+    static final String PREF_KEY_COLUMN = "lookup_key_column";
+    static final String PREF_DELIMITER = "lookup_delimiter";
+    static final char DEFAULT_DELIMITER = ',';
+
+    final String uri;
+    // Counting from 0.
+    final int keyColumn;
+    final char delimiter;
+
+    LookupSource(String uri, int keyColumn, char delimiter) {
+        this.uri = uri;
+        this.keyColumn = keyColumn;
+        this.delimiter = delimiter;
+    }
+
+    /**
+     * @return every source in the order they are searched, empty if no lookup file has been chosen.
+     */
+    static List<LookupSource> fromPreferences(SharedPreferences preferences) {
+        List<LookupSource> sources = new ArrayList<>();
+        String uri = preferences.getString(LookupIndexManager.PREF_LOOKUP_FILE, LookupIndexManager.NO_LOOKUP_FILE);
+        if (!LookupIndexManager.NO_LOOKUP_FILE.equals(uri)) sources.add(withCurrentSettings(preferences, uri));
+        sources.addAll(decode(preferences.getString(PREF_LOOKUP_SOURCES, "")));
+        return sources;
+    }
+
+    /**
+     * @return a source for the file using the key column and delimiter currently set in the preferences.
+     */
+    static LookupSource withCurrentSettings(SharedPreferences preferences, String uri) {
+        int keyColumn = 0;
+        try {
+            keyColumn = Math.max(0, Integer.parseInt(preferences.getString(PREF_KEY_COLUMN, "0")));
+        } catch (NumberFormatException e) {
+            Log.d(TAG, "Invalid key column, using the first");
+        }
+        return new LookupSource(uri, keyColumn, parseDelimiter(preferences.getString(PREF_DELIMITER, ",")));
+    }
+
+    /**
+     * @param value the delimiter itself, or \t or "tab" for a tab
+     * @return the delimiter, or a comma if the value cannot be used as one.
+     */
+    static char parseDelimiter(String value) {
+        if (value == null || value.isEmpty()) return DEFAULT_DELIMITER;
+        if ("\\t".equals(value) || "tab".equalsIgnoreCase(value)) return '\t';
+        char delimiter = value.charAt(0);
+        if (value.length() > 1 || delimiter >= 0x80 || delimiter == '"' || delimiter == '\n' || delimiter == '\r') {
+            Log.d(TAG, "Invalid delimiter " + value + ", using a comma");
+            return DEFAULT_DELIMITER;
+        }
+        return delimiter;
+    }
+
+    /**
+     * Sources are stored one per line as key column, delimiter code and URI separated by commas.
+     * @param sources
+     */
+    static String encode(List<LookupSource> sources) {
+        StringBuilder encoded = new StringBuilder();
+        for (LookupSource source : sources) {
+            if (encoded.length() > 0) encoded.append('\n');
+            encoded.append(source.keyColumn).append(',').append((int) source.delimiter).append(',').append(source.uri);
+        }
+        return encoded.toString();
+    }
+
+    static List<LookupSource> decode(String encoded) {
+        List<LookupSource> sources = new ArrayList<>();
+        if (encoded == null || encoded.isEmpty()) return sources;
+        for (String line : encoded.split("\n")) {
+            String[] parts = line.split(",", 3);
+            try {
+                int keyColumn = Integer.parseInt(parts[0]);
+                char delimiter = (char) Integer.parseInt(parts[1]);
+                if (keyColumn < 0 || parseDelimiter(String.valueOf(delimiter)) != delimiter)
+                    throw new NumberFormatException();
+                sources.add(new LookupSource(parts[2], keyColumn, delimiter));
+            } catch (NumberFormatException | ArrayIndexOutOfBoundsException e) {
+                Log.e(TAG, "Skipping invalid lookup source: " + line);
+            }
+        }
+        return sources;
+    }
+
+    CsvReader.Dialect getDialect() {
+        return delimiter == DEFAULT_DELIMITER ? CsvReader.Dialect.DEFAULT : new CsvReader.Dialect(delimiter, '"', false);
+    }
+
+    /**
+     * @return the file name, for showing which file a code was found in.
+     */
+    String getName() {
+        String path = Uri.parse(uri).getPath();
+        if (path == null) return uri;
+        return path.substring(path.lastIndexOf('/') + 1);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (!(o instanceof LookupSource)) return false;
+        LookupSource other = (LookupSource) o;
+        return keyColumn == other.keyColumn && delimiter == other.delimiter && uri.equals(other.uri);
+    }
+
+    @Override
+    public int hashCode() {
+        return 31 * (31 * uri.hashCode() + keyColumn) + delimiter;
+    }
+
+    @Override
+    public String toString() {
+        return getName() + " (column " + keyColumn + ", delimiter '" + (delimiter == '\t' ? "\\t" : delimiter) + "')";
+    }
+}
@@ -1,6 +1,7 @@
 package patrick.pfr.zebralabelprinter;
 
 import android.Manifest;
+import android.content.Context;
 import android.content.Intent;
 import android.content.pm.PackageManager;
 import android.os.Build;
@@ -13,13 +14,18 @@ import android.support.v4.view.ViewPager;
 import android.support.v7.app.AppCompatActivity;
 import android.support.v7.widget.Toolbar;
 import android.util.Log;
+import android.view.KeyEvent;
 import android.view.Menu;
 import android.view.MenuItem;
 
+import java.util.ArrayList;
+import java.util.List;
+
 /**
  * Author:      Patrick Snelgar
  * Name:        MainActivity.java
  * Description: Entry point of the application, configures the ViewPager and initializes the Fragments.
+ *              Only what the first frame needs is done in onCreate, the rest is deferred until it has been drawn.
  */
 public class MainActivity extends AppCompatActivity {
 
@@ -34,19 +40,27 @@ public class MainActivity extends AppCompatActivity {
     @Override
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
+        StartupTimer.mark("Main activity created");
         setContentView(R.layout.activity_main);
         Toolbar toolbar = (Toolbar) findViewById(R.id.toolbar);
         setSupportActionBar(toolbar);
 
         if(Build.VERSION.SDK_INT >= 23) {
+            // Asked for together, a second request made while the first dialog is showing is cancelled.
+            List<String> permissions = new ArrayList<>();
             if (ContextCompat.checkSelfPermission(this, Manifest.permission.BLUETOOTH)
                     != PackageManager.PERMISSION_GRANTED) {
-                ActivityCompat.requestPermissions(this, new String[]{Manifest.permission.BLUETOOTH, Manifest.permission.BLUETOOTH_ADMIN}, 66);
+                permissions.add(Manifest.permission.BLUETOOTH);
+                permissions.add(Manifest.permission.BLUETOOTH_ADMIN);
             }
 
             if (ContextCompat.checkSelfPermission(this, Manifest.permission.ACCESS_COARSE_LOCATION)
                     != PackageManager.PERMISSION_GRANTED) {
-                ActivityCompat.requestPermissions(this, new String[]{Manifest.permission.ACCESS_COARSE_LOCATION}, 67);
+                permissions.add(Manifest.permission.ACCESS_COARSE_LOCATION);
+            }
+
+            if (!permissions.isEmpty()) {
+                ActivityCompat.requestPermissions(this, permissions.toArray(new String[permissions.size()]), 66);
             }
         }
 
@@ -66,7 +80,29 @@ public class MainActivity extends AppCompatActivity {
         mTabLayout = (TabLayout) findViewById(R.id.tab_layout);
         mTabLayout.setupWithViewPager(mViewPager, true);
 
-        PreferenceManager.setDefaultValues(this, R.xml.preferences,false);
+        // Every preference is read with a default in code, so the stored defaults can wait for the first frame.
+        final Context context = getApplicationContext();
+        StartupTimer.afterFirstFrame(mViewPager, new Runnable() {
+            @Override
+            public void run() {
+                new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        PreferenceManager.setDefaultValues(context, R.xml.preferences, false);
+                        StartupTimer.mark("Default preferences set");
+                    }
+                }).start();
+            }
+        });
+    }
+
+    @Override
+    public boolean dispatchKeyEvent(KeyEvent event) {
+        // Codes typed by a hardware scanner are taken before the focused view can consume them. The pager keeps
+        // both pages resumed, so only while the scanner page is the one showing.
+        if (mFragmentAdapter.getItem(mViewPager.getCurrentItem()) == qrScannerFragment
+                && qrScannerFragment.onHardwareKeyEvent(event)) return true;
+        return super.dispatchKeyEvent(event);
     }
 
     @Override
@@ -90,6 +126,12 @@ public class MainActivity extends AppCompatActivity {
                     }
                 }).start();
                 return true;
+            case R.id.action_bulk_print:
+                startActivity(new Intent(this, BulkPrintActivity.class));
+                return true;
+            case R.id.action_stats:
+                startActivity(new Intent(this, StatsActivity.class));
+                return true;
             case R.id.action_help:
                 Log.d(TAG, "help needed!");
                 return true;
@@ -0,0 +1,52 @@
+package patrick.pfr.zebralabelprinter;
+
+import android.os.SystemClock;
+
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Author:      Patrick Snelgar
+ * Name:        MultiCodeCollector.java
+ * Description: Gathers the distinct codes seen over a short window of frames, so a tray or sheet of codes
+ *              can be handled in one scan. Codes not picked up in the first frame still make it into the group
+ *              as long as they are detected before the window closes.
+ */
+class MultiCodeCollector {
+
+    private final long mWindowMs;
+    private final Set<String> mCodes = new LinkedHashSet<>();
+    private long mWindowStart = -1;
+
+    /**
+     * @param windowMs time from the first code seen until the group is complete
+     */
+    MultiCodeCollector(long windowMs) {
+        mWindowMs = windowMs;
+    }
+
+    synchronized void add(String code) {
+        if (mCodes.isEmpty()) mWindowStart = SystemClock.elapsedRealtime();
+        mCodes.add(code);
+    }
+
+    /**
+     * @return the codes collected in order of first sighting once the window has closed, otherwise null.
+     *         The collector is empty again afterwards.
+     */
+    synchronized List<String> drainIfComplete() {
+        if (mCodes.isEmpty() || SystemClock.elapsedRealtime() - mWindowStart < mWindowMs) return null;
+
+        List<String> codes = new ArrayList<>(mCodes);
+        mCodes.clear();
+        mWindowStart = -1;
+        return codes;
+    }
+
+    synchronized void clear() {
+        mCodes.clear();
+        mWindowStart = -1;
+    }
+}
@@ -0,0 +1,72 @@
+package patrick.pfr.zebralabelprinter;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.preference.PreferenceManager;
+
+import java.util.Set;
+
+/**
+ * Author:      Patrick Snelgar
+ * Name:        PreferencePrintSettings.java
+ * Description: PrintSettings read from the printing preferences and the PrinterPool.
+ */
+class PreferencePrintSettings implements PrintSettings {
+
+    private static PreferencePrintSettings sInstance;
+
+    private final SharedPreferences mPreferences;
+    private final PrinterPool mPool;
+
+    static synchronized PreferencePrintSettings getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new PreferencePrintSettings(context.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    private PreferencePrintSettings(Context context) {
+        mPreferences = PreferenceManager.getDefaultSharedPreferences(context);
+        mPool = PrinterPool.getInstance(context);
+    }
+
+    @Override
+    public long getIdleTimeoutMs() {
+        return 1000L * getIntPreference(PrinterConnectionManager.PREF_IDLE_TIMEOUT,
+                PrinterConnectionManager.DEFAULT_IDLE_TIMEOUT_SECONDS);
+    }
+
+    @Override
+    public long getPrintTimeoutMs() {
+        return 1000L * getIntPreference(PrinterConnectionManager.PREF_PRINT_TIMEOUT,
+                PrinterConnectionManager.DEFAULT_PRINT_TIMEOUT_SECONDS);
+    }
+
+    @Override
+    public long getBatchWindowMs() {
+        return getIntPreference(PrintQueue.PREF_FLUSH_WINDOW, PrintQueue.DEFAULT_FLUSH_WINDOW_MS);
+    }
+
+    @Override
+    public int getMaxBatchBytes() {
+        return getIntPreference(PrintQueue.PREF_MAX_BATCH_BYTES, PrintQueue.DEFAULT_MAX_BATCH_BYTES);
+    }
+
+    @Override
+    public Set<String> getPoolMembers() {
+        return mPool.getMembers();
+    }
+
+    @Override
+    public PrinterSelector.Policy getPoolPolicy() {
+        return mPool.getPolicy();
+    }
+
+    private int getIntPreference(String key, int defaultValue) {
+        try {
+            return Integer.parseInt(mPreferences.getString(key, String.valueOf(defaultValue)));
+        } catch (NumberFormatException e) {
+            return defaultValue;
+        }
+    }
+}
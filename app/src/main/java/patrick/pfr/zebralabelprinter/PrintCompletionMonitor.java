@@ -0,0 +1,74 @@
+package patrick.pfr.zebralabelprinter;
+
+import android.os.SystemClock;
+
+import com.zebra.sdk.comm.Connection;
+import com.zebra.sdk.comm.ConnectionException;
+import com.zebra.sdk.printer.PrinterLanguage;
+import com.zebra.sdk.printer.PrinterStatus;
+import com.zebra.sdk.printer.ZebraPrinter;
+import com.zebra.sdk.printer.ZebraPrinterFactory;
+
+/**
+ * Author:      Patrick Snelgar
+ * Name:        PrintCompletionMonitor.java
+ * Description: Waits for the printer to acknowledge a format by polling its host status (~HS) over the
+ *              same connection the format was sent on. Returns as soon as the receive buffer is empty
+ *              and no labels remain in the batch, instead of sleeping for a fixed time.
+ */
+class PrintCompletionMonitor {
+
+    private static final long POLL_INTERVAL_MS = 50;
+
+    private PrintCompletionMonitor() {
+    }
+
+    /**
+     * Blocks until the printer has consumed everything sent to it, it reports an error, or the timeout passes.
+     * @param connection open connection the format was written to
+     * @param timeoutMs
+     */
+    static PrintResult awaitCompletion(Connection connection, long timeoutMs) {
+        ZebraPrinter printer = ZebraPrinterFactory.getInstance(PrinterLanguage.ZPL, connection);
+        long startTime = SystemClock.elapsedRealtime();
+        long deadline = SystemClock.elapsedRealtime() + timeoutMs;
+
+        try {
+            while (true) {
+                PrinterStatus status = printer.getCurrentStatus();
+                long now = SystemClock.elapsedRealtime();
+
+                String error = describeError(status);
+                if (error != null)
+                    return new PrintResult(PrintResult.Status.PRINTER_ERROR, error, now - startTime);
+
+                if (status.numberOfFormatsInReceiveBuffer == 0
+                        && status.labelsRemainingInBatch == 0
+                        && !status.isPartialFormatInProgress)
+                    return new PrintResult(PrintResult.Status.COMPLETED, null, now - startTime);
+
+                if (now + POLL_INTERVAL_MS > deadline)
+                    return new PrintResult(PrintResult.Status.TIMEOUT,
+                            status.numberOfFormatsInReceiveBuffer + " formats still buffered", now - startTime);
+
+                SystemClock.sleep(POLL_INTERVAL_MS);
+            }
+        } catch (ConnectionException e) {
+            return new PrintResult(PrintResult.Status.CONNECTION_ERROR,
+                    "Could not read printer status: " + e.getLocalizedMessage(),
+                    SystemClock.elapsedRealtime() - startTime);
+        }
+    }
+
+    /**
+     * @return a description of the condition stopping the printer, or null if it can print.
+     */
+    private static String describeError(PrinterStatus status) {
+        if (status.isHeadOpen) return "Printer head open";
+        if (status.isPaperOut) return "Printer out of paper";
+        if (status.isRibbonOut) return "Printer out of ribbon";
+        if (status.isPaused) return "Printer paused";
+        if (status.isHeadTooHot) return "Printer head too hot";
+        return null;
+    }
+}
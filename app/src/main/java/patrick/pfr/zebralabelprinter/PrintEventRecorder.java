@@ -0,0 +1,64 @@
+package patrick.pfr.zebralabelprinter;
+
+import android.content.Context;
+import android.os.Trace;
+
+/**
+ * Author:      Patrick Snelgar
+ * Name:        PrintEventRecorder.java
+ * Description: PrintListener feeding the print core's timings into LatencyStats, with a Trace section around
+ *              each connection stage, and keeping the PrinterRegistry up to date with printers seen and printed to.
+ */
+class PrintEventRecorder implements PrintListener {
+
+    private static PrintEventRecorder sInstance;
+
+    private final PrinterRegistry mRegistry;
+
+    static synchronized PrintEventRecorder getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new PrintEventRecorder(context.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    private PrintEventRecorder(Context context) {
+        mRegistry = PrinterRegistry.getInstance(context);
+    }
+
+    @Override
+    public void onStageStarted(Stage stage) {
+        Trace.beginSection(toStatsStage(stage).traceName);
+    }
+
+    @Override
+    public void onStageFinished(Stage stage, long durationNanos, boolean success) {
+        Trace.endSection();
+        if (success) LatencyStats.recordDuration(toStatsStage(stage), durationNanos);
+        else LatencyStats.recordError(toStatsStage(stage));
+    }
+
+    @Override
+    public void onJobDequeued(PrintJob job, long waitNanos) {
+        LatencyStats.recordDuration(LatencyStats.Stage.QUEUE, waitNanos);
+    }
+
+    @Override
+    public void onConnected(String address) {
+        mRegistry.recordSeen(address);
+    }
+
+    @Override
+    public void onPrinted(String address) {
+        mRegistry.recordPrint(address);
+    }
+
+    private static LatencyStats.Stage toStatsStage(Stage stage) {
+        switch (stage) {
+            case CONNECT: return LatencyStats.Stage.CONNECT;
+            case WRITE: return LatencyStats.Stage.WRITE;
+            case ACKNOWLEDGE: return LatencyStats.Stage.ACKNOWLEDGE;
+            default: return LatencyStats.Stage.CLOSE;
+        }
+    }
+}
@@ -0,0 +1,70 @@
+package patrick.pfr.zebralabelprinter;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.os.Handler;
+import android.os.Looper;
+import android.preference.PreferenceManager;
+
+import java.util.concurrent.Executor;
+
+/**
+ * Author:      Patrick Snelgar
+ * Name:        PrintQueue.java
+ * Description: The app's PrintDispatcher, sending over the PrinterConnectionManager's Bluetooth connections
+ *              and reporting every job back on the main thread. Batching and pool dispatch are done by the
+ *              dispatcher in the core module, see PrintDispatcher.
+ */
+class PrintQueue implements SharedPreferences.OnSharedPreferenceChangeListener {
+
+    static final String PREF_FLUSH_WINDOW = "print_batch_window";
+    static final int DEFAULT_FLUSH_WINDOW_MS = 100;
+    static final String PREF_MAX_BATCH_BYTES = "print_batch_max_bytes";
+    static final int DEFAULT_MAX_BATCH_BYTES = 16 * 1024;
+
+    private static PrintQueue sInstance;
+
+    private final PrintDispatcher mDispatcher;
+
+    static synchronized PrintQueue getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new PrintQueue(context.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    private PrintQueue(Context context) {
+        final Handler mainHandler = new Handler(Looper.getMainLooper());
+        Executor mainExecutor = new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                mainHandler.post(command);
+            }
+        };
+        mDispatcher = new PrintDispatcher(PrinterConnectionManager.getInstance(context).getConnections(),
+                PreferencePrintSettings.getInstance(context), PrintEventRecorder.getInstance(context), mainExecutor);
+        PreferenceManager.getDefaultSharedPreferences(context).registerOnSharedPreferenceChangeListener(this);
+    }
+
+    /**
+     * Adds a job to the end of the queue.
+     * @param job
+     */
+    void enqueue(PrintJob job) {
+        mDispatcher.enqueue(job);
+    }
+
+    /**
+     * @return the number of jobs waiting to be sent, not counting the batch currently printing.
+     */
+    int pendingCount() {
+        return mDispatcher.pendingCount();
+    }
+
+    @Override
+    public void onSharedPreferenceChanged(SharedPreferences sharedPreferences, String key) {
+        if (PrinterPool.PREF_POOL.equals(key)) {
+            mDispatcher.poolChanged();
+        }
+    }
+}
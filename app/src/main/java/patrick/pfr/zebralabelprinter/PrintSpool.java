@@ -0,0 +1,475 @@
+package patrick.pfr.zebralabelprinter;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.os.Handler;
+import android.os.Looper;
+import android.preference.PreferenceManager;
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Author:      Patrick Snelgar
+ * Name:        PrintSpool.java
+ * Description: Durable front end to the PrintQueue. Every label is written to an append-only journal in app storage
+ *              before it is queued, and each change of state (queued, sending, done, failed) is appended after it.
+ *              Labels that could not be sent are resent with exponential backoff until they print or reach the
+ *              retry limit. A label the printer received but did not acknowledge may have printed, so it is
+ *              reported as failed rather than resent. Labels that had not finished when the process died are
+ *              replayed from the journal on the next start, a label being sent at the time may print twice.
+ *              The journal is rewritten with only the unfinished labels at startup and whenever the spool empties.
+ */
+class PrintSpool {
+
+    private static final String TAG = PrintSpool.class.getSimpleName();
+    static final String PREF_RETRY_LIMIT = "print_retry_limit";
+    static final int DEFAULT_RETRY_LIMIT = 20;
+
+    private static final String SPOOL_DIRECTORY = "print_spool";
+    private static final String JOURNAL_NAME = "journal";
+
+    private static final byte RECORD_QUEUED = 1;
+    private static final byte RECORD_SENDING = 2;
+    private static final byte RECORD_DONE = 3;
+    private static final byte RECORD_FAILED = 4;
+    // Follows the queued record of a label that draws graphics.
+    private static final byte RECORD_GRAPHICS = 5;
+
+    private static final long INITIAL_BACKOFF_MS = 1000;
+    private static final long MAX_BACKOFF_MS = 60000;
+    // Done records are only dropped when the spool empties, unless the journal grows past this first.
+    private static final long COMPACT_THRESHOLD_BYTES = 1024 * 1024;
+
+    private enum State { QUEUED, SENDING, DONE, FAILED }
+
+    /**
+     * A label held by the spool until it has printed.
+     */
+    private static class Entry {
+        final long id;
+        // Null when the label goes to the printer pool.
+        final String printerAddress;
+        final String label;
+        final StoredFormat storedFormat;
+        final byte[] data;
+        // Set after construction when read back from the journal, as the graphics are a record of their own.
+        List<StoredGraphic> graphics = new ArrayList<>();
+        // The job as submitted, only set for labels submitted by this process as replayed labels have nobody left to tell.
+        final PrintJob submitted;
+        // When the label was submitted, or replayed after a restart.
+        final long submittedAt = LatencyStats.start();
+        State state = State.QUEUED;
+        int attempts;
+
+        Entry(long id, String printerAddress, String label, StoredFormat storedFormat, byte[] data, PrintJob submitted) {
+            this.id = id;
+            this.printerAddress = printerAddress;
+            this.label = label;
+            this.storedFormat = storedFormat;
+            this.data = data;
+            this.submitted = submitted;
+        }
+    }
+
+    private static PrintSpool sInstance;
+
+    private final SharedPreferences mPreferences;
+    private final PrintQueue mQueue;
+    private final File mJournalFile;
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+    // Journal writes, state changes and retries all happen on this thread.
+    private final ScheduledExecutorService mExecutor = Executors.newSingleThreadScheduledExecutor();
+
+    // Only accessed from mExecutor.
+    private final Map<Long, Entry> mEntries = new LinkedHashMap<>();
+    private final List<Entry> mWaiting = new ArrayList<>();
+    private DataOutputStream mJournal;
+    // The file under mJournal, synced after each record.
+    private FileOutputStream mJournalOut;
+    private long mNextId = 1;
+    private long mBackoffMs = INITIAL_BACKOFF_MS;
+    private ScheduledFuture<?> mRetry;
+
+    static synchronized PrintSpool getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new PrintSpool(context.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    private PrintSpool(Context context) {
+        mPreferences = PreferenceManager.getDefaultSharedPreferences(context);
+        mQueue = PrintQueue.getInstance(context);
+        File directory = new File(context.getFilesDir(), SPOOL_DIRECTORY);
+        if (!directory.exists() && !directory.mkdirs())
+            Log.e(TAG, "Could not create " + directory);
+        mJournalFile = new File(directory, JOURNAL_NAME);
+
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                replay();
+            }
+        });
+    }
+
+    /**
+     * Journals the job and queues it for printing. The job's buffer is copied and recycled straight away,
+     * its callback is called once the label has printed or the retry limit is reached.
+     * @param job
+     */
+    void submit(PrintJob job) {
+        final byte[] data = new byte[job.data.length()];
+        System.arraycopy(job.data.array(), 0, data, 0, data.length);
+        job.data.recycle();
+
+        final PrintJob submitted = job;
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                Entry entry = new Entry(mNextId++, submitted.printerAddress, submitted.label,
+                        submitted.storedFormat, data, submitted);
+                entry.graphics.addAll(submitted.graphics);
+                mEntries.put(entry.id, entry);
+                appendQueued(entry);
+                send(entry);
+            }
+        });
+    }
+
+    private void send(final Entry entry) {
+        entry.state = State.SENDING;
+        entry.attempts++;
+        appendState(entry, RECORD_SENDING, null);
+
+        mQueue.enqueue(new PrintJob(entry.printerAddress, LabelBuffer.wrap(entry.data), entry.label,
+                new PrintJob.Callback() {
+                    @Override
+                    public void onJobComplete(PrintJob job, final PrintResult result) {
+                        mExecutor.execute(new Runnable() {
+                            @Override
+                            public void run() {
+                                onAttemptComplete(entry, result);
+                            }
+                        });
+                    }
+                }, entry.storedFormat, entry.graphics));
+    }
+
+    private void onAttemptComplete(Entry entry, PrintResult result) {
+        if (result.isSuccess()) {
+            entry.state = State.DONE;
+            appendState(entry, RECORD_DONE, null);
+            LatencyStats.record(LatencyStats.Stage.PRINT, entry.submittedAt);
+            mEntries.remove(entry.id);
+            // The printer is back, send anything waiting on it now rather than after the backoff.
+            mBackoffMs = INITIAL_BACKOFF_MS;
+            if (!mWaiting.isEmpty()) retryWaiting();
+            report(entry, result);
+            compactIfIdle();
+            return;
+        }
+
+        // Once the printer has the data a timeout or error does not mean the label did not print, leave it to the user.
+        boolean retry = !result.sent && entry.attempts < getRetryLimit();
+        entry.state = retry ? State.QUEUED : State.FAILED;
+        appendState(entry, RECORD_FAILED, result);
+        if (!retry) {
+            LatencyStats.recordError(LatencyStats.Stage.PRINT);
+            if (result.sent) {
+                Log.e(TAG, "Not resending " + entry.label + ", the printer received it: " + result);
+            } else {
+                Log.e(TAG, "Giving up on " + entry.label + " after " + entry.attempts + " attempts: " + result);
+            }
+            mEntries.remove(entry.id);
+            report(entry, result);
+            compactIfIdle();
+            return;
+        }
+
+        Log.d(TAG, "Attempt " + entry.attempts + " of " + entry.label + " failed, retrying in " + mBackoffMs + "ms");
+        mWaiting.add(entry);
+        scheduleRetry();
+    }
+
+    /**
+     * One timer covers every waiting label, they usually failed for the same reason, e.g. the printer is out of range.
+     */
+    private void scheduleRetry() {
+        if (mRetry != null && !mRetry.isDone()) return;
+        mRetry = mExecutor.schedule(new Runnable() {
+            @Override
+            public void run() {
+                mBackoffMs = Math.min(mBackoffMs * 2, MAX_BACKOFF_MS);
+                retryWaiting();
+            }
+        }, mBackoffMs, TimeUnit.MILLISECONDS);
+    }
+
+    private void retryWaiting() {
+        if (mRetry != null) {
+            mRetry.cancel(false);
+            mRetry = null;
+        }
+        // Resend in the order the labels were scanned.
+        Collections.sort(mWaiting, new Comparator<Entry>() {
+            @Override
+            public int compare(Entry a, Entry b) {
+                return a.id < b.id ? -1 : (a.id == b.id ? 0 : 1);
+            }
+        });
+        List<Entry> waiting = new ArrayList<>(mWaiting);
+        mWaiting.clear();
+        for (Entry entry : waiting) {
+            send(entry);
+        }
+    }
+
+    private void report(Entry entry, final PrintResult result) {
+        final PrintJob job = entry.submitted;
+        if (job == null || job.callback == null) return;
+        mMainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                job.callback.onJobComplete(job, result);
+            }
+        });
+    }
+
+    /**
+     * Reads the journal left by the previous process, rewrites it with only the unfinished labels and sends them.
+     */
+    private void replay() {
+        List<Entry> unfinished = readJournal();
+        try {
+            rewriteJournal(unfinished);
+        } catch (IOException e) {
+            Log.e(TAG, "Could not rewrite print journal: " + e.getLocalizedMessage());
+        }
+        if (!unfinished.isEmpty()) Log.d(TAG, "Replaying " + unfinished.size() + " unfinished labels");
+        for (Entry entry : unfinished) {
+            mEntries.put(entry.id, entry);
+            send(entry);
+        }
+    }
+
+    private List<Entry> readJournal() {
+        Map<Long, Entry> entries = new LinkedHashMap<>();
+        if (!mJournalFile.exists()) return new ArrayList<>();
+
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(mJournalFile)));
+            while (true) {
+                byte type = in.readByte();
+                long id = in.readLong();
+                mNextId = Math.max(mNextId, id + 1);
+                if (type == RECORD_QUEUED) {
+                    String address = in.readUTF();
+                    String label = in.readUTF();
+                    StoredFormat storedFormat = null;
+                    if (in.readBoolean()) {
+                        String name = in.readUTF();
+                        storedFormat = StoredFormat.fromDefinition(name, readBytes(in));
+                    }
+                    byte[] data = readBytes(in);
+                    Entry entry = new Entry(id, address.isEmpty() ? null : address, label, storedFormat, data, null);
+                    entry.attempts = in.readInt();
+                    entries.put(id, entry);
+                    continue;
+                }
+
+                Entry entry = entries.get(id);
+                switch (type) {
+                    case RECORD_SENDING:
+                        int attempts = in.readInt();
+                        if (entry != null) entry.attempts = attempts;
+                        break;
+                    case RECORD_DONE:
+                        entries.remove(id);
+                        break;
+                    case RECORD_GRAPHICS:
+                        List<StoredGraphic> graphics = new ArrayList<>();
+                        int count = in.readInt();
+                        for (int i = 0; i < count; i++) {
+                            String name = in.readUTF();
+                            graphics.add(StoredGraphic.fromDefinition(name, readBytes(in)));
+                        }
+                        if (entry != null) entry.graphics = graphics;
+                        break;
+                    case RECORD_FAILED:
+                        in.readInt();
+                        boolean retry = in.readBoolean();
+                        in.readUTF();
+                        if (!retry) entries.remove(id);
+                        break;
+                    default:
+                        throw new IOException("Unknown record " + type);
+                }
+            }
+        } catch (EOFException e) {
+            // End of the journal, or a record cut short when the process died, which is ignored.
+        } catch (IOException e) {
+            Log.e(TAG, "Error reading print journal: " + e.getLocalizedMessage());
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                    Log.d(TAG, "Error closing print journal: " + e.getLocalizedMessage());
+                }
+            }
+        }
+        return new ArrayList<>(entries.values());
+    }
+
+    /**
+     * Replaces the journal with queued records for just the given entries, and reopens it for appending.
+     * @param entries
+     */
+    private void rewriteJournal(List<Entry> entries) throws IOException {
+        closeJournal();
+        File tmp = new File(mJournalFile.getPath() + ".tmp");
+        openJournal(tmp, false);
+        for (Entry entry : entries) {
+            writeQueued(entry);
+        }
+        syncJournal();
+        closeJournal();
+        if (!tmp.renameTo(mJournalFile)) {
+            tmp.delete();
+            throw new IOException("Could not replace " + mJournalFile);
+        }
+        openJournal(mJournalFile, true);
+    }
+
+    private void compactIfIdle() {
+        if (!mEntries.isEmpty() && mJournalFile.length() < COMPACT_THRESHOLD_BYTES) return;
+        try {
+            rewriteJournal(new ArrayList<>(mEntries.values()));
+        } catch (IOException e) {
+            Log.e(TAG, "Could not compact print journal: " + e.getLocalizedMessage());
+        }
+    }
+
+    private void appendQueued(Entry entry) {
+        try {
+            ensureJournal();
+            writeQueued(entry);
+            // Synced per record so a label survives the process being killed, or the device losing power,
+            // straight after the scan.
+            syncJournal();
+        } catch (IOException e) {
+            Log.e(TAG, "Could not journal " + entry.label + ": " + e.getLocalizedMessage());
+        }
+    }
+
+    private void writeQueued(Entry entry) throws IOException {
+        mJournal.writeByte(RECORD_QUEUED);
+        mJournal.writeLong(entry.id);
+        mJournal.writeUTF(entry.printerAddress == null ? "" : entry.printerAddress);
+        mJournal.writeUTF(entry.label);
+        mJournal.writeBoolean(entry.storedFormat != null);
+        if (entry.storedFormat != null) {
+            mJournal.writeUTF(entry.storedFormat.name);
+            writeBytes(entry.storedFormat.definition);
+        }
+        writeBytes(entry.data);
+        mJournal.writeInt(entry.attempts);
+        if (entry.graphics.isEmpty()) return;
+
+        mJournal.writeByte(RECORD_GRAPHICS);
+        mJournal.writeLong(entry.id);
+        mJournal.writeInt(entry.graphics.size());
+        for (StoredGraphic graphic : entry.graphics) {
+            mJournal.writeUTF(graphic.name);
+            writeBytes(graphic.definition);
+        }
+    }
+
+    private void appendState(Entry entry, byte type, PrintResult result) {
+        try {
+            ensureJournal();
+            mJournal.writeByte(type);
+            mJournal.writeLong(entry.id);
+            if (type == RECORD_SENDING) {
+                mJournal.writeInt(entry.attempts);
+            } else if (type == RECORD_FAILED) {
+                mJournal.writeInt(entry.attempts);
+                mJournal.writeBoolean(entry.state != State.FAILED);
+                mJournal.writeUTF(result.message == null ? "" : result.message);
+            }
+            syncJournal();
+        } catch (IOException e) {
+            Log.e(TAG, "Could not journal state of " + entry.label + ": " + e.getLocalizedMessage());
+        }
+    }
+
+    private void ensureJournal() throws IOException {
+        if (mJournal == null) openJournal(mJournalFile, true);
+    }
+
+    private void openJournal(File file, boolean append) throws IOException {
+        mJournalOut = new FileOutputStream(file, append);
+        mJournal = new DataOutputStream(new BufferedOutputStream(mJournalOut));
+    }
+
+    /**
+     * Writes the buffered records through to the storage, flush() alone leaves them in the page cache.
+     */
+    private void syncJournal() throws IOException {
+        mJournal.flush();
+        mJournalOut.getFD().sync();
+    }
+
+    private void closeJournal() {
+        if (mJournal == null) return;
+        try {
+            mJournal.close();
+        } catch (IOException e) {
+            Log.d(TAG, "Error closing print journal: " + e.getLocalizedMessage());
+        }
+        mJournal = null;
+        mJournalOut = null;
+    }
+
+    private void writeBytes(byte[] bytes) throws IOException {
+        mJournal.writeInt(bytes.length);
+        mJournal.write(bytes);
+    }
+
+    private static byte[] readBytes(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0 || length > COMPACT_THRESHOLD_BYTES) throw new IOException("Corrupt record length " + length);
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return bytes;
+    }
+
+    private int getRetryLimit() {
+        try {
+            return Integer.parseInt(mPreferences.getString(PREF_RETRY_LIMIT, String.valueOf(DEFAULT_RETRY_LIMIT)));
+        } catch (NumberFormatException e) {
+            return DEFAULT_RETRY_LIMIT;
+        }
+    }
+}
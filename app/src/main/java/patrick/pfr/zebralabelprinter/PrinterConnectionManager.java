@@ -0,0 +1,77 @@
+package patrick.pfr.zebralabelprinter;
+
+import android.content.Context;
+
+import java.util.Collection;
+import java.util.concurrent.Future;
+
+/**
+ * Author:      Patrick Snelgar
+ * Name:        PrinterConnectionManager.java
+ * Description: Keeps a Bluetooth connection open to each printer between prints,
+ *              so only the first label pays for the RFCOMM connect. Connections are closed after
+ *              the idle timeout set in the preferences, and reopened transparently if a write fails.
+ *              Each print waits for the printer to acknowledge the format before the next one is sent.
+ *              The connections themselves are the core module's PrinterConnections over a BluetoothPrintTransport.
+ */
+class PrinterConnectionManager {
+
+    static final String PREF_IDLE_TIMEOUT = "printer_idle_timeout";
+    static final int DEFAULT_IDLE_TIMEOUT_SECONDS = 60;
+    static final String PREF_PRINT_TIMEOUT = "print_timeout";
+    static final int DEFAULT_PRINT_TIMEOUT_SECONDS = 10;
+
+    private static PrinterConnectionManager sInstance;
+
+    private final PrinterConnections mConnections;
+
+    static synchronized PrinterConnectionManager getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new PrinterConnectionManager(context.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    private PrinterConnectionManager(Context context) {
+        mConnections = new PrinterConnections(new BluetoothPrintTransport(),
+                PreferencePrintSettings.getInstance(context), PrintEventRecorder.getInstance(context),
+                PrinterGraphicsRegistry.getInstance(context));
+    }
+
+    /**
+     * Opens the connection ahead of time, used when a barcode is detected so that by the time
+     * the user presses print only the write is left to do. Also used at startup to check the
+     * last used printer is reachable without running a discovery.
+     * @param printerAddress
+     * @return whether the connection could be opened
+     */
+    Future<Boolean> prewarm(String printerAddress) {
+        return mConnections.prewarm(printerAddress);
+    }
+
+    /**
+     * Sends the data to the printer over the kept-alive connection and waits for the printer to acknowledge it.
+     * If the write fails the connection is reopened and the write retried once.
+     * @param printerAddress
+     * @param data
+     * @param labels number of labels in the data, the acknowledge timeout is allowed for each
+     * @param storedFormats layouts recalled by the data, downloaded first unless already sent on this connection
+     * @param graphics graphics drawn by the data, downloaded first unless the printer already holds them
+     * @return the acknowledged result, available once the printer has consumed the data
+     */
+    Future<PrintResult> print(String printerAddress, byte[] data, int labels, Collection<StoredFormat> storedFormats,
+                              Collection<StoredGraphic> graphics) {
+        return mConnections.print(printerAddress, data, labels, storedFormats, graphics);
+    }
+
+    /**
+     * Closes every connection now rather than waiting for the idle timeout.
+     */
+    void disconnect() {
+        mConnections.disconnect();
+    }
+
+    PrinterConnections getConnections() {
+        return mConnections;
+    }
+}
@@ -0,0 +1,170 @@
+package patrick.pfr.zebralabelprinter;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+
+import com.zebra.sdk.printer.discovery.DiscoveredPrinter;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Author:      Patrick Snelgar
+ * Name:        PrinterDiscoveryModel.java
+ * Description: The list of printers shown by the BluetoothFragment, keyed by MAC address.
+ *              Sightings can be reported from any thread, repeated sightings of the same printer are merged
+ *              while they wait and are applied to the list on the main thread at most every PUBLISH_INTERVAL_MS,
+ *              with a single change notification per batch. The list itself is only read or changed on the main thread.
+ */
+class PrinterDiscoveryModel {
+
+    private static final long PUBLISH_INTERVAL_MS = 250;
+    private static final String FRIENDLY_NAME = "FRIENDLY_NAME";
+
+    /**
+     * Called on the main thread after a batch of sightings changed the list.
+     */
+    interface Listener {
+        void onPrintersChanged();
+    }
+
+    /**
+     * A printer in the list. Everything a row displays is resolved when the sighting is merged,
+     * so binding a row only reads fields.
+     */
+    static class PrinterItem {
+        final long id;
+        final String address;
+        String friendlyName;
+        int sightings;
+        long lastSeen;
+
+        PrinterItem(long id, String address) {
+            this.id = id;
+            this.address = address;
+        }
+    }
+
+    // Sighting waiting to be applied, merged with any later sightings of the same address.
+    private static class Sighting {
+        String friendlyName;
+        int count;
+    }
+
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+
+    // Guarded by itself, written by the discovery and connection threads.
+    private final Map<String, Sighting> mPending = new LinkedHashMap<>();
+    private boolean mPublishScheduled = false;
+
+    // Read by report() to rate limit publishing, only written on the main thread.
+    private volatile long mLastPublish = 0;
+
+    // Only accessed on the main thread.
+    private final List<PrinterItem> mItems = new ArrayList<>();
+    private final Map<String, PrinterItem> mItemsByAddress = new HashMap<>();
+    private long mNextId = 0;
+    private Listener mListener;
+
+    void setListener(Listener listener) {
+        mListener = listener;
+    }
+
+    /**
+     * Reports a printer found by discovery, can be called from any thread.
+     * @param printer
+     */
+    void report(DiscoveredPrinter printer) {
+        report(printer.address, printer.getDiscoveryDataMap().get(FRIENDLY_NAME));
+    }
+
+    /**
+     * Reports a printer by address, can be called from any thread.
+     * @param address
+     * @param friendlyName may be null if unknown, an already known name is then kept
+     */
+    void report(String address, String friendlyName) {
+        synchronized (mPending) {
+            Sighting sighting = mPending.get(address);
+            if (sighting == null) {
+                sighting = new Sighting();
+                mPending.put(address, sighting);
+            }
+            if (friendlyName != null) sighting.friendlyName = friendlyName;
+            sighting.count++;
+
+            if (!mPublishScheduled) {
+                mPublishScheduled = true;
+                long delay = mLastPublish + PUBLISH_INTERVAL_MS - SystemClock.uptimeMillis();
+                mMainHandler.postDelayed(mPublish, Math.max(0, delay));
+            }
+        }
+    }
+
+    int size() {
+        return mItems.size();
+    }
+
+    PrinterItem get(int position) {
+        return mItems.get(position);
+    }
+
+    /**
+     * Drops any pending sightings and stops notifying the listener.
+     */
+    void release() {
+        synchronized (mPending) {
+            mPending.clear();
+            mPublishScheduled = false;
+        }
+        mMainHandler.removeCallbacks(mPublish);
+        mListener = null;
+    }
+
+    private final Runnable mPublish = new Runnable() {
+        @Override
+        public void run() {
+            Map<String, Sighting> batch;
+            synchronized (mPending) {
+                if (!mPublishScheduled) return;
+                batch = new LinkedHashMap<>(mPending);
+                mPending.clear();
+                mPublishScheduled = false;
+            }
+            mLastPublish = SystemClock.uptimeMillis();
+
+            boolean changed = false;
+            for (Map.Entry<String, Sighting> entry : batch.entrySet()) {
+                changed |= apply(entry.getKey(), entry.getValue());
+            }
+            if (changed && mListener != null) {
+                mListener.onPrintersChanged();
+            }
+        }
+    };
+
+    /**
+     * @return whether the change is visible in the list.
+     */
+    private boolean apply(String address, Sighting sighting) {
+        PrinterItem item = mItemsByAddress.get(address);
+        boolean changed = false;
+        if (item == null) {
+            item = new PrinterItem(mNextId++, address);
+            mItemsByAddress.put(address, item);
+            mItems.add(item);
+            changed = true;
+        }
+        if (sighting.friendlyName != null && !sighting.friendlyName.equals(item.friendlyName)) {
+            item.friendlyName = sighting.friendlyName;
+            changed = true;
+        }
+        item.sightings += sighting.count;
+        item.lastSeen = mLastPublish;
+        return changed;
+    }
+}
@@ -0,0 +1,78 @@
+package patrick.pfr.zebralabelprinter;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.util.Log;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Author:      Patrick Snelgar
+ * Name:        PrinterGraphicsRegistry.java
+ * Description: Persistent record of the StoredGraphics each printer holds in flash, so a logo is downloaded to
+ *              a printer once rather than on every connection or after a restart of the app. If a printer's
+ *              flash is cleared the registry can be forgotten from the preferences to send the graphics again.
+ */
+class PrinterGraphicsRegistry implements GraphicRegistry {
+
+    private static final String TAG = PrinterGraphicsRegistry.class.getSimpleName();
+    private static final String REGISTRY_NAME = "printer_graphics";
+    static final String PREF_FORGET_GRAPHICS = "forget_printer_graphics";
+
+    private static PrinterGraphicsRegistry sInstance;
+
+    private final SharedPreferences mStore;
+    // Graphic names by printer address, guarded by this.
+    private final Map<String, Set<String>> mGraphics = new HashMap<>();
+
+    static synchronized PrinterGraphicsRegistry getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new PrinterGraphicsRegistry(context.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    private PrinterGraphicsRegistry(Context context) {
+        mStore = context.getSharedPreferences(REGISTRY_NAME, Context.MODE_PRIVATE);
+        for (Map.Entry<String, ?> stored : mStore.getAll().entrySet()) {
+            if (stored.getValue() instanceof Set) {
+                Set<String> names = new HashSet<>();
+                for (Object name : (Set<?>) stored.getValue()) {
+                    names.add((String) name);
+                }
+                mGraphics.put(stored.getKey(), names);
+            }
+        }
+    }
+
+    @Override
+    public synchronized boolean isStored(String printerAddress, String graphicName) {
+        Set<String> names = mGraphics.get(printerAddress);
+        return names != null && names.contains(graphicName);
+    }
+
+    @Override
+    public synchronized void markStored(String printerAddress, String graphicName) {
+        Set<String> names = mGraphics.get(printerAddress);
+        if (names == null) {
+            names = new HashSet<>();
+            mGraphics.put(printerAddress, names);
+        }
+        if (names.add(graphicName)) {
+            Log.d(TAG, "Stored " + graphicName + " on " + printerAddress);
+            // The preferences keep the set they are given, so hand them a copy.
+            mStore.edit().putStringSet(printerAddress, new HashSet<>(names)).apply();
+        }
+    }
+
+    /**
+     * Forgets every graphic, so each is downloaded again on the next print to each printer.
+     */
+    synchronized void clear() {
+        mGraphics.clear();
+        mStore.edit().clear().apply();
+    }
+}
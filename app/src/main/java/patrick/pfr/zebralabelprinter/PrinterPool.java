@@ -0,0 +1,96 @@
+package patrick.pfr.zebralabelprinter;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.preference.PreferenceManager;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Author:      Patrick Snelgar
+ * Name:        PrinterPool.java
+ * Description: The set of printers selected in the discovery list to share the print load, and the policy used
+ *              to pick one for each batch. The picking itself is done by the core module's PrinterSelector.
+ */
+class PrinterPool implements SharedPreferences.OnSharedPreferenceChangeListener {
+
+    static final String PREF_POOL = "printer_pool";
+    static final String PREF_POLICY = "print_pool_policy";
+    static final String POLICY_ROUND_ROBIN = "round_robin";
+    static final String POLICY_LEAST_OUTSTANDING = "least_outstanding";
+
+    private static PrinterPool sInstance;
+
+    private final SharedPreferences mPreferences;
+
+    // Replaced rather than modified so it can be read without locking, e.g. when binding list rows.
+    private volatile Set<String> mMembers;
+
+    static synchronized PrinterPool getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new PrinterPool(context.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    private PrinterPool(Context context) {
+        mPreferences = PreferenceManager.getDefaultSharedPreferences(context);
+        mMembers = readMembers();
+        mPreferences.registerOnSharedPreferenceChangeListener(this);
+    }
+
+    /**
+     * @return true if any printers have been added to the pool, in which case labels go to the pool
+     * rather than the single selected printer.
+     */
+    boolean isEnabled() {
+        return !mMembers.isEmpty();
+    }
+
+    /**
+     * @return the policy chosen in the preferences.
+     */
+    PrinterSelector.Policy getPolicy() {
+        return POLICY_LEAST_OUTSTANDING.equals(mPreferences.getString(PREF_POLICY, POLICY_ROUND_ROBIN))
+                ? PrinterSelector.Policy.LEAST_OUTSTANDING : PrinterSelector.Policy.ROUND_ROBIN;
+    }
+
+    boolean isMember(String address) {
+        return mMembers.contains(address);
+    }
+
+    Set<String> getMembers() {
+        return mMembers;
+    }
+
+    /**
+     * Adds the printer to the pool, or removes it if it is already a member.
+     * @param address
+     * @return true if the printer is now a member.
+     */
+    synchronized boolean toggle(String address) {
+        Set<String> members = new HashSet<>(mMembers);
+        boolean added = members.add(address);
+        if (!added) members.remove(address);
+        mMembers = Collections.unmodifiableSet(members);
+        mPreferences.edit().putStringSet(PREF_POOL, new HashSet<>(members)).apply();
+        return added;
+    }
+
+    @Override
+    public void onSharedPreferenceChanged(SharedPreferences sharedPreferences, String key) {
+        if (PREF_POOL.equals(key)) {
+            synchronized (this) {
+                mMembers = readMembers();
+            }
+        }
+    }
+
+    private Set<String> readMembers() {
+        Set<String> stored = mPreferences.getStringSet(PREF_POOL, null);
+        if (stored == null) return Collections.emptySet();
+        return Collections.unmodifiableSet(new HashSet<>(stored));
+    }
+}
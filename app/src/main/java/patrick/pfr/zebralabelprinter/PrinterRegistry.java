@@ -0,0 +1,218 @@
+package patrick.pfr.zebralabelprinter;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.preference.PreferenceManager;
+import android.util.Log;
+
+import com.zebra.sdk.printer.discovery.DiscoveredPrinter;
+import com.zebra.sdk.printer.discovery.DiscoveredPrinterBluetooth;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Author:      Patrick Snelgar
+ * Name:        PrinterRegistry.java
+ * Description: Persistent cache of the printers found by discovery, so the list can be shown straight away
+ *              at startup instead of after a full Bluetooth scan. Each entry records when the printer was last
+ *              seen and last printed to, entries not seen within the cache lifetime expire.
+ */
+class PrinterRegistry {
+
+    private static final String TAG = PrinterRegistry.class.getSimpleName();
+    private static final String REGISTRY_NAME = "printer_registry";
+    static final String PREF_CACHE_HOURS = "printer_cache_hours";
+    static final int DEFAULT_CACHE_HOURS = 24;
+
+    private static final String KEY_NAME = "name";
+    private static final String KEY_DISCOVERY = "discovery";
+    private static final String KEY_LAST_SEEN = "last_seen";
+    private static final String KEY_LAST_PRINT = "last_print";
+
+    /**
+     * A cached printer.
+     */
+    static class Entry {
+        final String address;
+        final String friendlyName;
+        final Map<String, String> discoveryData;
+        // Wall clock times, as they need to survive restarts.
+        final long lastSeen;
+        final long lastPrint;
+
+        Entry(String address, String friendlyName, Map<String, String> discoveryData, long lastSeen, long lastPrint) {
+            this.address = address;
+            this.friendlyName = friendlyName;
+            this.discoveryData = discoveryData;
+            this.lastSeen = lastSeen;
+            this.lastPrint = lastPrint;
+        }
+
+        DiscoveredPrinter toDiscoveredPrinter() {
+            return new DiscoveredPrinterBluetooth(address, friendlyName);
+        }
+    }
+
+    private static PrinterRegistry sInstance;
+
+    private final SharedPreferences mStore;
+    private final SharedPreferences mPreferences;
+    private final Map<String, Entry> mEntries = new HashMap<>();
+
+    static synchronized PrinterRegistry getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new PrinterRegistry(context.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    private PrinterRegistry(Context context) {
+        mStore = context.getSharedPreferences(REGISTRY_NAME, Context.MODE_PRIVATE);
+        mPreferences = PreferenceManager.getDefaultSharedPreferences(context);
+        load();
+    }
+
+    /**
+     * @return printers seen within the cache lifetime, the most recently printed to first.
+     */
+    synchronized List<Entry> getPrinters() {
+        long cutoff = System.currentTimeMillis() - getCacheLifetimeMs();
+        List<Entry> printers = new ArrayList<>();
+        for (Entry entry : mEntries.values()) {
+            if (entry.lastSeen >= cutoff) printers.add(entry);
+        }
+        Collections.sort(printers, new Comparator<Entry>() {
+            @Override
+            public int compare(Entry a, Entry b) {
+                if (a.lastPrint != b.lastPrint) return a.lastPrint > b.lastPrint ? -1 : 1;
+                return a.address.compareTo(b.address);
+            }
+        });
+        return printers;
+    }
+
+    synchronized Entry get(String address) {
+        return mEntries.get(address);
+    }
+
+    /**
+     * @return true if nothing is cached or an entry has expired, in which case a full discovery is worthwhile.
+     */
+    synchronized boolean needsDiscovery() {
+        if (mEntries.isEmpty()) return true;
+        long cutoff = System.currentTimeMillis() - getCacheLifetimeMs();
+        for (Entry entry : mEntries.values()) {
+            if (entry.lastSeen < cutoff) return true;
+        }
+        return false;
+    }
+
+    /**
+     * Records a printer reported by discovery.
+     * @param printer
+     */
+    synchronized void recordDiscovered(DiscoveredPrinter printer) {
+        Map<String, String> discoveryData = new HashMap<>(printer.getDiscoveryDataMap());
+        Entry previous = mEntries.get(printer.address);
+        put(new Entry(printer.address, discoveryData.get("FRIENDLY_NAME"), discoveryData,
+                System.currentTimeMillis(), previous != null ? previous.lastPrint : 0));
+    }
+
+    /**
+     * Records that the printer was reached directly, without discovery.
+     * @param address
+     */
+    synchronized void recordSeen(String address) {
+        Entry previous = mEntries.get(address);
+        if (previous == null) {
+            put(new Entry(address, null, new HashMap<String, String>(), System.currentTimeMillis(), 0));
+        } else {
+            put(new Entry(address, previous.friendlyName, previous.discoveryData, System.currentTimeMillis(), previous.lastPrint));
+        }
+    }
+
+    /**
+     * Records a successful print, which also counts as the printer being seen.
+     * @param address
+     */
+    synchronized void recordPrint(String address) {
+        Entry previous = mEntries.get(address);
+        long now = System.currentTimeMillis();
+        if (previous == null) {
+            put(new Entry(address, null, new HashMap<String, String>(), now, now));
+        } else {
+            put(new Entry(address, previous.friendlyName, previous.discoveryData, now, now));
+        }
+    }
+
+    /**
+     * Drops entries that have expired, called once a full discovery has finished.
+     */
+    synchronized void removeExpired() {
+        long cutoff = System.currentTimeMillis() - getCacheLifetimeMs();
+        SharedPreferences.Editor editor = mStore.edit();
+        Iterator<Entry> iterator = mEntries.values().iterator();
+        while (iterator.hasNext()) {
+            Entry entry = iterator.next();
+            if (entry.lastSeen < cutoff) {
+                iterator.remove();
+                editor.remove(entry.address);
+            }
+        }
+        editor.apply();
+    }
+
+    private void put(Entry entry) {
+        mEntries.put(entry.address, entry);
+        try {
+            JSONObject json = new JSONObject();
+            json.put(KEY_NAME, entry.friendlyName);
+            json.put(KEY_DISCOVERY, new JSONObject(entry.discoveryData));
+            json.put(KEY_LAST_SEEN, entry.lastSeen);
+            json.put(KEY_LAST_PRINT, entry.lastPrint);
+            mStore.edit().putString(entry.address, json.toString()).apply();
+        } catch (JSONException e) {
+            Log.e(TAG, "Could not save printer " + entry.address + ": " + e.getLocalizedMessage());
+        }
+    }
+
+    private void load() {
+        for (Map.Entry<String, ?> stored : mStore.getAll().entrySet()) {
+            try {
+                JSONObject json = new JSONObject((String) stored.getValue());
+                Map<String, String> discoveryData = new HashMap<>();
+                JSONObject discovery = json.optJSONObject(KEY_DISCOVERY);
+                if (discovery != null) {
+                    Iterator<String> keys = discovery.keys();
+                    while (keys.hasNext()) {
+                        String key = keys.next();
+                        discoveryData.put(key, discovery.getString(key));
+                    }
+                }
+                String name = json.isNull(KEY_NAME) ? null : json.getString(KEY_NAME);
+                mEntries.put(stored.getKey(), new Entry(stored.getKey(), name, discoveryData,
+                        json.getLong(KEY_LAST_SEEN), json.getLong(KEY_LAST_PRINT)));
+            } catch (JSONException | ClassCastException e) {
+                Log.e(TAG, "Dropping unreadable printer entry " + stored.getKey());
+                mStore.edit().remove(stored.getKey()).apply();
+            }
+        }
+    }
+
+    private long getCacheLifetimeMs() {
+        try {
+            return 3600000L * Integer.parseInt(mPreferences.getString(PREF_CACHE_HOURS, String.valueOf(DEFAULT_CACHE_HOURS)));
+        } catch (NumberFormatException e) {
+            return 3600000L * DEFAULT_CACHE_HOURS;
+        }
+    }
+}
@@ -1,17 +1,21 @@
 package patrick.pfr.zebralabelprinter;
 
 import android.Manifest;
+import android.content.Context;
+import android.content.SharedPreferences;
 import android.content.pm.PackageManager;
-import android.net.Uri;
 import android.preference.PreferenceManager;
 import android.support.annotation.Nullable;
 import android.support.design.widget.Snackbar;
 import android.support.v4.app.ActivityCompat;
 import android.support.v4.app.Fragment;
 import android.os.Bundle;
+import android.os.SystemClock;
 import android.util.Log;
+import android.util.SparseArray;
 import android.view.KeyEvent;
 import android.view.LayoutInflater;
+import android.view.SurfaceHolder;
 import android.view.SurfaceView;
 import android.view.View;
 import android.view.ViewGroup;
@@ -20,19 +24,13 @@ import android.widget.Button;
 import android.widget.EditText;
 import android.widget.TextView;
 
-import com.google.android.gms.vision.CameraSource;
 import com.google.android.gms.vision.Detector;
 import com.google.android.gms.vision.barcode.Barcode;
 import com.google.android.gms.vision.barcode.BarcodeDetector;
-import com.zebra.sdk.comm.BluetoothConnection;
-import com.zebra.sdk.comm.BluetoothConnectionInsecure;
-import com.zebra.sdk.comm.Connection;
 
-import java.io.BufferedReader;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.InputStreamReader;
-import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.List;
 
 /**
  * Author:      Patrick Snelgar
@@ -40,21 +38,57 @@ import java.io.UnsupportedEncodingException;
  * Description: Uses the Mobile Vision API to scan for QR codes from a camera feed.
  *              Once a code is found it then performs a lookup to a user specified csv file,
  *              if a match is found the user is then presented with an option to print a label.
+ *              In continuous mode the camera keeps running and every new code found is printed automatically.
+ *              In multi-code mode every code in view is collected and looked up and printed as one group.
+ *              With hardware scanner input on, codes typed by a built-in scanner go through the same lookup and print path.
+ *              The detector loads its model when built, so it is built on a background thread after the first frame
+ *              rather than while the app is starting, or on the first scan if that comes sooner.
  */
 public class QRScannerFragment extends Fragment {
 
     private final String TAG = QRScannerFragment.class.getSimpleName();
+    static final String PREF_STORED_FORMAT = "stored_format";
+    static final String PREF_CONTINUOUS_SCAN = "continuous_scan";
+    static final String PREF_DEDUPE_WINDOW = "dedupe_window";
+    static final int DEFAULT_DEDUPE_WINDOW_SECONDS = 3;
+    static final String PREF_MULTI_CODE = "multi_code";
+    static final String PREF_MULTI_CODE_WINDOW = "multi_code_window";
+    static final int DEFAULT_MULTI_CODE_WINDOW_MS = 500;
+    static final String PREF_SCANNER_INPUT = "scanner_input";
+    static final String PREF_SCANNER_PREFIX = "scanner_prefix";
+    static final String PREF_SCANNER_SUFFIX = "scanner_suffix";
+    static final String PREF_SCANNER_KEY_INTERVAL = "scanner_key_interval";
+    static final int DEFAULT_SCANNER_KEY_INTERVAL_MS = 50;
 
     private SurfaceView mScannerView;
     private EditText mTextBarcode;
     private TextView mTextScan;
     private Button buttonPrint;
 
-    private BarcodeDetector mBarcodeDetector;
-    private CameraSource mCameraSource;
+    // Built on first use under mCameraLock, it is only read without the lock to stop it.
+    private final Object mCameraLock = new Object();
+    private volatile CameraPipeline mCameraPipeline;
+    private boolean mCameraReleased = false;
+    private Context mAppContext;
+    private BarcodeLookupService mLookupService;
+    private PrinterConnectionManager mConnectionManager;
+    private PrintSpool mPrintSpool;
+    private PrinterPool mPool;
+    private LabelTemplateManager mTemplates;
 
     private String mBarcode = "";
-    private String printData = null;
+    private volatile String printData = null;
+    // The code printData was found by, in whichever column of the lookup file holds the codes.
+    private volatile String mPrintCode = null;
+    private volatile boolean mContinuousScan = false;
+    private ScanDeduplicator mDeduplicator;
+    private volatile boolean mMultiCode = false;
+    private MultiCodeCollector mCollector;
+    private volatile boolean mCollecting = false;
+    // Matches of the last multi-code group, printed together by the print button.
+    private volatile List<BarcodeLookupService.LookupResult> mGroupResults = null;
+    // Null unless hardware scanner input is turned on.
+    private KeyboardWedgeScanner mScannerInput;
 
     static QRScannerFragment newInstance() {
         return new QRScannerFragment();
@@ -66,6 +100,7 @@ public class QRScannerFragment extends Fragment {
         View mView = inflater.inflate(R.layout.fragment_qr_scanner, container, false);
 
         mScannerView = (SurfaceView) mView.findViewById(R.id.surfaceView);
+        mScannerView.setOnClickListener(onClickListenerScanner);
 
         mTextBarcode = (EditText) mView.findViewById(R.id.discoveredCode);
         mTextBarcode.setOnEditorActionListener(onEditorActionListener);
@@ -98,14 +133,59 @@ public class QRScannerFragment extends Fragment {
     @Override
     public void onActivityCreated(@Nullable Bundle savedInstanceState) {
         super.onActivityCreated(savedInstanceState);
+        mAppContext = getContext().getApplicationContext();
 
+        // Starts indexing the lookup file in the background so the first scan does not have to read it.
+        mLookupService = new BarcodeLookupService(LookupIndexManager.getInstance(getContext()));
+        mConnectionManager = PrinterConnectionManager.getInstance(getContext());
+        // Also replays any labels left unprinted when the app was last closed.
+        mPrintSpool = PrintSpool.getInstance(getContext());
+        mPool = PrinterPool.getInstance(getContext());
+        mTemplates = LabelTemplateManager.getInstance(getContext());
+
+        StartupTimer.afterFirstFrame(getView(), new Runnable() {
+            @Override
+            public void run() {
+                new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        getCameraPipeline();
+                    }
+                }).start();
+            }
+        });
+
+        mScannerView.setVisibility(View.INVISIBLE);
+        mTextScan.setVisibility(View.VISIBLE);
+    }
+
+    /**
+     * Builds the detector and camera pipeline the first time it is called, later calls return the same pipeline.
+     * Blocks while another thread is building it.
+     * @return the pipeline, or null once the fragment has been destroyed.
+     */
+    private CameraPipeline getCameraPipeline() {
+        synchronized (mCameraLock) {
+            if (mCameraPipeline == null && !mCameraReleased) {
+                long start = SystemClock.elapsedRealtime();
+                mCameraPipeline = buildCameraPipeline(mAppContext);
+                Log.d(TAG, "Barcode detector built in " + (SystemClock.elapsedRealtime() - start) + "ms");
+                StartupTimer.mark("Barcode detector ready");
+            }
+            return mCameraPipeline;
+        }
+    }
+
+    private CameraPipeline buildCameraPipeline(Context context) {
         // Configure the Barcode Detector to only look for QR codes
-        mBarcodeDetector = new BarcodeDetector.Builder(getContext())
+        BarcodeDetector barcodeDetector = new BarcodeDetector.Builder(context)
                 .setBarcodeFormats(Barcode.QR_CODE)
                 .build();
 
+        CameraPipeline pipeline = new CameraPipeline(context, barcodeDetector);
+
         // This is called when the API finds a QR code, which is then used in the lookup.
-        mBarcodeDetector.setProcessor(new Detector.Processor<Barcode>() {
+        pipeline.setProcessor(new Detector.Processor<Barcode>() {
             @Override
             public void release() {
 
@@ -113,8 +193,26 @@ public class QRScannerFragment extends Fragment {
 
             @Override
             public void receiveDetections(Detector.Detections<Barcode> detections) {
+                if (mMultiCode) {
+                    // Frames still arrive while the camera is stopping, they must not start a new group.
+                    if (!mCollecting) return;
+                    SparseArray<Barcode> items = detections.getDetectedItems();
+                    for (int i = 0; i < items.size(); i++) {
+                        mCollector.add(items.valueAt(i).displayValue);
+                    }
+                    // Checked on empty frames too, so the group still closes once the codes leave the view.
+                    List<String> codes = mCollector.drainIfComplete();
+                    if (codes != null) onMultiCodeDetection(codes);
+                    return;
+                }
+
                 if (detections.getDetectedItems().size() <= 0) return;
 
+                if (mContinuousScan) {
+                    onContinuousDetection(detections.getDetectedItems().valueAt(0).displayValue);
+                    return;
+                }
+
                 mBarcode = detections.getDetectedItems().valueAt(0).displayValue;
                 Log.d(TAG, "Found barcode: " + mBarcode);
 
@@ -131,23 +229,161 @@ public class QRScannerFragment extends Fragment {
                 new Thread(new Runnable() {
                     @Override
                     public void run() {
-                        mCameraSource.stop();
+                        stopCamera();
                     }
                 }).start();
+                prewarmPrinter();
                 lookupBarcode(mBarcode);
             }
         });
 
+        return pipeline;
+    }
+
+    /**
+     * Starts the camera on a background thread, the first scan may have to wait there for the detector
+     * that is still being built after the first frame.
+     */
+    private void startCamera() {
+        final SurfaceHolder holder = mScannerView.getHolder();
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                CameraPipeline pipeline = getCameraPipeline();
+                // The fragment was destroyed while waiting.
+                if (pipeline == null) return;
+                try {
+                    pipeline.start(holder);
+                } catch (IOException e) {
+                    Log.e(TAG, "Error starting camera: " + e.getMessage());
+                }
+            }
+        }).start();
+    }
+
+    /**
+     * Stops the camera if it has been built. Blocks while the camera shuts down.
+     */
+    private void stopCamera() {
+        CameraPipeline pipeline = mCameraPipeline;
+        if (pipeline != null) pipeline.stop();
+    }
+
+    /**
+     * In continuous mode the camera keeps running, each new code is looked up and printed automatically.
+     * @param barcode
+     */
+    private void onContinuousDetection(final String barcode) {
+        if (!mDeduplicator.accept(barcode)) return;
+
+        Log.d(TAG, "Found barcode: " + barcode);
+        getActivity().runOnUiThread(new Runnable() {
+            @Override
+            public void run() {
+                mTextBarcode.setText(barcode);
+            }
+        });
+        prewarmPrinter();
+        mLookupService.enqueue(barcode, continuousLookupCallback);
+    }
+
+    /**
+     * Codes from a hardware scanner are looked up like camera detections. In continuous mode every scan is printed
+     * straight away, including repeats since each one was a deliberate press of the trigger.
+     */
+    final KeyboardWedgeScanner.Listener scannerInputListener = new KeyboardWedgeScanner.Listener() {
+        @Override
+        public void onScan(String code) {
+            mTextBarcode.setText(code);
+            buttonPrint.setVisibility(View.INVISIBLE);
+            prewarmPrinter();
+            if (PreferenceManager.getDefaultSharedPreferences(getContext()).getBoolean(PREF_CONTINUOUS_SCAN, false)) {
+                mLookupService.enqueue(code, continuousLookupCallback);
+            } else {
+                lookupBarcode(code);
+            }
+        }
+
+        @Override
+        public void onTypedKey(KeyEvent event) {
+            // Straight to the views, the activity would offer it to the scanner again.
+            if (isAdded()) getActivity().getWindow().superDispatchKeyEvent(event);
+        }
+    };
+
+    /**
+     * Handles the group of codes collected in multi-code mode, they are looked up together
+     * and the matches printed as one group.
+     * @param codes distinct codes seen during the collection window
+     */
+    private void onMultiCodeDetection(List<String> codes) {
+        final List<String> accepted;
+        if (mContinuousScan) {
+            accepted = new ArrayList<>(codes.size());
+            for (String code : codes) {
+                if (mDeduplicator.accept(code)) accepted.add(code);
+            }
+            if (accepted.isEmpty()) return;
+        } else {
+            mCollecting = false;
+            accepted = codes;
+        }
+
+        Log.d(TAG, "Found " + accepted.size() + " barcodes: " + accepted);
+        getActivity().runOnUiThread(new Runnable() {
+            @Override
+            public void run() {
+                mTextBarcode.setText(accepted.size() == 1 ? accepted.get(0) : accepted.size() + " codes");
+                if (!mContinuousScan) stopScanning();
+            }
+        });
+        prewarmPrinter();
+
+        if (mContinuousScan) {
+            mLookupService.enqueueBatch(accepted, groupLookupCallback);
+        } else {
+            printData = null;
+            mGroupResults = null;
+            mLookupService.submitBatch(accepted, groupLookupCallback);
+        }
+    }
+
+    /**
+     * Stops the camera and returns to the "Tap to Scan" state.
+     */
+    private void stopScanning() {
         mScannerView.setVisibility(View.INVISIBLE);
         mTextScan.setVisibility(View.VISIBLE);
+        // Need to run the stop() in a separate thread otherwise it lags the main thread.
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                stopCamera();
+            }
+        }).start();
     }
 
     @Override
     public void onSaveInstanceState(Bundle outState) {
         super.onSaveInstanceState(outState);
         Log.d(TAG, "releasing camera");
-        if(mCameraSource != null)
-            mCameraSource.stop();
+        stopCamera();
+    }
+
+    @Override
+    public void onResume() {
+        super.onResume();
+        // The preferences may have changed while the settings screen was open.
+        SharedPreferences preferences = PreferenceManager.getDefaultSharedPreferences(getContext());
+        if (preferences.getBoolean(PREF_SCANNER_INPUT, false)) {
+            mScannerInput = new KeyboardWedgeScanner(
+                    preferences.getString(PREF_SCANNER_PREFIX, ""),
+                    preferences.getString(PREF_SCANNER_SUFFIX, ""),
+                    getIntPreference(preferences, PREF_SCANNER_KEY_INTERVAL, DEFAULT_SCANNER_KEY_INTERVAL_MS),
+                    scannerInputListener);
+        } else {
+            mScannerInput = null;
+        }
     }
 
     @Override
@@ -155,131 +391,224 @@ public class QRScannerFragment extends Fragment {
         super.onPause();
         mScannerView.setVisibility(View.INVISIBLE);
         mTextScan.setVisibility(View.VISIBLE);
+        if (mScannerInput != null) mScannerInput.reset();
+    }
+
+    /**
+     * Offers a hardware key event to the scanner input, called by the activity before the event reaches any view.
+     * @param event
+     * @return true if the key was typed by the scanner and has been handled.
+     */
+    boolean onHardwareKeyEvent(KeyEvent event) {
+        return mScannerInput != null && isResumed() && mScannerInput.onKeyEvent(event);
     }
 
     @Override
     public void onDestroy() {
         super.onDestroy();
         Log.d(TAG, "Fragment destroyed");
-        mCameraSource.release();
-        mBarcodeDetector.release();
+        mLookupService.shutdown();
+        synchronized (mCameraLock) {
+            if (mCameraPipeline != null) mCameraPipeline.release();
+            mCameraPipeline = null;
+            mCameraReleased = true;
+        }
     }
 
-    private void buildCameraSource() {
-
-        // Configure the camera resolution, FPS and define the BarcodeDetector
-        CameraSource.Builder mCameraBuilder = new CameraSource.Builder(getContext(), mBarcodeDetector)
-                .setRequestedPreviewSize(800, 600)
-                .setFacing(CameraSource.CAMERA_FACING_BACK)
-                .setAutoFocusEnabled(true)
-                .setRequestedFps(10f);
-
-        mCameraSource = mCameraBuilder.build();
+    private static int getIntPreference(SharedPreferences preferences, String key, int defaultValue) {
+        try {
+            return Integer.parseInt(preferences.getString(key, String.valueOf(defaultValue)));
+        } catch (NumberFormatException e) {
+            return defaultValue;
+        }
     }
 
     /**
-     * Looks up the supplied barcode in the csv file selected in the preferences by the user.
+     * Looks up the supplied barcode in the csv files selected in the preferences by the user.
+     * The lookup runs in the background and replaces any lookup still in progress.
      * @param barcode
      */
     private void lookupBarcode(String barcode) {
+        Log.d(TAG, "Looking for: " + barcode);
+        printData = null;
+        mGroupResults = null;
+        mLookupService.submit(barcode, lookupCallback);
+    }
 
-        try {
-            String sUri = PreferenceManager.getDefaultSharedPreferences(getContext()).getString("lookup_file", "---");
-            if (sUri == "---") {
-                Log.e(TAG, "Preference value invalid");
-                Snackbar.make(getView(), "Please select a lookup file.", Snackbar.LENGTH_SHORT).show();
-                return;
-            }
-
-            Log.d(TAG, "Looking for: " + barcode);
-
-            InputStream is = getActivity().getContentResolver().openInputStream(Uri.parse(sUri));
-            BufferedReader br = new BufferedReader(new InputStreamReader(is));
-            if (br.ready()) {
-                boolean found = false;
-                String line = "";
-                while ((line = br.readLine()) != null && !found) {
-                    found = line.split(",")[0].equals(barcode);
-                    if (found) {
-                        Log.d(TAG, "Found!");
-                        getActivity().runOnUiThread(new Runnable() {
-                            @Override
-                            public void run() {
-                                buttonPrint.setVisibility(View.VISIBLE);
-                            }
-                        });
-                        printData = line;
-                        break;
-                    }
-                }
-            } else {
-                Snackbar.make(getView(), "Could not read file", Snackbar.LENGTH_SHORT).show();
+    /**
+     * Receives lookup results on the main thread and enables printing when a match was found.
+     */
+    final BarcodeLookupService.Callback lookupCallback = new BarcodeLookupService.Callback() {
+        @Override
+        public void onLookupComplete(BarcodeLookupService.LookupResult result) {
+            if (!isAdded()) return;
+
+            switch (result.status) {
+                case FOUND:
+                    Log.d(TAG, "Found in " + result.source.getName());
+                    printData = result.record;
+                    mPrintCode = result.barcode;
+                    buttonPrint.setText("Print");
+                    buttonPrint.setVisibility(View.VISIBLE);
+                    break;
+                case NOT_FOUND:
+                    Log.d(TAG, "No match for: " + result.barcode);
+                    break;
+                case NO_LOOKUP_FILE:
+                    Log.e(TAG, "Preference value invalid");
+                    Snackbar.make(getView(), "Please select a lookup file.", Snackbar.LENGTH_SHORT).show();
+                    break;
+                case ERROR:
+                    Snackbar.make(getView(), "Could not read file", Snackbar.LENGTH_SHORT).show();
+                    break;
             }
-            br.close();
-            is.close();
-
-        } catch (Exception e) {
-            Log.e(TAG, e.getLocalizedMessage());
         }
-    }
+    };
 
     private void printLabel() {
+        List<BarcodeLookupService.LookupResult> groupResults = mGroupResults;
+        if (groupResults != null) {
+            for (BarcodeLookupService.LookupResult result : groupResults) {
+                printRecord(result.record, result.barcode);
+            }
+            return;
+        }
         if (printData == null) return;
+        printRecord(printData, mPrintCode);
+    }
 
-        // Get the MAC address from the ShardPreferences
+    /**
+     * Renders the csv line with the selected template and adds it to the print queue.
+     * @param record
+     * @param code the scanned code the record was found by, which names the label
+     */
+    private void printRecord(String record, String code) {
+        // Get the MAC address from the ShardPreferences, when a pool of printers is selected the queue picks one.
         String printerMAC = PreferenceManager.getDefaultSharedPreferences(getContext()).getString("printer_address", null);
-        if (printerMAC == null) {
+        if (printerMAC == null && !mPool.isEnabled()) {
             Snackbar.make(getView(), "Could not get printer address", Snackbar.LENGTH_SHORT).show();
             return;
         }
 
-        String[] partsData = printData.split(",");
-        // Every format starts with "^XA"
-        // "^FO" Field origin x,y "^A0N" scalable font w,h
-        // "^BQ" QR code command model, magnification
-        // "^FS" Field separator
-        // "^FD" Field data use FDMA to automatically select encoding type (needed for |)
-        // "^XZ" end format
-        String sendData = "^XA\n" +
-                "^FO50,50^A0N,30,30\n" +
-                "^BQN,2,10\n" +
-                "^FDMA," + partsData[0] + "^FS\n" +
-                "^FO50,300^A0N,30,30^FD" + partsData[1] + "^FS\n" +
-                "^FO50,350^A0N,30,30^FD" + partsData[2] + "^FS\n" +
-                "^XZ";
-        connectAndPrint(printerMAC, sendData);
+        long renderStart = LatencyStats.begin(LatencyStats.Stage.RENDER);
+        LabelTemplate template = mTemplates.getTemplate();
+        LabelBuffer buffer = LabelBuffer.obtain();
+        StoredFormat storedFormat = null;
+        if (template.hasStoredFormat()
+                && PreferenceManager.getDefaultSharedPreferences(getContext()).getBoolean(PREF_STORED_FORMAT, true)) {
+            template.renderRecall(record, buffer);
+            storedFormat = template.getStoredFormat();
+        } else {
+            template.render(record, buffer);
+        }
+        LatencyStats.end(LatencyStats.Stage.RENDER, renderStart);
+        connectAndPrint(mPool.isEnabled() ? null : printerMAC, buffer, code, storedFormat, template.getGraphics());
     }
 
     /**
-     * Given an address and the String of data, connects to the printer and attempts to print the data.
-     * @param printerAddress
+     * Given an address and the rendered label, adds the label to the print spool, which retries it until it prints.
+     * @param printerAddress null to print on the printer pool
      * @param data
+     * @param label barcode the label is for, used when reporting the result
+     * @param storedFormat layout recalled by the data, or null if the data is a complete format
+     * @param graphics graphics drawn by the label
      */
-    private void connectAndPrint(final String printerAddress, final String data) {
-        new Thread(new Runnable() {
-            @Override
-            public void run() {
-                Connection bluetoothConnection = null;
+    private void connectAndPrint(String printerAddress, LabelBuffer data, String label, StoredFormat storedFormat,
+                                 List<StoredGraphic> graphics) {
+        mPrintSpool.submit(new PrintJob(printerAddress, data, label, printCallback, storedFormat, graphics));
+    }
 
-                try {
-                    // BLuetoothConnection requires pairing on both devices, but will always print unlike the Insecure method
-                    bluetoothConnection = new BluetoothConnection(printerAddress);
-                    bluetoothConnection.open();
-                    bluetoothConnection.write(data.getBytes("UTF-8"));
-                    Thread.sleep(500);
-                } catch (Exception e) {
-                    Log.e(TAG, "Error printing: " + e.getLocalizedMessage());
-                } finally {
-                    if (bluetoothConnection != null) {
-                        try {
-                            bluetoothConnection.close();
-                        } catch (Exception e) {
-                            Log.d(TAG, "Error closing connection: " + e.getLocalizedMessage());
-                        }
-                    }
+    /**
+     * Prints every code found while scanning continuously, the result is only shown in the text field.
+     */
+    final BarcodeLookupService.Callback continuousLookupCallback = new BarcodeLookupService.Callback() {
+        @Override
+        public void onLookupComplete(BarcodeLookupService.LookupResult result) {
+            if (!isAdded()) return;
+
+            switch (result.status) {
+                case FOUND:
+                    Log.d(TAG, "Found " + result.barcode + " in " + result.source.getName());
+                    printRecord(result.record, result.barcode);
+                    break;
+                case NOT_FOUND:
+                    Snackbar.make(getView(), "No match for " + result.barcode, Snackbar.LENGTH_SHORT).show();
+                    break;
+                default:
+                    lookupCallback.onLookupComplete(result);
+                    break;
+            }
+        }
+    };
+
+    /**
+     * Receives the lookups of a multi-code group. In continuous mode the matches are printed straight away,
+     * otherwise the print button prints the whole group.
+     */
+    final BarcodeLookupService.BatchCallback groupLookupCallback = new BarcodeLookupService.BatchCallback() {
+        @Override
+        public void onLookupComplete(List<BarcodeLookupService.LookupResult> results) {
+            if (!isAdded()) return;
+
+            List<BarcodeLookupService.LookupResult> matches = new ArrayList<>(results.size());
+            for (BarcodeLookupService.LookupResult result : results) {
+                switch (result.status) {
+                    case FOUND:
+                        matches.add(result);
+                        break;
+                    case NOT_FOUND:
+                        break;
+                    default:
+                        // No lookup file or it could not be read, the rest of the group will fail the same way.
+                        lookupCallback.onLookupComplete(result);
+                        return;
                 }
             }
-        }).start();
+
+            Snackbar.make(getView(), matches.size() + " of " + results.size() + " codes matched", Snackbar.LENGTH_SHORT).show();
+            if (matches.isEmpty()) return;
+
+            if (mContinuousScan) {
+                for (BarcodeLookupService.LookupResult result : matches) {
+                    printRecord(result.record, result.barcode);
+                }
+            } else {
+                mGroupResults = matches;
+                buttonPrint.setText("Print " + matches.size());
+                buttonPrint.setVisibility(View.VISIBLE);
+            }
+        }
+    };
+
+    /**
+     * Lets the user know when a label did not print.
+     */
+    final PrintJob.Callback printCallback = new PrintJob.Callback() {
+        @Override
+        public void onJobComplete(PrintJob job, PrintResult result) {
+            Log.d(TAG, "Print " + job.label + " finished: " + result);
+            if (result.isSuccess() || !isAdded()) return;
+
+            String message = result.sent
+                    ? "Check the printer, " + job.label + " may not have printed: "
+                    : "Print failed: ";
+            Snackbar.make(getView(), message + result.message, Snackbar.LENGTH_LONG).show();
+        }
+    };
+
+    /**
+     * Starts connecting to the selected printer, or every printer in the pool, while the lookup is still running.
+     */
+    private void prewarmPrinter() {
+        if (mPool.isEnabled()) {
+            for (String address : mPool.getMembers()) {
+                mConnectionManager.prewarm(address);
+            }
+            return;
+        }
+        String printerMAC = PreferenceManager.getDefaultSharedPreferences(getContext()).getString("printer_address", null);
+        if (printerMAC != null)
+            mConnectionManager.prewarm(printerMAC);
     }
 
     final View.OnClickListener onClickListenerPrint = new View.OnClickListener() {
@@ -297,16 +626,25 @@ public class QRScannerFragment extends Fragment {
             mTextScan.setVisibility(View.INVISIBLE);
             mScannerView.setVisibility(View.VISIBLE);
             buttonPrint.setVisibility(View.INVISIBLE);
-            buildCameraSource();
-            try {
-                if (ActivityCompat.checkSelfPermission(getContext(), Manifest.permission.CAMERA) != PackageManager.PERMISSION_GRANTED) {
-                    return;
-                }
-                mCameraSource.start(mScannerView.getHolder());
-                mTextBarcode.setText(" - - - - ");
-            } catch (IOException e) {
-                e.printStackTrace();
+            SharedPreferences preferences = PreferenceManager.getDefaultSharedPreferences(getContext());
+            mContinuousScan = preferences.getBoolean(PREF_CONTINUOUS_SCAN, false);
+            mMultiCode = preferences.getBoolean(PREF_MULTI_CODE, false);
+            mCollecting = true;
+            mCollector = new MultiCodeCollector(getIntPreference(preferences, PREF_MULTI_CODE_WINDOW, DEFAULT_MULTI_CODE_WINDOW_MS));
+            mDeduplicator = new ScanDeduplicator(1000L * getIntPreference(preferences, PREF_DEDUPE_WINDOW, DEFAULT_DEDUPE_WINDOW_SECONDS));
+            if (ActivityCompat.checkSelfPermission(getContext(), Manifest.permission.CAMERA) != PackageManager.PERMISSION_GRANTED) {
+                return;
             }
+            mTextBarcode.setText(" - - - - ");
+            startCamera();
+        }
+    };
+
+    final View.OnClickListener onClickListenerScanner = new View.OnClickListener() {
+        @Override
+        public void onClick(View v) {
+            // Continuous scanning only ends when the user taps the camera preview.
+            if (mContinuousScan) stopScanning();
         }
     };
 
@@ -323,6 +661,7 @@ public class QRScannerFragment extends Fragment {
                         buttonPrint.setVisibility(View.INVISIBLE);
                     }
                 });
+                prewarmPrinter();
                 lookupBarcode(v.getText().toString());
                 return false;
             }
@@ -0,0 +1,185 @@
+package patrick.pfr.zebralabelprinter;
+
+import android.graphics.ImageFormat;
+import android.os.SystemClock;
+import android.util.SparseArray;
+
+import com.google.android.gms.vision.Detector;
+import com.google.android.gms.vision.Frame;
+import com.google.android.gms.vision.barcode.Barcode;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Author:      Patrick Snelgar
+ * Name:        RegionOfInterestDetector.java
+ * Description: Wraps the BarcodeDetector so it only searches a region around the centre of the viewfinder,
+ *              which is where the user aims. The cropped frame is copied into a buffer that is reused
+ *              between frames. Also records how long detection takes and how often it succeeds over a
+ *              window of frames, which the CameraPipeline uses to pick the camera settings while it runs.
+ */
+class RegionOfInterestDetector extends Detector<Barcode> {
+
+    interface WindowListener {
+        /**
+         * Called on the frame processing thread each time a window of frames has been detected.
+         */
+        void onWindow(RegionOfInterestDetector detector);
+    }
+
+    // Neutral chroma, the detector only uses the luminance plane.
+    private static final byte NEUTRAL_CHROMA = (byte) 128;
+
+    private final Detector<Barcode> mDelegate;
+    private final float mRegionFraction;
+
+    // Only touched from the camera's frame processing thread.
+    private ByteBuffer mCropBuffer;
+    private int mCropWidth;
+    private int mCropHeight;
+
+    private volatile long mFrames;
+    private volatile long mFramesWithDetections;
+    private volatile long mFramesSinceDetection;
+    private volatile long mTotalDetectMs;
+
+    private volatile WindowListener mWindowListener;
+    private volatile int mWindowFrames;
+
+    /**
+     * @param delegate detector that does the actual work
+     * @param regionFraction width and height of the region as a fraction of the frame, 1 disables cropping
+     */
+    RegionOfInterestDetector(Detector<Barcode> delegate, float regionFraction) {
+        mDelegate = delegate;
+        mRegionFraction = Math.max(0.1f, Math.min(1f, regionFraction));
+    }
+
+    @Override
+    public SparseArray<Barcode> detect(Frame frame) {
+        long start = SystemClock.elapsedRealtime();
+        long traceStart = LatencyStats.begin(LatencyStats.Stage.DETECT);
+        SparseArray<Barcode> detections = mDelegate.detect(crop(frame));
+        LatencyStats.end(LatencyStats.Stage.DETECT, traceStart);
+
+        mTotalDetectMs += SystemClock.elapsedRealtime() - start;
+        mFrames++;
+        if (detections != null && detections.size() > 0) {
+            mFramesWithDetections++;
+            mFramesSinceDetection = 0;
+        } else {
+            mFramesSinceDetection++;
+        }
+
+        WindowListener listener = mWindowListener;
+        if (listener != null && mFrames >= mWindowFrames) {
+            listener.onWindow(this);
+            resetWindow();
+        }
+        return detections;
+    }
+
+    @Override
+    public boolean isOperational() {
+        return mDelegate.isOperational();
+    }
+
+    @Override
+    public boolean setFocus(int id) {
+        return mDelegate.setFocus(id);
+    }
+
+    @Override
+    public void release() {
+        super.release();
+        mDelegate.release();
+    }
+
+    /**
+     * @param windowFrames frames in each window
+     * @param listener told when a window is complete, the window's counts are reset after it returns
+     */
+    void setWindowListener(int windowFrames, WindowListener listener) {
+        mWindowFrames = windowFrames;
+        mWindowListener = listener;
+    }
+
+    /**
+     * @return the average time spent in the delegate detector per frame of the current window.
+     */
+    long getAverageDetectMs() {
+        return mFrames == 0 ? 0 : mTotalDetectMs / mFrames;
+    }
+
+    /**
+     * @return frames in the current window.
+     */
+    long getFrames() {
+        return mFrames;
+    }
+
+    long getFramesWithDetections() {
+        return mFramesWithDetections;
+    }
+
+    /**
+     * @return consecutive frames without a code, counted across windows.
+     */
+    long getFramesSinceDetection() {
+        return mFramesSinceDetection;
+    }
+
+    void resetStatistics() {
+        resetWindow();
+        mFramesSinceDetection = 0;
+    }
+
+    private void resetWindow() {
+        mFrames = 0;
+        mFramesWithDetections = 0;
+        mTotalDetectMs = 0;
+    }
+
+    /**
+     * Copies the centre of the frame's luminance plane into the reused crop buffer.
+     */
+    private Frame crop(Frame frame) {
+        Frame.Metadata metadata = frame.getMetadata();
+        ByteBuffer source = frame.getGrayscaleImageData();
+        if (mRegionFraction >= 1f || source == null) return frame;
+
+        int width = metadata.getWidth();
+        int height = metadata.getHeight();
+        // NV21 needs even dimensions.
+        int cropWidth = ((int) (width * mRegionFraction)) & ~1;
+        int cropHeight = ((int) (height * mRegionFraction)) & ~1;
+        int left = ((width - cropWidth) / 2) & ~1;
+        int top = ((height - cropHeight) / 2) & ~1;
+
+        if (mCropBuffer == null || cropWidth != mCropWidth || cropHeight != mCropHeight) {
+            mCropWidth = cropWidth;
+            mCropHeight = cropHeight;
+            mCropBuffer = ByteBuffer.allocateDirect(cropWidth * cropHeight * 3 / 2);
+            for (int i = cropWidth * cropHeight; i < mCropBuffer.capacity(); i++) {
+                mCropBuffer.put(i, NEUTRAL_CHROMA);
+            }
+        }
+
+        ByteBuffer rowSource = source.duplicate();
+        ByteBuffer destination = mCropBuffer.duplicate();
+        for (int row = 0; row < cropHeight; row++) {
+            int offset = (top + row) * width + left;
+            rowSource.limit(offset + cropWidth).position(offset);
+            destination.position(row * cropWidth);
+            destination.put(rowSource);
+        }
+        mCropBuffer.rewind();
+
+        return new Frame.Builder()
+                .setImageData(mCropBuffer, cropWidth, cropHeight, ImageFormat.NV21)
+                .setId(metadata.getId())
+                .setTimestampMillis(metadata.getTimestampMillis())
+                .setRotation(metadata.getRotation())
+                .build();
+    }
+}
@@ -0,0 +1,55 @@
+package patrick.pfr.zebralabelprinter;
+
+import android.os.SystemClock;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * Author:      Patrick Snelgar
+ * Name:        ScanDeduplicator.java
+ * Description: Filters repeat detections of the same code. While the camera keeps running the detector
+ *              reports a code on every frame it is in view, only the first sighting within the window is accepted.
+ */
+class ScanDeduplicator {
+
+    // Forgotten codes are only pruned once the map grows past this size.
+    private static final int PRUNE_THRESHOLD = 64;
+
+    private final long mWindowMs;
+    private final Map<String, Long> mLastSeen = new HashMap<>();
+
+    /**
+     * @param windowMs how long a code is ignored for after it was last seen
+     */
+    ScanDeduplicator(long windowMs) {
+        mWindowMs = windowMs;
+    }
+
+    /**
+     * Records a sighting of the code.
+     * @param code
+     * @return true if the code has not been seen within the window and should be processed.
+     */
+    synchronized boolean accept(String code) {
+        long now = SystemClock.elapsedRealtime();
+        Long lastSeen = mLastSeen.put(code, now);
+
+        if (mLastSeen.size() > PRUNE_THRESHOLD) prune(now);
+
+        // Keeps a code that stays in view suppressed, rather than printing it again every window.
+        return lastSeen == null || now - lastSeen >= mWindowMs;
+    }
+
+    synchronized void clear() {
+        mLastSeen.clear();
+    }
+
+    private void prune(long now) {
+        Iterator<Long> iterator = mLastSeen.values().iterator();
+        while (iterator.hasNext()) {
+            if (now - iterator.next() >= mWindowMs) iterator.remove();
+        }
+    }
+}
@@ -0,0 +1,99 @@
+package patrick.pfr.zebralabelprinter;
+
+import android.os.Build;
+import android.os.Process;
+import android.os.SystemClock;
+import android.util.Log;
+import android.view.View;
+import android.view.ViewTreeObserver;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Author:      Patrick Snelgar
+ * Name:        StartupTimer.java
+ * Description: Records when each step of a cold start happened, measured from the start of the process, so the
+ *              time to the first frame can be compared across devices. Below API 24 the process start is not
+ *              reported and the times are measured from the first mark instead, in MainActivity.onCreate.
+ *              The report is logged once the first frame is drawn and shown on the stats screen, along with
+ *              the components warmed up after it.
+ *
+ *              Usage: StartupTimer.mark("Step"); StartupTimer.afterFirstFrame(view, task) to defer work.
+ */
+final class StartupTimer {
+
+    private static final String TAG = StartupTimer.class.getSimpleName();
+    static final String FIRST_FRAME = "First frame";
+
+    // Used in place of the process start below API 24. The class is loaded by the first mark, in
+    // MainActivity.onCreate, so this misses the process and application startup before it.
+    private static final long sLoaded = SystemClock.elapsedRealtime();
+    // Guarded by the class.
+    private static final List<String> sSteps = new ArrayList<>();
+    private static final List<Long> sTimes = new ArrayList<>();
+
+    private StartupTimer() {
+    }
+
+    /**
+     * Records a step, only the first occurrence of each step is kept so a recreated activity does not
+     * overwrite the cold start.
+     * @param step
+     */
+    static void mark(String step) {
+        long elapsed = SystemClock.elapsedRealtime() - processStart();
+        synchronized (StartupTimer.class) {
+            if (sSteps.contains(step)) return;
+            sSteps.add(step);
+            sTimes.add(elapsed);
+        }
+        Log.d(TAG, step + " at " + elapsed + "ms");
+        if (FIRST_FRAME.equals(step)) Log.d(TAG, formatReport());
+    }
+
+    /**
+     * Runs the task on the main thread once the view has drawn its first frame, marking the first frame if
+     * it has not been already. The task is posted from the pre-draw pass so it runs after the frame is drawn.
+     * @param view
+     * @param task
+     */
+    static void afterFirstFrame(final View view, final Runnable task) {
+        view.getViewTreeObserver().addOnPreDrawListener(new ViewTreeObserver.OnPreDrawListener() {
+            @Override
+            public boolean onPreDraw() {
+                view.getViewTreeObserver().removeOnPreDrawListener(this);
+                view.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        mark(FIRST_FRAME);
+                        task.run();
+                    }
+                });
+                return true;
+            }
+        });
+    }
+
+    /**
+     * @return each step in the order it happened, in milliseconds since the process started or, below
+     *         API 24, since the activity was created.
+     */
+    static synchronized String formatReport() {
+        StringBuilder report = new StringBuilder(reportsProcessStart()
+                ? "Startup, ms since process start\n\n" : "Startup, ms since activity create\n\n");
+        for (int i = 0; i < sSteps.size(); i++) {
+            report.append(String.format(Locale.US, "%-30s %8d\n", sSteps.get(i), sTimes.get(i)));
+        }
+        return report.toString();
+    }
+
+    private static long processStart() {
+        return reportsProcessStart() ? Process.getStartElapsedRealtime() : sLoaded;
+    }
+
+    private static boolean reportsProcessStart() {
+        return Build.VERSION.SDK_INT >= 24;
+    }
+}
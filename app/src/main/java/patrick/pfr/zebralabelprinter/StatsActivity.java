@@ -0,0 +1,138 @@
+package patrick.pfr.zebralabelprinter;
+
+import android.content.Intent;
+import android.net.Uri;
+import android.os.Bundle;
+import android.os.Handler;
+import android.support.annotation.Nullable;
+import android.support.design.widget.Snackbar;
+import android.support.v7.app.AppCompatActivity;
+import android.util.Log;
+import android.view.Menu;
+import android.view.MenuItem;
+import android.widget.TextView;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+
+/**
+ * Author:      Patrick Snelgar
+ * Name:        StatsActivity.java
+ * Description: Shows the LatencyStats of each stage from scan to printed label, the lookup cache's hit rate
+ *              and the StartupTimer report, refreshed every second, and lets the user export the stage timings
+ *              as a csv file.
+ */
+public class StatsActivity extends AppCompatActivity {
+
+    private final String TAG = StatsActivity.class.getSimpleName();
+    private static final int EXPORT_REQUEST_CODE = 72;
+    private static final long REFRESH_INTERVAL_MS = 1000;
+
+    private TextView mTextStats;
+    private LookupCache mLookupCache;
+    private final Handler mHandler = new Handler();
+
+    private final Runnable mRefresh = new Runnable() {
+        @Override
+        public void run() {
+            showStats();
+            mHandler.postDelayed(this, REFRESH_INTERVAL_MS);
+        }
+    };
+
+    @Override
+    protected void onCreate(@Nullable Bundle savedInstanceState) {
+        super.onCreate(savedInstanceState);
+        setContentView(R.layout.activity_stats);
+        mTextStats = (TextView) findViewById(R.id.text_stats);
+        mLookupCache = LookupIndexManager.getInstance(this).getCache();
+
+        getSupportActionBar().setTitle("Print statistics");
+        getSupportActionBar().setDisplayHomeAsUpEnabled(true);
+        getSupportActionBar().setDisplayShowHomeEnabled(true);
+    }
+
+    @Override
+    protected void onResume() {
+        super.onResume();
+        mHandler.post(mRefresh);
+    }
+
+    @Override
+    protected void onPause() {
+        super.onPause();
+        mHandler.removeCallbacks(mRefresh);
+    }
+
+    @Override
+    public boolean onCreateOptionsMenu(Menu menu) {
+        getMenuInflater().inflate(R.menu.menu_stats, menu);
+        return true;
+    }
+
+    @Override
+    public boolean onOptionsItemSelected(MenuItem item) {
+        switch (item.getItemId()) {
+            case android.R.id.home:
+                finish();
+                return true;
+            case R.id.action_export_stats:
+                Intent intent = new Intent(Intent.ACTION_CREATE_DOCUMENT);
+                intent.setType("text/csv");
+                intent.addCategory(Intent.CATEGORY_OPENABLE);
+                intent.putExtra(Intent.EXTRA_TITLE, "print_stats_"
+                        + new SimpleDateFormat("yyyyMMdd_HHmmss", Locale.US).format(new Date()) + ".csv");
+                startActivityForResult(intent, EXPORT_REQUEST_CODE);
+                return true;
+            case R.id.action_reset_stats:
+                LatencyStats.reset();
+                mLookupCache.resetCounters();
+                showStats();
+                return true;
+        }
+        return super.onOptionsItemSelected(item);
+    }
+
+    @Override
+    protected void onActivityResult(int requestCode, int resultCode, Intent data) {
+        if (requestCode == EXPORT_REQUEST_CODE && resultCode == RESULT_OK) {
+            exportCsv(data.getData());
+        } else {
+            super.onActivityResult(requestCode, resultCode, data);
+        }
+    }
+
+    private void showStats() {
+        long hits = mLookupCache.getHits();
+        long misses = mLookupCache.getMisses();
+        long total = hits + misses;
+        mTextStats.setText(LatencyStats.formatTable() + String.format(Locale.US,
+                "\nLookup cache: %d hits, %d misses (%.1f%% hit rate), %d entries\n",
+                hits, misses, total == 0 ? 0.0 : 100.0 * hits / total, mLookupCache.size())
+                + "\n" + StartupTimer.formatReport());
+    }
+
+    private void exportCsv(Uri uri) {
+        OutputStream out = null;
+        try {
+            out = getContentResolver().openOutputStream(uri);
+            if (out == null) throw new IOException("Could not open " + uri);
+            out.write(LatencyStats.formatCsv().getBytes("UTF-8"));
+            Snackbar.make(mTextStats, "Statistics exported", Snackbar.LENGTH_SHORT).show();
+        } catch (IOException e) {
+            Log.e(TAG, "Error exporting stats: " + e.getLocalizedMessage());
+            Snackbar.make(mTextStats, "Could not export statistics", Snackbar.LENGTH_LONG).show();
+        } finally {
+            if (out != null) {
+                try {
+                    out.close();
+                } catch (IOException e) {
+                    Log.d(TAG, "Error closing export: " + e.getLocalizedMessage());
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,60 @@
+package patrick.pfr.zebralabelprinter;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Author:      Patrick Snelgar
+ * Name:        IndexBuildBenchmark.java
+ * Description: Time to build the LookupIndexFile of a lookup file, which is what the first scans after
+ *              choosing a new file wait on.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+public class IndexBuildBenchmark {
+
+    @Param({"10000", "100000", "1000000"})
+    public int rows;
+
+    private RandomAccessFile mSource;
+    private FileChannel mChannel;
+    private File mIndexFile;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        File sourceFile = SyntheticLookupFile.get(rows);
+        mSource = new RandomAccessFile(sourceFile, "r");
+        mChannel = mSource.getChannel();
+        mIndexFile = new File(sourceFile.getPath() + ".build.idx");
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        mSource.close();
+        mIndexFile.delete();
+    }
+
+    @Benchmark
+    public void build() throws IOException {
+        LookupIndexFile.build(mIndexFile, 0, mChannel);
+    }
+}
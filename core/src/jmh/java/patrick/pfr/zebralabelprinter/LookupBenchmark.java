@@ -0,0 +1,74 @@
+package patrick.pfr.zebralabelprinter;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Author:      Patrick Snelgar
+ * Name:        LookupBenchmark.java
+ * Description: Time to find a barcode in lookup files of 10k, 100k and 1M rows, with the key at the start,
+ *              middle or end of the file or missing. Covers the indexed lookup and the linear scan used
+ *              while the index is being built.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class LookupBenchmark {
+
+    @Param({"10000", "100000", "1000000"})
+    public int rows;
+
+    @Param({"START", "MIDDLE", "END", "MISS"})
+    public String position;
+
+    private File mSourceFile;
+    private RandomAccessFile mSource;
+    private FileChannel mChannel;
+    private LookupIndexFile mIndex;
+    private String mKey;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        mSourceFile = SyntheticLookupFile.get(rows);
+        mSource = new RandomAccessFile(mSourceFile, "r");
+        mChannel = mSource.getChannel();
+
+        File indexFile = new File(mSourceFile.getPath() + ".idx");
+        long fingerprint = LookupIndexFile.fingerprint(mChannel, mSourceFile.lastModified());
+        LookupIndexFile.build(indexFile, fingerprint, mChannel);
+        mIndex = LookupIndexFile.open(indexFile);
+
+        mKey = SyntheticLookupFile.keyAt(SyntheticLookupFile.Position.valueOf(position), rows);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        mIndex.close();
+        mSource.close();
+    }
+
+    @Benchmark
+    public String indexedLookup() throws IOException {
+        return mIndex.lookup(mChannel, mKey);
+    }
+
+    @Benchmark
+    public String linearScan() throws IOException {
+        return CsvLookup.scan(new FileInputStream(mSourceFile), mKey);
+    }
+}
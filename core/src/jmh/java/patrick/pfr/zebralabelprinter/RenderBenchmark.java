@@ -0,0 +1,56 @@
+package patrick.pfr.zebralabelprinter;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Author:      Patrick Snelgar
+ * Name:        RenderBenchmark.java
+ * Description: Labels rendered per second from a csv record, as a complete format and as a stored format recall,
+ *              and the cost of compiling a template. Run with the gc profiler (the default for :core:jmh)
+ *              to see the bytes allocated per label.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class RenderBenchmark {
+
+    private static final String[] COLUMNS = {"code", "description", "location"};
+
+    private LabelTemplate mTemplate;
+    private LabelBuffer mBuffer;
+    private String mRecord;
+
+    @Setup
+    public void setUp() {
+        mTemplate = LabelTemplate.compile(LabelTemplate.DEFAULT_SOURCE, COLUMNS);
+        mBuffer = LabelBuffer.obtain();
+        mRecord = SyntheticLookupFile.record(123456);
+    }
+
+    @Benchmark
+    public int render() {
+        mBuffer.reset();
+        mTemplate.render(mRecord, mBuffer);
+        return mBuffer.length();
+    }
+
+    @Benchmark
+    public int renderRecall() {
+        mBuffer.reset();
+        mTemplate.renderRecall(mRecord, mBuffer);
+        return mBuffer.length();
+    }
+
+    @Benchmark
+    public LabelTemplate compile() {
+        return LabelTemplate.compile(LabelTemplate.DEFAULT_SOURCE, COLUMNS);
+    }
+}
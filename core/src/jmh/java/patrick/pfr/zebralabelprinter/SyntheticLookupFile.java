@@ -0,0 +1,71 @@
+package patrick.pfr.zebralabelprinter;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.Locale;
+
+/**
+ * Author:      Patrick Snelgar
+ * Name:        SyntheticLookupFile.java
+ * Description: Generates lookup csv files shaped like the real ones for the benchmarks: a code in the first column,
+ *              followed by a description and a location. Files are written once per row count and reused.
+ */
+final class SyntheticLookupFile {
+
+    // Where to find each kind of key in a file.
+    enum Position { START, MIDDLE, END, MISS }
+
+    private SyntheticLookupFile() {
+    }
+
+    static File get(int rows) throws IOException {
+        File directory = new File(System.getProperty("benchmark.data.dir", System.getProperty("java.io.tmpdir")));
+        if (!directory.exists() && !directory.mkdirs())
+            throw new IOException("Could not create " + directory);
+
+        File file = new File(directory, "lookup_" + rows + ".csv");
+        if (file.exists()) return file;
+
+        File tmp = new File(directory, file.getName() + ".tmp");
+        Writer out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(tmp), "UTF-8"), 64 * 1024);
+        try {
+            for (int row = 0; row < rows; row++) {
+                out.write(record(row));
+                out.write('\n');
+            }
+        } finally {
+            out.close();
+        }
+        if (!tmp.renameTo(file)) throw new IOException("Could not create " + file);
+        return file;
+    }
+
+    static String record(int row) {
+        return String.format(Locale.US, "%s,Plant sample %d from trial block %d,Glasshouse %d bench %d",
+                key(row), row, row % 97, row % 12, row % 40);
+    }
+
+    static String key(int row) {
+        return String.format(Locale.US, "PFR%09d", row);
+    }
+
+    /**
+     * @return a key found at the given position of a file of the given number of rows, or one that is not in it.
+     */
+    static String keyAt(Position position, int rows) {
+        switch (position) {
+            case START:
+                return key(0);
+            case MIDDLE:
+                return key(rows / 2);
+            case END:
+                return key(rows - 1);
+            default:
+                return key(rows + 1);
+        }
+    }
+}
@@ -0,0 +1,305 @@
+package patrick.pfr.zebralabelprinter;
+
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashSet;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Author:      Patrick Snelgar
+ * Name:        PrintLoadTest.java
+ * Description: Pushes a stream of labels through the print core to SimulatedPrinterTransport printers and reports
+ *              the throughput, how well jobs were batched and connections reused, and the time spent in each stage.
+ *              All times are reported in simulated time, i.e. already divided by the time scale.
+ *
+ *              Usage: ./gradlew :core:loadTest -Pargs="jobs=5000 printers=4 rate=20 scale=0.01"
+ *              Options, with their defaults:
+ *                jobs=2000         labels to print
+ *                printers=3        printers in the pool
+ *                pool=true         share the labels between the printers, false sends them all to the first
+ *                policy=round_robin or least_outstanding
+ *                rate=10           labels submitted per second, 0 submits them all at once
+ *                window=100        batch window in ms
+ *                maxBatch=16384    batch size limit in bytes
+ *                idle=60           connection idle timeout in seconds
+ *                timeout=10        print acknowledge timeout in seconds
+ *                bandwidth=20480   link bytes per second
+ *                connect=1500      connect latency in ms
+ *                print=250         print time per label in ms
+ *                connectFail=0.01, writeFail=0.005, printerFail=0.002   failure probabilities
+ *                scale=0.01        real time per simulated second, 0.01 runs 100 times faster than real time
+ *                seed=1            random seed
+ *                verbose=false     log the print core's own messages
+ */
+public class PrintLoadTest {
+
+    private static final String[] STAGES = { "QUEUE", "CONNECT", "WRITE", "ACKNOWLEDGE", "CLOSE", "END_TO_END" };
+
+    private final Map<String, String> mOptions;
+    private final double mTimeScale;
+    private final Map<String, LatencyHistogram> mHistograms = new HashMap<>();
+    private final Map<PrintResult.Status, AtomicInteger> mStatusCounts = new EnumMap<>(PrintResult.Status.class);
+    // Each batch's jobs share one PrintResult, so counting distinct results counts the batches.
+    private final Set<PrintResult> mBatches = Collections.newSetFromMap(new IdentityHashMap<PrintResult, Boolean>());
+    private final AtomicInteger mConnected = new AtomicInteger();
+
+    public static void main(String[] args) throws InterruptedException {
+        Map<String, String> options = new HashMap<>();
+        for (String arg : args) {
+            int split = arg.indexOf('=');
+            if (split < 0) throw new IllegalArgumentException("Expected key=value, got " + arg);
+            options.put(arg.substring(0, split), arg.substring(split + 1));
+        }
+        new PrintLoadTest(options).run();
+    }
+
+    private PrintLoadTest(Map<String, String> options) {
+        mOptions = options;
+        mTimeScale = getDouble("scale", 0.01);
+        for (String stage : STAGES) {
+            mHistograms.put(stage, new LatencyHistogram());
+        }
+        for (PrintResult.Status status : PrintResult.Status.values()) {
+            mStatusCounts.put(status, new AtomicInteger());
+        }
+    }
+
+    private void run() throws InterruptedException {
+        if (!getBoolean("verbose", false)) {
+            Logger.getLogger("").setLevel(Level.SEVERE);
+        }
+
+        final int jobs = getInt("jobs", 2000);
+        int printers = getInt("printers", 3);
+        final boolean pooled = getBoolean("pool", true);
+        double rate = getDouble("rate", 10);
+
+        SimulatedPrinterTransport transport = new SimulatedPrinterTransport(getInt("seed", 1));
+        transport.bytesPerSecond = getInt("bandwidth", 20 * 1024);
+        transport.connectLatencyMs = getInt("connect", 1500);
+        transport.labelPrintMs = getInt("print", 250);
+        transport.connectFailureRate = getDouble("connectFail", 0.01);
+        transport.writeFailureRate = getDouble("writeFail", 0.005);
+        transport.printerErrorRate = getDouble("printerFail", 0.002);
+        transport.timeScale = mTimeScale;
+
+        final Set<String> members = new LinkedHashSet<>();
+        for (int i = 1; i <= printers; i++) {
+            members.add(String.format(Locale.US, "SIM:%02d", i));
+        }
+        final String firstPrinter = members.iterator().next();
+
+        PrintSettings settings = new LoadTestSettings(members);
+        Recorder recorder = new Recorder();
+        PrinterConnections connections = new PrinterConnections(transport, settings, recorder, new MemoryGraphicRegistry());
+        // Results are handled on the print core's threads, there is no main thread to post them to.
+        PrintDispatcher dispatcher = new PrintDispatcher(connections, settings, recorder, new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                command.run();
+            }
+        });
+
+        final CountDownLatch finished = new CountDownLatch(jobs);
+        PrintJob.Callback callback = new PrintJob.Callback() {
+            @Override
+            public void onJobComplete(PrintJob job, PrintResult result) {
+                record("END_TO_END", System.nanoTime() - job.createdAt);
+                mStatusCounts.get(result.status).incrementAndGet();
+                synchronized (mBatches) {
+                    mBatches.add(result);
+                }
+                finished.countDown();
+            }
+        };
+
+        System.out.printf(Locale.US, "Printing %d labels to %d %s printers at %.1f labels/s, time scale %.3f%n",
+                jobs, printers, pooled ? "pooled" : "direct", rate, mTimeScale);
+        long start = System.nanoTime();
+        long intervalNanos = rate > 0 ? (long) (1e9 / rate * mTimeScale) : 0;
+        for (int i = 0; i < jobs; i++) {
+            String format = String.format(Locale.US,
+                    "^XA^FO40,40^A0N,40,40^FDItem %06d^FS^FO40,100^BQN,2,6^FDQA,%06d^FS^XZ", i, i);
+            LabelBuffer data = LabelBuffer.obtain();
+            data.writeUtf8(format, 0, format.length());
+            dispatcher.enqueue(new PrintJob(pooled ? null : firstPrinter, data, "Item " + i, callback));
+            if (intervalNanos > 0) {
+                long next = start + (i + 1) * intervalNanos;
+                long wait = next - System.nanoTime();
+                if (wait > 0) TimeUnit.NANOSECONDS.sleep(wait);
+            }
+        }
+
+        // Generous, the run is stuck if every job has not finished by then.
+        long limitSeconds = (long) Math.max(60, jobs * (transport.labelPrintMs + 1000) / 1000.0 * mTimeScale);
+        if (!finished.await(limitSeconds, TimeUnit.SECONDS)) {
+            System.out.println("Timed out with " + finished.getCount() + " labels unfinished");
+        }
+        double elapsedSeconds = (System.nanoTime() - start) / 1e9 / mTimeScale;
+        dispatcher.shutdown();
+        connections.shutdown();
+
+        report(transport, members, jobs, elapsedSeconds);
+    }
+
+    private void report(SimulatedPrinterTransport transport, Set<String> members, int jobs, double elapsedSeconds) {
+        System.out.printf(Locale.US, "%nSimulated time %.1f s, %.1f labels/min%n",
+                elapsedSeconds, jobs / elapsedSeconds * 60);
+        for (PrintResult.Status status : PrintResult.Status.values()) {
+            System.out.printf(Locale.US, "  %-18s %6d%n", status, mStatusCounts.get(status).get());
+        }
+        int batches;
+        synchronized (mBatches) {
+            batches = mBatches.size();
+        }
+        System.out.printf(Locale.US, "%nBatches %d, %.2f labels per batch, %d connections opened%n",
+                batches, batches == 0 ? 0.0 : (double) jobs / batches, mConnected.get());
+
+        System.out.printf(Locale.US, "%n%-10s %8s %8s%n", "Printer", "Labels", "Connects");
+        for (String address : members) {
+            System.out.printf(Locale.US, "%-10s %8d %8d%n", address, transport.getLabels(address), transport.getConnects(address));
+        }
+
+        System.out.printf(Locale.US, "%n%-12s %7s %9s %9s %9s %9s %6s%n", "Stage", "Count", "p50 ms", "p95 ms", "p99 ms", "max ms", "Err%");
+        for (String stage : STAGES) {
+            LatencyHistogram.Snapshot snapshot = mHistograms.get(stage).snapshot(0);
+            System.out.printf(Locale.US, "%-12s %7d %9.1f %9.1f %9.1f %9.1f %6.1f%n",
+                    stage, snapshot.count,
+                    snapshot.percentileMicros(50) / 1000.0,
+                    snapshot.percentileMicros(95) / 1000.0,
+                    snapshot.percentileMicros(99) / 1000.0,
+                    snapshot.maxMicros / 1000.0,
+                    snapshot.errorRate() * 100);
+        }
+    }
+
+    /**
+     * Records a duration measured in real time as simulated time.
+     */
+    private void record(String stage, long durationNanos) {
+        // Recorded at time 0 so the histogram's rolling window never drops any of the run.
+        mHistograms.get(stage).record(0, (long) (durationNanos / mTimeScale / 1000));
+    }
+
+    private class Recorder implements PrintListener {
+
+        @Override
+        public void onStageStarted(Stage stage) {
+        }
+
+        @Override
+        public void onStageFinished(Stage stage, long durationNanos, boolean success) {
+            if (success) record(stage.name(), durationNanos);
+            else mHistograms.get(stage.name()).recordError(0);
+        }
+
+        @Override
+        public void onJobDequeued(PrintJob job, long waitNanos) {
+            record("QUEUE", waitNanos);
+        }
+
+        @Override
+        public void onConnected(String address) {
+            mConnected.incrementAndGet();
+        }
+
+        @Override
+        public void onPrinted(String address) {
+        }
+    }
+
+    /**
+     * Graphics held by the simulated printers, only for the length of the run.
+     */
+    private static class MemoryGraphicRegistry implements GraphicRegistry {
+
+        private final Set<String> mStored = Collections.synchronizedSet(new HashSet<String>());
+
+        @Override
+        public boolean isStored(String printerAddress, String graphicName) {
+            return mStored.contains(printerAddress + "/" + graphicName);
+        }
+
+        @Override
+        public void markStored(String printerAddress, String graphicName) {
+            mStored.add(printerAddress + "/" + graphicName);
+        }
+    }
+
+    /**
+     * Settings from the command line, with every time scaled to run at the simulation's speed.
+     */
+    private class LoadTestSettings implements PrintSettings {
+
+        private final Set<String> mMembers;
+        private final PrinterSelector.Policy mPolicy;
+
+        LoadTestSettings(Set<String> members) {
+            mMembers = getBoolean("pool", true) ? Collections.unmodifiableSet(members) : Collections.<String>emptySet();
+            mPolicy = "least_outstanding".equals(getString("policy", "round_robin"))
+                    ? PrinterSelector.Policy.LEAST_OUTSTANDING : PrinterSelector.Policy.ROUND_ROBIN;
+        }
+
+        @Override
+        public long getIdleTimeoutMs() {
+            return scaled(getInt("idle", 60) * 1000L);
+        }
+
+        @Override
+        public long getPrintTimeoutMs() {
+            return scaled(getInt("timeout", 10) * 1000L);
+        }
+
+        @Override
+        public long getBatchWindowMs() {
+            return scaled(getInt("window", 100));
+        }
+
+        @Override
+        public int getMaxBatchBytes() {
+            return getInt("maxBatch", 16 * 1024);
+        }
+
+        @Override
+        public Set<String> getPoolMembers() {
+            return mMembers;
+        }
+
+        @Override
+        public PrinterSelector.Policy getPoolPolicy() {
+            return mPolicy;
+        }
+
+        private long scaled(long ms) {
+            return Math.max(1, (long) (ms * mTimeScale));
+        }
+    }
+
+    private String getString(String key, String defaultValue) {
+        String value = mOptions.get(key);
+        return value != null ? value : defaultValue;
+    }
+
+    private int getInt(String key, int defaultValue) {
+        return Integer.parseInt(getString(key, String.valueOf(defaultValue)));
+    }
+
+    private double getDouble(String key, double defaultValue) {
+        return Double.parseDouble(getString(key, String.valueOf(defaultValue)));
+    }
+
+    private boolean getBoolean(String key, boolean defaultValue) {
+        return Boolean.parseBoolean(getString(key, String.valueOf(defaultValue)));
+    }
+}
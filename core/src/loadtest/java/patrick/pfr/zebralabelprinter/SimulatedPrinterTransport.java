@@ -0,0 +1,158 @@
+package patrick.pfr.zebralabelprinter;
+
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Author:      Patrick Snelgar
+ * Name:        SimulatedPrinterTransport.java
+ * Description: PrintTransport to imaginary printers, for running the print core without hardware.
+ *              Writes take as long as the link bandwidth allows, each label (^XZ) takes a fixed time to print
+ *              once it has arrived, and connects, writes and prints fail at random with the configured rates.
+ *              Every delay is multiplied by the time scale, so a long run can be simulated quickly.
+ */
+class SimulatedPrinterTransport implements PrintTransport {
+
+    private static final byte[] END_OF_FORMAT = "^XZ".getBytes();
+
+    // Bytes per second the link carries, roughly a Bluetooth SPP link to a mobile printer.
+    long bytesPerSecond = 20 * 1024;
+    long connectLatencyMs = 1500;
+    long labelPrintMs = 250;
+    double connectFailureRate = 0.01;
+    double writeFailureRate = 0.005;
+    double printerErrorRate = 0.002;
+    double timeScale = 1.0;
+
+    private final Random mRandom;
+    private final ConcurrentMap<String, AtomicInteger> mConnects = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, AtomicInteger> mLabels = new ConcurrentHashMap<>();
+
+    SimulatedPrinterTransport(long seed) {
+        mRandom = new Random(seed);
+    }
+
+    @Override
+    public Link connect(String address) throws IOException {
+        count(mConnects, address, 1);
+        sleep(connectLatencyMs * 1000000);
+        if (chance(connectFailureRate)) throw new IOException("Simulated connect failure to " + address);
+        return new SimulatedLink(address);
+    }
+
+    /**
+     * @return the number of connections opened to the printer, including failed attempts.
+     */
+    int getConnects(String address) {
+        AtomicInteger count = mConnects.get(address);
+        return count == null ? 0 : count.get();
+    }
+
+    /**
+     * @return the number of labels the printer received.
+     */
+    int getLabels(String address) {
+        AtomicInteger count = mLabels.get(address);
+        return count == null ? 0 : count.get();
+    }
+
+    private class SimulatedLink implements Link {
+
+        private final String mAddress;
+        private boolean mConnected = true;
+        // System.nanoTime() at which the printer will have printed everything sent so far.
+        private long mBusyUntil = System.nanoTime();
+
+        SimulatedLink(String address) {
+            mAddress = address;
+        }
+
+        @Override
+        public void write(byte[] data) throws IOException {
+            if (!mConnected) throw new IOException("Not connected");
+            sleep(data.length * 1000000000L / bytesPerSecond);
+            if (chance(writeFailureRate)) {
+                mConnected = false;
+                throw new IOException("Simulated link drop to " + mAddress);
+            }
+            int labels = countLabels(data);
+            count(mLabels, mAddress, labels);
+            // The printer starts on the labels as they arrive, unless it is still busy with earlier ones.
+            long printNanos = (long) (labels * labelPrintMs * 1000000 * timeScale);
+            mBusyUntil = Math.max(mBusyUntil, System.nanoTime()) + printNanos;
+        }
+
+        @Override
+        public PrintResult awaitCompletion(long timeoutMs) {
+            long start = System.nanoTime();
+            if (chance(printerErrorRate)) {
+                return new PrintResult(PrintResult.Status.PRINTER_ERROR, "Simulated printer out of paper", 0);
+            }
+            // The timeout comes from the load test's settings, which are already scaled.
+            long timeoutNanos = timeoutMs * 1000000;
+            long remaining = mBusyUntil - start;
+            if (remaining > timeoutNanos) {
+                sleepScaled(timeoutNanos);
+                return new PrintResult(PrintResult.Status.TIMEOUT, "Simulated printer still busy",
+                        (System.nanoTime() - start) / 1000000);
+            }
+            sleepScaled(remaining);
+            return new PrintResult(PrintResult.Status.COMPLETED, null, (System.nanoTime() - start) / 1000000);
+        }
+
+        @Override
+        public boolean isConnected() {
+            return mConnected;
+        }
+
+        @Override
+        public void close() {
+            mConnected = false;
+        }
+    }
+
+    private static int countLabels(byte[] data) {
+        int labels = 0;
+        for (int i = 0; i + END_OF_FORMAT.length <= data.length; i++) {
+            if (data[i] == END_OF_FORMAT[0] && data[i + 1] == END_OF_FORMAT[1] && data[i + 2] == END_OF_FORMAT[2]) {
+                labels++;
+            }
+        }
+        return labels;
+    }
+
+    private static void count(ConcurrentMap<String, AtomicInteger> counts, String address, int delta) {
+        AtomicInteger count = counts.get(address);
+        if (count == null) {
+            AtomicInteger created = new AtomicInteger();
+            count = counts.putIfAbsent(address, created);
+            if (count == null) count = created;
+        }
+        count.addAndGet(delta);
+    }
+
+    private boolean chance(double rate) {
+        synchronized (mRandom) {
+            return mRandom.nextDouble() < rate;
+        }
+    }
+
+    /**
+     * Sleeps for the simulated duration, scaled by the time scale.
+     */
+    private void sleep(long simulatedNanos) {
+        sleepScaled((long) (simulatedNanos * timeScale));
+    }
+
+    private static void sleepScaled(long nanos) {
+        if (nanos <= 0) return;
+        try {
+            Thread.sleep(nanos / 1000000, (int) (nanos % 1000000));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
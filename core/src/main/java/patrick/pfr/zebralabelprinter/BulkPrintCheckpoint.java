@@ -0,0 +1,115 @@
+package patrick.pfr.zebralabelprinter;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+/**
+ * Author:      Patrick Snelgar
+ * Name:        BulkPrintCheckpoint.java
+ * Description: How far a BulkPrintRun got through its csv file, saved so an interrupted run can carry on.
+ *              Every data row before the scanned row has printed or did not match, apart from the outstanding
+ *              rows, which were sent but not confirmed or failed, and are printed again on resume.
+ *              Rows are counted from the first data row, i.e. after any header.
+ */
+final class BulkPrintCheckpoint {
+
+    private static final int MAGIC = 0x5a4c5042; // "ZLPB"
+    private static final int VERSION = 1;
+
+    // Identity of the version of the csv file the run is printing, resuming against any other is refused.
+    final String source;
+    // Inclusive range of key column values to print, null for no bound.
+    final String from;
+    final String to;
+    final long scannedRows;
+    // Offset in the file just past the last scanned row, for progress.
+    final long scannedBytes;
+    final long printedRows;
+    final long[] outstandingRows;
+
+    BulkPrintCheckpoint(String source, String from, String to) {
+        this(source, from, to, 0, 0, 0, new long[0]);
+    }
+
+    BulkPrintCheckpoint(String source, String from, String to, long scannedRows, long scannedBytes,
+                        long printedRows, long[] outstandingRows) {
+        this.source = source;
+        this.from = from;
+        this.to = to;
+        this.scannedRows = scannedRows;
+        this.scannedBytes = scannedBytes;
+        this.printedRows = printedRows;
+        this.outstandingRows = outstandingRows;
+    }
+
+    /**
+     * Writes the checkpoint to a temporary file and renames it over the destination, so a crash part way
+     * through leaves the previous checkpoint in place.
+     * @param file
+     */
+    void write(File file) throws IOException {
+        File tmp = new File(file.getPath() + ".tmp");
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+        try {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeUTF(source);
+            writeBound(out, from);
+            writeBound(out, to);
+            out.writeLong(scannedRows);
+            out.writeLong(scannedBytes);
+            out.writeLong(printedRows);
+            out.writeInt(outstandingRows.length);
+            for (long row : outstandingRows) {
+                out.writeLong(row);
+            }
+        } finally {
+            out.close();
+        }
+        if (!tmp.renameTo(file))
+            throw new IOException("Could not rename " + tmp + " to " + file);
+    }
+
+    /**
+     * @param file
+     * @return the saved checkpoint, or null if there is none.
+     * @throws IOException if the file cannot be read or was not written by this version.
+     */
+    static BulkPrintCheckpoint read(File file) throws IOException {
+        if (!file.exists()) return null;
+
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+        try {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION)
+                throw new IOException("Unsupported bulk print checkpoint " + file);
+            String source = in.readUTF();
+            String from = readBound(in);
+            String to = readBound(in);
+            long scannedRows = in.readLong();
+            long scannedBytes = in.readLong();
+            long printedRows = in.readLong();
+            long[] outstandingRows = new long[in.readInt()];
+            for (int i = 0; i < outstandingRows.length; i++) {
+                outstandingRows[i] = in.readLong();
+            }
+            return new BulkPrintCheckpoint(source, from, to, scannedRows, scannedBytes, printedRows, outstandingRows);
+        } finally {
+            in.close();
+        }
+    }
+
+    private static void writeBound(DataOutputStream out, String bound) throws IOException {
+        out.writeBoolean(bound != null);
+        if (bound != null) out.writeUTF(bound);
+    }
+
+    private static String readBound(DataInputStream in) throws IOException {
+        return in.readBoolean() ? in.readUTF() : null;
+    }
+}
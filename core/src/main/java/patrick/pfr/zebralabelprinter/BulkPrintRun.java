@@ -0,0 +1,458 @@
+package patrick.pfr.zebralabelprinter;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Collection;
+import java.util.TreeSet;
+import java.util.concurrent.Executor;
+import java.util.logging.Logger;
+
+/**
+ * Author:      Patrick Snelgar
+ * Name:        BulkPrintRun.java
+ * Description: Prints a label for every row of a csv file, or every row whose key column falls in a range.
+ *              A producer thread streams the file with a CsvReader, renders each matching row and hands it to
+ *              the sink, so the next labels are rendered while earlier ones are still being written to the
+ *              printer. At most MAX_IN_FLIGHT labels are outstanding at once, the producer waits for labels
+ *              to print before rendering more, so memory stays bounded however large the file is.
+ *              Rows are handed to the renderer in the default dialect, as lookups return them.
+ *
+ *              A label the printer fails pauses the run. On resume the file is read again from the top and
+ *              the failed rows are printed again before carrying on, so labels still come out in file order.
+ *              A label the printer received but did not acknowledge, e.g. a timeout, may have printed, so it
+ *              pauses the run without being printed again and is counted as unconfirmed for the user to check.
+ *              Progress is saved to a BulkPrintCheckpoint every SAVE_INTERVAL labels and whenever the run
+ *              pauses, so a run interrupted by the process dying can carry on from the last save. Labels
+ *              printed after that save, or sent but not confirmed, are printed again.
+ */
+final class BulkPrintRun {
+
+    private static final Logger LOG = Logger.getLogger(BulkPrintRun.class.getSimpleName());
+
+    // Labels rendered and handed to the sink but not yet printed.
+    static final int MAX_IN_FLIGHT = 32;
+    // Labels printed between checkpoint saves.
+    private static final int SAVE_INTERVAL = 50;
+
+    private static final int PASS_CONTINUE = 0;
+    private static final int PASS_COMPLETE = 1;
+    private static final int PASS_RESTART = 2;
+    private static final int PASS_STOPPED = 3;
+
+    enum State {
+        RUNNING,
+        // Paused by the user, or because a label did not print.
+        PAUSED,
+        CANCELLED,
+        // Every matching row has printed.
+        FINISHED,
+        // The csv file could not be read, the checkpoint is kept so the run can be resumed later.
+        FAILED
+    }
+
+    /**
+     * The csv file being printed, opened again for each pass over it.
+     */
+    interface Source {
+        InputStream open() throws IOException;
+
+        /**
+         * @return the size of the file in bytes, or -1 if it is not known.
+         */
+        long size();
+    }
+
+    /**
+     * Renders a row into a label format, called on the producer thread.
+     */
+    interface Renderer {
+        /**
+         * @param record csv line, in the default dialect
+         * @param out
+         * @return the layout the format recalls, or null if the format is complete.
+         */
+        StoredFormat render(String record, LabelBuffer out);
+
+        /**
+         * @return the graphics drawn by the rendered labels.
+         */
+        Collection<StoredGraphic> getGraphics();
+    }
+
+    /**
+     * Receives each rendered label, e.g. the print queue.
+     */
+    interface Sink {
+        void submit(PrintJob job);
+    }
+
+    /**
+     * Told of progress and each change of state on the callback executor.
+     */
+    interface Listener {
+        void onUpdate(Status status);
+    }
+
+    static final class Status {
+        final State state;
+        final long printedRows;
+        // Rows the printer failed that are waiting to be printed again.
+        final int failedRows;
+        // Rows sent to the printer that it did not acknowledge, they may or may not have printed.
+        final long unconfirmedRows;
+        final long scannedBytes;
+        // Size of the csv file, or -1 if unknown.
+        final long totalBytes;
+        // Why the run paused or failed, null if it was not a failure.
+        final String message;
+
+        Status(State state, long printedRows, int failedRows, long unconfirmedRows, long scannedBytes, long totalBytes,
+               String message) {
+            this.state = state;
+            this.printedRows = printedRows;
+            this.failedRows = failedRows;
+            this.unconfirmedRows = unconfirmedRows;
+            this.scannedBytes = scannedBytes;
+            this.totalBytes = totalBytes;
+            this.message = message;
+        }
+
+        /**
+         * @return how far through the file the run is, from 0 to 100, or -1 if the file size is unknown.
+         */
+        int percent() {
+            if (totalBytes <= 0) return -1;
+            return (int) Math.min(100, scannedBytes * 100 / totalBytes);
+        }
+    }
+
+    private final Source mSource;
+    private final CsvReader.Dialect mDialect;
+    private final int mKeyColumn;
+    private final BulkPrintCheckpoint mStart;
+    private final File mCheckpointFile;
+    private final Renderer mRenderer;
+    private final String mPrinterAddress;
+    private final Sink mSink;
+    private final Listener mListener;
+    private final Executor mCallbackExecutor;
+    private final byte[] mFrom;
+    private final byte[] mTo;
+    private final long mTotalBytes;
+
+    // Guarded by this.
+    private State mState = State.RUNNING;
+    private String mMessage;
+    // Every row before this has been handed to the sink or did not match.
+    private long mScannedRows;
+    private long mScannedBytes;
+    private long mPrintedRows;
+    private long mUnconfirmedRows;
+    private final TreeSet<Long> mInFlight = new TreeSet<>();
+    private final TreeSet<Long> mFailed = new TreeSet<>();
+    private int mChangesSinceSave = 0;
+
+    /**
+     * @param source
+     * @param dialect of the csv file
+     * @param keyColumn column the range applies to and the labels are named after, counting from 0
+     * @param checkpoint where to start, a new checkpoint for a fresh run or one read back to resume
+     * @param checkpointFile where progress is saved, deleted once the run finishes or is cancelled
+     * @param renderer
+     * @param printerAddress null to print on the printer pool
+     * @param sink
+     * @param listener
+     * @param callbackExecutor
+     */
+    BulkPrintRun(Source source, CsvReader.Dialect dialect, int keyColumn, BulkPrintCheckpoint checkpoint,
+                 File checkpointFile, Renderer renderer, String printerAddress, Sink sink, Listener listener,
+                 Executor callbackExecutor) {
+        mSource = source;
+        mDialect = dialect;
+        mKeyColumn = keyColumn;
+        mStart = checkpoint;
+        mCheckpointFile = checkpointFile;
+        mRenderer = renderer;
+        mPrinterAddress = printerAddress;
+        mSink = sink;
+        mListener = listener;
+        mCallbackExecutor = callbackExecutor;
+        mFrom = checkpoint.from != null ? checkpoint.from.getBytes(CsvReader.UTF_8) : null;
+        mTo = checkpoint.to != null ? checkpoint.to.getBytes(CsvReader.UTF_8) : null;
+        mTotalBytes = source.size();
+
+        mScannedRows = checkpoint.scannedRows;
+        mScannedBytes = checkpoint.scannedBytes;
+        mPrintedRows = checkpoint.printedRows;
+        // Labels that were outstanding when the checkpoint was saved may not have printed.
+        for (long row : checkpoint.outstandingRows) {
+            mFailed.add(row);
+        }
+    }
+
+    /**
+     * Starts the producer thread.
+     */
+    void start() {
+        Thread producer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                produce();
+            }
+        }, "BulkPrintRun");
+        producer.start();
+        report();
+    }
+
+    synchronized void pause() {
+        if (mState != State.RUNNING) return;
+        mState = State.PAUSED;
+        mMessage = null;
+        notifyAll();
+        report();
+    }
+
+    synchronized void resume() {
+        if (mState != State.PAUSED) return;
+        mState = State.RUNNING;
+        mMessage = null;
+        notifyAll();
+        report();
+    }
+
+    /**
+     * Stops the run, labels already handed to the sink still print.
+     * The cancellation is reported once the producer thread has stopped.
+     */
+    synchronized void cancel() {
+        if (mState != State.RUNNING && mState != State.PAUSED) return;
+        mState = State.CANCELLED;
+        mMessage = null;
+        notifyAll();
+    }
+
+    synchronized Status getStatus() {
+        return new Status(mState, mPrintedRows, mFailed.size(), mUnconfirmedRows, mScannedBytes, mTotalBytes, mMessage);
+    }
+
+    /**
+     * @return the csv file's identity this run is printing, see BulkPrintCheckpoint.source.
+     */
+    String getSource() {
+        return mStart.source;
+    }
+
+    private void produce() {
+        try {
+            save(checkpoint());
+            while (true) {
+                int pass = runPass();
+                if (pass == PASS_STOPPED) break;
+                if (pass == PASS_RESTART) continue;
+                if (!awaitDrained()) break;
+
+                synchronized (this) {
+                    // Any failures are printed on the next pass, once the run is resumed.
+                    if (!mFailed.isEmpty()) continue;
+                    mState = State.FINISHED;
+                }
+                LOG.fine("Bulk print finished, " + mPrintedRows + " labels");
+                break;
+            }
+        } catch (InterruptedException e) {
+            stopWithError("Interrupted");
+        } catch (IOException e) {
+            LOG.warning("Bulk print failed: " + e.getMessage());
+            stopWithError("Could not read the lookup file: " + e.getMessage());
+        }
+
+        // The final state is only reported once the checkpoint is settled, so a new run can safely replace it.
+        State state = getStatus().state;
+        if (state == State.FINISHED || state == State.CANCELLED) {
+            if (mCheckpointFile.exists() && !mCheckpointFile.delete())
+                LOG.warning("Could not delete " + mCheckpointFile);
+        } else {
+            try {
+                save(checkpoint());
+            } catch (IOException e) {
+                LOG.warning("Could not save bulk print checkpoint: " + e.getMessage());
+            }
+        }
+        report();
+    }
+
+    private synchronized void stopWithError(String message) {
+        if (mState == State.CANCELLED) return;
+        mState = State.FAILED;
+        mMessage = message;
+    }
+
+    /**
+     * Reads through the file once, handing every matching row that has not been sent yet, and every failed row,
+     * to the sink.
+     * @return PASS_COMPLETE at the end of the file, PASS_RESTART to start again from the top or PASS_STOPPED.
+     */
+    private int runPass() throws IOException, InterruptedException {
+        CsvReader reader = new CsvReader(mSource.open(), mDialect, mKeyColumn);
+        try {
+            long row = -1;
+            while (reader.next()) {
+                row++;
+                boolean reprint;
+                synchronized (this) {
+                    if (mState == State.CANCELLED) return PASS_STOPPED;
+                    reprint = row < mScannedRows;
+                    if (reprint && !mFailed.contains(row)) continue;
+                }
+                if (!reprint && !inRange(reader)) {
+                    synchronized (this) {
+                        mScannedRows = row + 1;
+                        mScannedBytes = reader.getPosition();
+                    }
+                    continue;
+                }
+
+                int wait = awaitSlot(row);
+                if (wait != PASS_CONTINUE) return wait;
+
+                String record = reader.record();
+                if (mDialect != CsvReader.Dialect.DEFAULT)
+                    record = CsvReader.convert(record, mDialect, CsvReader.Dialect.DEFAULT);
+                LabelBuffer buffer = LabelBuffer.obtain();
+                StoredFormat storedFormat = mRenderer.render(record, buffer);
+                String label = CsvReader.field(record, mKeyColumn, CsvReader.Dialect.DEFAULT);
+                PrintJob job = new PrintJob(mPrinterAddress, buffer, label, new RowCallback(row), storedFormat,
+                        mRenderer.getGraphics());
+                synchronized (this) {
+                    mFailed.remove(row);
+                    mInFlight.add(row);
+                    if (!reprint) {
+                        mScannedRows = row + 1;
+                        mScannedBytes = reader.getPosition();
+                    }
+                }
+                mSink.submit(job);
+            }
+            return PASS_COMPLETE;
+        } finally {
+            reader.close();
+        }
+    }
+
+    private boolean inRange(CsvReader reader) {
+        return (mFrom == null || reader.compareKey(mFrom) >= 0) && (mTo == null || reader.compareKey(mTo) <= 0);
+    }
+
+    /**
+     * Waits until the run is not paused and there is room for another label, saving the checkpoint while waiting.
+     * @param row the row about to be sent
+     * @return PASS_CONTINUE to send the row, PASS_RESTART if an earlier row failed or PASS_STOPPED.
+     */
+    private int awaitSlot(long row) throws IOException, InterruptedException {
+        while (true) {
+            BulkPrintCheckpoint snapshot = null;
+            synchronized (this) {
+                if (mState == State.CANCELLED) return PASS_STOPPED;
+                if (mState == State.RUNNING) {
+                    if (!mFailed.isEmpty() && mFailed.first() < row) return PASS_RESTART;
+                    if (mInFlight.size() < MAX_IN_FLIGHT) return PASS_CONTINUE;
+                }
+                if (isSaveDue()) snapshot = checkpoint();
+                else wait();
+            }
+            if (snapshot != null) save(snapshot);
+        }
+    }
+
+    /**
+     * Waits for every label handed to the sink to print or fail.
+     * @return false if the run was cancelled.
+     */
+    private boolean awaitDrained() throws IOException, InterruptedException {
+        while (true) {
+            BulkPrintCheckpoint snapshot = null;
+            synchronized (this) {
+                if (mState == State.CANCELLED) return false;
+                if (mInFlight.isEmpty()) return true;
+                if (isSaveDue()) snapshot = checkpoint();
+                else wait();
+            }
+            if (snapshot != null) save(snapshot);
+        }
+    }
+
+    // Guarded by this.
+    private boolean isSaveDue() {
+        return mChangesSinceSave >= SAVE_INTERVAL || (mState != State.RUNNING && mChangesSinceSave > 0);
+    }
+
+    /**
+     * @return the current progress, with every label in flight or failed as outstanding.
+     */
+    private synchronized BulkPrintCheckpoint checkpoint() {
+        long[] outstanding = new long[mInFlight.size() + mFailed.size()];
+        int i = 0;
+        for (long row : mInFlight) {
+            outstanding[i++] = row;
+        }
+        for (long row : mFailed) {
+            outstanding[i++] = row;
+        }
+        mChangesSinceSave = 0;
+        return new BulkPrintCheckpoint(mStart.source, mStart.from, mStart.to, mScannedRows, mScannedBytes,
+                mPrintedRows, outstanding);
+    }
+
+    private void save(BulkPrintCheckpoint checkpoint) throws IOException {
+        checkpoint.write(mCheckpointFile);
+    }
+
+    private void report() {
+        final Status status = getStatus();
+        mCallbackExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                mListener.onUpdate(status);
+            }
+        });
+    }
+
+    /**
+     * Records the outcome of one row's label, a failure pauses the run.
+     */
+    private final class RowCallback implements PrintJob.Callback {
+
+        private final long mRow;
+
+        RowCallback(long row) {
+            mRow = row;
+        }
+
+        @Override
+        public void onJobComplete(PrintJob job, PrintResult result) {
+            synchronized (BulkPrintRun.this) {
+                mInFlight.remove(mRow);
+                if (result.isSuccess()) {
+                    mPrintedRows++;
+                } else if (result.sent) {
+                    // Printing it again could duplicate the label, pause so the user can check the printer.
+                    mUnconfirmedRows++;
+                    if (mState == State.RUNNING) {
+                        mState = State.PAUSED;
+                        mMessage = job.label + " may not have printed, check the printer: " + result;
+                    }
+                } else {
+                    mFailed.add(mRow);
+                    if (mState == State.RUNNING) {
+                        mState = State.PAUSED;
+                        mMessage = job.label + " did not print: " + result;
+                    }
+                }
+                mChangesSinceSave++;
+                BulkPrintRun.this.notifyAll();
+                if (mState != State.CANCELLED) report();
+            }
+        }
+    }
+}
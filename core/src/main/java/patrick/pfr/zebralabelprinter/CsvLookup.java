@@ -0,0 +1,63 @@
+package patrick.pfr.zebralabelprinter;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Author:      Patrick Snelgar
+ * Name:        CsvLookup.java
+ * Description: Finds a record of a csv file by its key column, the first unless another is given,
+ *              by reading through the file, used while no LookupIndexFile is available for it.
+ */
+final class CsvLookup {
+
+    private CsvLookup() {
+    }
+
+    /**
+     * Reads through the stream record by record until the key is found, the stream is closed before returning.
+     * @param in
+     * @param key
+     * @return the matching record, or null if no record matched.
+     */
+    static String scan(InputStream in, String key) throws IOException {
+        return scan(in, key, CsvReader.Dialect.DEFAULT);
+    }
+
+    /**
+     * @see #scan(InputStream, String)
+     */
+    static String scan(InputStream in, String key, CsvReader.Dialect dialect) throws IOException {
+        return scan(in, key, dialect, 0);
+    }
+
+    /**
+     * @param keyColumn column holding the key, counting from 0
+     * @see #scan(InputStream, String)
+     */
+    static String scan(InputStream in, String key, CsvReader.Dialect dialect, int keyColumn) throws IOException {
+        return scan(in, key, dialect, keyColumn, null);
+    }
+
+    /**
+     * @param keyColumn column holding the key, counting from 0
+     * @param cancellation checked as the file is read, or null if the scan cannot be cancelled
+     * @throws CsvReader.CancelledException if the cancellation reports the scan is no longer wanted.
+     * @see #scan(InputStream, String)
+     */
+    static String scan(InputStream in, String key, CsvReader.Dialect dialect, int keyColumn,
+                       CsvReader.Cancellation cancellation) throws IOException {
+        byte[] keyBytes = key.getBytes(CsvReader.UTF_8);
+        CsvReader reader = new CsvReader(in, dialect, keyColumn, cancellation);
+        try {
+            while (reader.next()) {
+                if (reader.keyEquals(keyBytes)) {
+                    return reader.record();
+                }
+            }
+            return null;
+        } finally {
+            reader.close();
+        }
+    }
+}
@@ -0,0 +1,412 @@
+package patrick.pfr.zebralabelprinter;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+
+/**
+ * Author:      Patrick Snelgar
+ * Name:        CsvReader.java
+ * Description: Streaming RFC 4180 csv reader over the raw UTF-8 bytes of a file. Records are found by scanning
+ *              the bytes for the delimiter, quote and line feed, and the key column, the first unless another is
+ *              given, is compared against the key's bytes in place, so stepping through a file allocates nothing
+ *              per record. Only the record asked for with record() is decoded into a String.
+ *
+ *              Quoted fields may contain the delimiter, line breaks and doubled quotes. As in most spreadsheets a
+ *              quote only starts a quoted field at the start of the field, elsewhere it is part of the value,
+ *              e.g. 3/4" fitting. A UTF-8 byte order mark
+ *              at the start of the file is skipped, as is the header row if the dialect has one.
+ *              A read can be given a Cancellation, which is checked each time more input is read.
+ *              The static helpers find fields within a record that has already been decoded.
+ */
+final class CsvReader implements Closeable {
+
+    static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    /**
+     * The separators of a csv file. Both must be ASCII, so they can never appear inside a multi-byte character.
+     */
+    static final class Dialect {
+
+        static final Dialect DEFAULT = new Dialect(',', '"', false);
+
+        final char delimiter;
+        final char quote;
+        // Whether the first record holds column names rather than data.
+        final boolean hasHeader;
+
+        Dialect(char delimiter, char quote, boolean hasHeader) {
+            if (delimiter >= 0x80 || quote >= 0x80 || delimiter == quote || delimiter == '\n' || quote == '\n')
+                throw new IllegalArgumentException("Unsupported csv dialect");
+            this.delimiter = delimiter;
+            this.quote = quote;
+            this.hasHeader = hasHeader;
+        }
+    }
+
+    /**
+     * Checked before each read of the input, so a long read can be abandoned part way through.
+     */
+    interface Cancellation {
+        boolean isCancelled();
+    }
+
+    /**
+     * Thrown when the read's Cancellation reports it is no longer wanted.
+     */
+    static final class CancelledException extends IOException {
+        CancelledException() {
+            super("Read cancelled");
+        }
+    }
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final InputStream mIn;
+    private final byte mDelimiter;
+    private final byte mQuote;
+    private final boolean mSkipHeader;
+    private final int mKeyColumn;
+    private final Cancellation mCancellation;
+
+    private byte[] mBuffer = new byte[BUFFER_SIZE];
+    private int mLimit = 0;
+    private int mPosition = 0;
+    private boolean mEndOfInput = false;
+    private boolean mStarted = false;
+    // Offset in the input of mBuffer[0].
+    private long mBufferOffset = 0;
+
+    // Current record, as offsets into mBuffer. The end excludes the line terminator.
+    private int mRecordStart = 0;
+    private int mRecordEnd = 0;
+    // Bounds of the key field, the end is the delimiter after it or the end of the record.
+    // Both are the end of the record when the record has fewer columns.
+    private int mKeyStart = 0;
+    private int mKeyEnd = 0;
+
+    CsvReader(InputStream in, Dialect dialect) {
+        this(in, dialect, 0);
+    }
+
+    /**
+     * @param in
+     * @param dialect
+     * @param keyColumn column compared by keyEquals() and compareKey(), counting from 0
+     */
+    CsvReader(InputStream in, Dialect dialect, int keyColumn) {
+        this(in, dialect, keyColumn, null);
+    }
+
+    /**
+     * @param cancellation checked before each read of the input, or null if the read cannot be cancelled
+     * @see #CsvReader(InputStream, Dialect, int)
+     */
+    CsvReader(InputStream in, Dialect dialect, int keyColumn, Cancellation cancellation) {
+        if (keyColumn < 0) throw new IllegalArgumentException("Invalid key column " + keyColumn);
+        mIn = in;
+        mDelimiter = (byte) dialect.delimiter;
+        mQuote = (byte) dialect.quote;
+        mSkipHeader = dialect.hasHeader;
+        mKeyColumn = keyColumn;
+        mCancellation = cancellation;
+    }
+
+    /**
+     * Moves to the next record.
+     * @return false once there are no more records.
+     * @throws CancelledException if the cancellation reports the read is no longer wanted.
+     */
+    boolean next() throws IOException {
+        if (!mStarted) {
+            mStarted = true;
+            skipByteOrderMark();
+            if (mSkipHeader && !advance()) return false;
+        }
+        return advance();
+    }
+
+    /**
+     * @param key UTF-8 bytes of the value to compare
+     * @return whether the key field of the current record, with any quoting removed, equals the key.
+     */
+    boolean keyEquals(byte[] key) {
+        byte[] buffer = mBuffer;
+        int start = mKeyStart;
+        int end = mKeyEnd;
+        if (start == end || buffer[start] != mQuote) {
+            if (end - start != key.length) return false;
+            for (int i = 0; i < key.length; i++) {
+                if (buffer[start + i] != key[i]) return false;
+            }
+            return true;
+        }
+
+        // Quoted: compare up to the closing quote, a doubled quote stands for one quote.
+        int k = 0;
+        for (int i = start + 1; i < end; i++) {
+            byte b = buffer[i];
+            if (b == mQuote) {
+                if (i + 1 < end && buffer[i + 1] == mQuote) i++;
+                else break;
+            }
+            if (k == key.length || key[k++] != b) return false;
+        }
+        return k == key.length;
+    }
+
+    /**
+     * Compares the key field of the current record, with any quoting removed, to the key byte by byte.
+     * For UTF-8 this is the same order as comparing the code points.
+     * @param key UTF-8 bytes of the value to compare
+     * @return less than, equal to or greater than zero as the field sorts before, equal to or after the key.
+     */
+    int compareKey(byte[] key) {
+        byte[] buffer = mBuffer;
+        int start = mKeyStart;
+        int end = mKeyEnd;
+        boolean quoted = start < end && buffer[start] == mQuote;
+        if (quoted) start++;
+
+        int k = 0;
+        for (int i = start; i < end; i++) {
+            byte b = buffer[i];
+            if (quoted && b == mQuote) {
+                if (i + 1 < end && buffer[i + 1] == mQuote) i++;
+                else break;
+            }
+            if (k == key.length) return 1;
+            int difference = (b & 0xff) - (key[k++] & 0xff);
+            if (difference != 0) return difference;
+        }
+        return k - key.length;
+    }
+
+    /**
+     * @return the offset in the input just past the current record and its line terminator.
+     */
+    long getPosition() {
+        return mBufferOffset + mPosition;
+    }
+
+    /**
+     * @return the current record as it appears in the file, without its line terminator.
+     */
+    String record() {
+        return new String(mBuffer, mRecordStart, mRecordEnd - mRecordStart, UTF_8);
+    }
+
+    @Override
+    public void close() throws IOException {
+        mIn.close();
+    }
+
+    private boolean advance() throws IOException {
+        byte delimiter = mDelimiter;
+        byte quote = mQuote;
+        byte[] buffer = mBuffer;
+        int limit = mLimit;
+        int start = mPosition;
+        int keyColumn = mKeyColumn;
+        int column = 0;
+        int keyStart = keyColumn == 0 ? start : -1;
+        int keyEnd = -1;
+        int fieldStart = start;
+        // Just past the closing quote of a quoted field, where a quote is the second of a doubled quote.
+        int closedAt = -1;
+        boolean quoted = false;
+
+        int i = start;
+        while (true) {
+            if (i == limit) {
+                if (mEndOfInput) {
+                    if (i == start) return false;
+                    // Last record without a line feed.
+                    setRecord(start, i, keyStart, keyEnd < 0 ? i : keyEnd);
+                    mPosition = i;
+                    return true;
+                }
+                int shift = fill(start);
+                buffer = mBuffer;
+                limit = mLimit;
+                start -= shift;
+                i -= shift;
+                fieldStart -= shift;
+                if (closedAt >= 0) closedAt -= shift;
+                if (keyStart >= 0) keyStart -= shift;
+                if (keyEnd >= 0) keyEnd -= shift;
+                continue;
+            }
+
+            byte b = buffer[i++];
+            // Almost every byte is field data, check for that first.
+            if (b > quote && b != delimiter) continue;
+            if (b == quote) {
+                // A doubled quote closes and reopens the field, so only the opening and closing quotes matter.
+                if (quoted) {
+                    quoted = false;
+                    closedAt = i;
+                } else if (i - 1 == fieldStart || i - 1 == closedAt) {
+                    quoted = true;
+                }
+            } else if (!quoted) {
+                if (b == '\n') {
+                    setRecord(start, i - 1, keyStart, keyEnd < 0 ? i - 1 : keyEnd);
+                    mPosition = i;
+                    return true;
+                }
+                if (b == delimiter) {
+                    if (column == keyColumn) keyEnd = i - 1;
+                    if (++column == keyColumn) keyStart = i;
+                    fieldStart = i;
+                }
+            }
+        }
+    }
+
+    /**
+     * @param keyStart start of the key field, or -1 if the record has fewer columns
+     */
+    private void setRecord(int start, int end, int keyStart, int keyEnd) {
+        // Records ending in \r\n.
+        if (end > start && mBuffer[end - 1] == '\r') {
+            if (keyEnd == end) keyEnd--;
+            end--;
+        }
+        if (keyStart < 0 || keyStart > end) keyStart = keyEnd = end;
+        mRecordStart = start;
+        mRecordEnd = end;
+        mKeyStart = keyStart;
+        mKeyEnd = keyEnd;
+    }
+
+    /**
+     * Reads more input, first moving the partial record starting at keepFrom to the front of the buffer,
+     * or growing the buffer if that record already fills it.
+     * @return how far the buffered bytes moved towards the front
+     */
+    private int fill(int keepFrom) throws IOException {
+        if (mCancellation != null && mCancellation.isCancelled()) throw new CancelledException();
+
+        int kept = mLimit - keepFrom;
+        if (kept == mBuffer.length) {
+            byte[] grown = new byte[mBuffer.length * 2];
+            System.arraycopy(mBuffer, keepFrom, grown, 0, kept);
+            mBuffer = grown;
+        } else if (keepFrom > 0) {
+            System.arraycopy(mBuffer, keepFrom, mBuffer, 0, kept);
+        }
+        mLimit = kept;
+        mPosition -= keepFrom;
+        mBufferOffset += keepFrom;
+
+        int read = mIn.read(mBuffer, mLimit, mBuffer.length - mLimit);
+        if (read < 0) mEndOfInput = true;
+        else mLimit += read;
+        return keepFrom;
+    }
+
+    private void skipByteOrderMark() throws IOException {
+        while (mLimit < 3 && !mEndOfInput) {
+            fill(0);
+        }
+        if (mLimit >= 3 && (mBuffer[0] & 0xff) == 0xef && (mBuffer[1] & 0xff) == 0xbb && (mBuffer[2] & 0xff) == 0xbf)
+            mPosition = 3;
+    }
+
+    /**
+     * @param record a decoded record
+     * @param column
+     * @param dialect
+     * @return the index in the record where the column starts, or -1 if the record has fewer columns.
+     */
+    static int fieldStart(String record, int column, Dialect dialect) {
+        int start = 0;
+        for (int c = 0; c < column; c++) {
+            int end = fieldEnd(record, start, dialect);
+            if (end == record.length()) return -1;
+            start = end + 1;
+        }
+        return start;
+    }
+
+    /**
+     * @param record a decoded record
+     * @param start index of the start of a field
+     * @param dialect
+     * @return the index of the delimiter ending the field, or the record's length for the last field.
+     */
+    static int fieldEnd(String record, int start, Dialect dialect) {
+        boolean quoted = false;
+        int closedAt = -1;
+        for (int i = start; i < record.length(); i++) {
+            char c = record.charAt(i);
+            if (c == dialect.quote) {
+                // Only opens a quoted field at its start, or again for the second of a doubled quote.
+                if (quoted) {
+                    quoted = false;
+                    closedAt = i + 1;
+                } else if (i == start || i == closedAt) {
+                    quoted = true;
+                }
+            } else if (c == dialect.delimiter && !quoted) {
+                return i;
+            }
+        }
+        return record.length();
+    }
+
+    /**
+     * @param record a decoded record
+     * @param column
+     * @param dialect
+     * @return the value of the column with any quoting removed, empty if the record has fewer columns.
+     */
+    static String field(String record, int column, Dialect dialect) {
+        int start = fieldStart(record, column, dialect);
+        if (start < 0) return "";
+        return unquote(record, start, fieldEnd(record, start, dialect), dialect);
+    }
+
+    /**
+     * Writes a decoded record out in another dialect, quoting the fields that contain its delimiter,
+     * quote or a line break.
+     * @param record a decoded record
+     * @param from dialect of the record
+     * @param to
+     */
+    static String convert(String record, Dialect from, Dialect to) {
+        StringBuilder converted = new StringBuilder(record.length() + 8);
+        int start = 0;
+        while (true) {
+            int end = fieldEnd(record, start, from);
+            String value = unquote(record, start, end, from);
+            if (value.indexOf(to.delimiter) >= 0 || value.indexOf(to.quote) >= 0
+                    || value.indexOf('\n') >= 0 || value.indexOf('\r') >= 0) {
+                String quote = String.valueOf(to.quote);
+                converted.append(to.quote).append(value.replace(quote, quote + quote)).append(to.quote);
+            } else {
+                converted.append(value);
+            }
+            if (end == record.length()) return converted.toString();
+            converted.append(to.delimiter);
+            start = end + 1;
+        }
+    }
+
+    private static String unquote(String record, int start, int end, Dialect dialect) {
+        if (start == end || record.charAt(start) != dialect.quote) return record.substring(start, end);
+
+        StringBuilder value = new StringBuilder(end - start);
+        for (int i = start + 1; i < end; i++) {
+            char c = record.charAt(i);
+            if (c == dialect.quote) {
+                if (i + 1 < end && record.charAt(i + 1) == dialect.quote) i++;
+                else break;
+            }
+            value.append(c);
+        }
+        return value.toString();
+    }
+}
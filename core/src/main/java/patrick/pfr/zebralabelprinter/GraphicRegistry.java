@@ -0,0 +1,19 @@
+package patrick.pfr.zebralabelprinter;
+
+/**
+ * Author:      Patrick Snelgar
+ * Name:        GraphicRegistry.java
+ * Description: Remembers which StoredGraphics each printer already holds, so they are only downloaded once.
+ *              Called from the printers' connection threads.
+ */
+interface GraphicRegistry {
+
+    boolean isStored(String printerAddress, String graphicName);
+
+    /**
+     * Called once the printer has acknowledged a print that followed the download.
+     * @param printerAddress
+     * @param graphicName
+     */
+    void markStored(String printerAddress, String graphicName);
+}
@@ -0,0 +1,118 @@
+package patrick.pfr.zebralabelprinter;
+
+import java.util.ArrayDeque;
+
+/**
+ * Author:      Patrick Snelgar
+ * Name:        LabelBuffer.java
+ * Description: Growable byte buffer that rendered labels are written into. Buffers are pooled so that
+ *              steady state printing reuses the same arrays instead of allocating per label.
+ */
+final class LabelBuffer {
+
+    private static final int INITIAL_CAPACITY = 512;
+    private static final int MAX_POOLED = 32;
+    // Buffers that grew very large for an unusual label are dropped rather than kept around.
+    private static final int MAX_POOLED_CAPACITY = 16 * 1024;
+
+    private static final ArrayDeque<LabelBuffer> sPool = new ArrayDeque<>();
+
+    private byte[] mBytes;
+    private int mLength;
+    private final boolean mPooled;
+
+    private LabelBuffer(byte[] bytes, int length, boolean pooled) {
+        mBytes = bytes;
+        mLength = length;
+        mPooled = pooled;
+    }
+
+    /**
+     * @return an empty buffer from the pool, call recycle() once its contents have been sent.
+     */
+    static LabelBuffer obtain() {
+        synchronized (sPool) {
+            LabelBuffer buffer = sPool.poll();
+            if (buffer != null) return buffer;
+        }
+        return new LabelBuffer(new byte[INITIAL_CAPACITY], 0, true);
+    }
+
+    /**
+     * Wraps existing data, the buffer is not returned to the pool when recycled.
+     * @param bytes
+     */
+    static LabelBuffer wrap(byte[] bytes) {
+        return new LabelBuffer(bytes, bytes.length, false);
+    }
+
+    void recycle() {
+        if (!mPooled || mBytes.length > MAX_POOLED_CAPACITY) return;
+        mLength = 0;
+        synchronized (sPool) {
+            if (sPool.size() < MAX_POOLED) sPool.push(this);
+        }
+    }
+
+    byte[] array() {
+        return mBytes;
+    }
+
+    int length() {
+        return mLength;
+    }
+
+    void reset() {
+        mLength = 0;
+    }
+
+    void write(byte[] bytes) {
+        ensureCapacity(mLength + bytes.length);
+        System.arraycopy(bytes, 0, mBytes, mLength, bytes.length);
+        mLength += bytes.length;
+    }
+
+    /**
+     * Encodes the characters in [start, end) as UTF-8 straight into the buffer.
+     * @param chars
+     * @param start
+     * @param end
+     */
+    void writeUtf8(CharSequence chars, int start, int end) {
+        // Worst case is 3 bytes per UTF-16 char, surrogate pairs take 4 bytes for 2 chars.
+        ensureCapacity(mLength + 3 * (end - start));
+        byte[] bytes = mBytes;
+        int length = mLength;
+
+        for (int i = start; i < end; i++) {
+            char c = chars.charAt(i);
+            if (c < 0x80) {
+                bytes[length++] = (byte) c;
+            } else if (c < 0x800) {
+                bytes[length++] = (byte) (0xc0 | (c >> 6));
+                bytes[length++] = (byte) (0x80 | (c & 0x3f));
+            } else if (Character.isHighSurrogate(c) && i + 1 < end && Character.isLowSurrogate(chars.charAt(i + 1))) {
+                int codePoint = Character.toCodePoint(c, chars.charAt(++i));
+                bytes[length++] = (byte) (0xf0 | (codePoint >> 18));
+                bytes[length++] = (byte) (0x80 | ((codePoint >> 12) & 0x3f));
+                bytes[length++] = (byte) (0x80 | ((codePoint >> 6) & 0x3f));
+                bytes[length++] = (byte) (0x80 | (codePoint & 0x3f));
+            } else if (Character.isSurrogate(c)) {
+                // Unpaired surrogate, same replacement String.getBytes would use.
+                bytes[length++] = '?';
+            } else {
+                bytes[length++] = (byte) (0xe0 | (c >> 12));
+                bytes[length++] = (byte) (0x80 | ((c >> 6) & 0x3f));
+                bytes[length++] = (byte) (0x80 | (c & 0x3f));
+            }
+        }
+        mLength = length;
+    }
+
+    private void ensureCapacity(int capacity) {
+        if (capacity <= mBytes.length) return;
+        byte[] bytes = new byte[Math.max(capacity, mBytes.length * 2)];
+        System.arraycopy(mBytes, 0, bytes, 0, mLength);
+        mBytes = bytes;
+    }
+}
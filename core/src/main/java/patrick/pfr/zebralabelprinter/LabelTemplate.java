@@ -0,0 +1,299 @@
+package patrick.pfr.zebralabelprinter;
+
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Author:      Patrick Snelgar
+ * Name:        LabelTemplate.java
+ * Description: A ZPL label template compiled once into literal byte segments and field slots.
+ *              Placeholders are written ${n} for csv column n, or ${name} for a column named in the
+ *              template columns preference, and $$ is a literal $. Rendering a csv line copies the
+ *              literal segments and encodes the field values straight into a LabelBuffer.
+ *              ${graphic:name} draws the named StoredGraphic, it is replaced by its ^XG command when the
+ *              template is compiled and the graphic is listed in getGraphics() for the printer to store.
+ *
+ *              When every placeholder sits inside a ^FD...^FS field the template can also be stored
+ *              on the printer, each of those fields becomes ^FNn in the stored layout and the recall
+ *              format only carries the field data.
+ */
+final class LabelTemplate {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final String GRAPHIC_PLACEHOLDER = "${graphic:";
+
+    // Every format starts with "^XA"
+    // "^FO" Field origin x,y "^A0N" scalable font w,h
+    // "^BQ" QR code command model, magnification
+    // "^FS" Field separator
+    // "^FD" Field data use FDMA to automatically select encoding type (needed for |)
+    // "^XZ" end format
+    static final String DEFAULT_SOURCE = "^XA\n" +
+            "^FO50,50^A0N,30,30\n" +
+            "^BQN,2,10\n" +
+            "^FDMA,${0}^FS\n" +
+            "^FO50,300^A0N,30,30^FD${1}^FS\n" +
+            "^FO50,350^A0N,30,30^FD${2}^FS\n" +
+            "^XZ";
+
+    /**
+     * Compiled form of a template: literals[i] is written before the value of column columns[i],
+     * and the final literal after the last field.
+     */
+    private static final class Program {
+        final byte[][] literals;
+        final int[] columns;
+
+        Program(byte[][] literals, int[] columns) {
+            this.literals = literals;
+            this.columns = columns;
+        }
+    }
+
+    private final Program mFormat;
+    private final Program mRecall;
+    private final StoredFormat mStoredFormat;
+    private final List<StoredGraphic> mGraphics;
+
+    private LabelTemplate(Program format, Program recall, StoredFormat storedFormat, List<StoredGraphic> graphics) {
+        mFormat = format;
+        mRecall = recall;
+        mStoredFormat = storedFormat;
+        mGraphics = graphics;
+    }
+
+    /**
+     * @param source ZPL template text
+     * @param columnNames names usable as ${name} placeholders, index in the array is the csv column
+     * @throws IllegalArgumentException if a placeholder is malformed or names an unknown column
+     */
+    static LabelTemplate compile(String source, String[] columnNames) {
+        return compile(source, columnNames, Collections.<String, StoredGraphic>emptyMap());
+    }
+
+    /**
+     * @param source ZPL template text
+     * @param columnNames names usable as ${name} placeholders, index in the array is the csv column
+     * @param graphics graphics usable as ${graphic:name} placeholders, keyed by lower case name
+     * @throws IllegalArgumentException if a placeholder is malformed or names an unknown column or graphic
+     */
+    static LabelTemplate compile(String source, String[] columnNames, Map<String, StoredGraphic> graphics) {
+        List<StoredGraphic> used = new ArrayList<>();
+        source = resolveGraphics(source, graphics, used);
+        Program format = compileProgram(source, columnNames);
+
+        String recallSource = null;
+        StoredFormat storedFormat = null;
+        StringBuilder layout = new StringBuilder();
+        StringBuilder recallFields = new StringBuilder();
+        if (splitStoredFields(source, layout, recallFields)) {
+            storedFormat = StoredFormat.fromLayout(layout.toString());
+            recallSource = storedFormat.recallCommand() + recallFields + "^XZ";
+        }
+
+        return new LabelTemplate(format,
+                recallSource != null ? compileProgram(recallSource, columnNames) : null,
+                storedFormat, Collections.unmodifiableList(used));
+    }
+
+    /**
+     * Writes the complete format for the csv line into the buffer.
+     * @param record csv line from the lookup file
+     * @param out
+     */
+    void render(String record, LabelBuffer out) {
+        render(mFormat, record, out);
+    }
+
+    boolean hasStoredFormat() {
+        return mStoredFormat != null;
+    }
+
+    StoredFormat getStoredFormat() {
+        return mStoredFormat;
+    }
+
+    /**
+     * @return the graphics the template draws, which must be stored on the printer before printing.
+     */
+    List<StoredGraphic> getGraphics() {
+        return mGraphics;
+    }
+
+    /**
+     * Writes a format that recalls the stored layout with the field values of the csv line.
+     * Only valid when hasStoredFormat() is true.
+     * @param record csv line from the lookup file
+     * @param out
+     */
+    void renderRecall(String record, LabelBuffer out) {
+        render(mRecall, record, out);
+    }
+
+    private static void render(Program program, String record, LabelBuffer out) {
+        int fields = program.columns.length;
+        for (int i = 0; i < fields; i++) {
+            out.write(program.literals[i]);
+            writeField(record, program.columns[i], out);
+        }
+        out.write(program.literals[fields]);
+    }
+
+    /**
+     * Finds column n of the csv line by walking the separators, missing columns are left empty.
+     * Quoted values are written without their quotes, a doubled quote as one quote.
+     */
+    private static void writeField(String record, int column, LabelBuffer out) {
+        CsvReader.Dialect dialect = CsvReader.Dialect.DEFAULT;
+        int start = CsvReader.fieldStart(record, column, dialect);
+        if (start < 0) return;
+        int end = CsvReader.fieldEnd(record, start, dialect);
+        if (start == end || record.charAt(start) != dialect.quote) {
+            out.writeUtf8(record, start, end);
+            return;
+        }
+
+        int segmentStart = start + 1;
+        for (int i = segmentStart; i < end; i++) {
+            if (record.charAt(i) != dialect.quote) continue;
+            // Write up to and including the first of a doubled quote, or up to the closing quote.
+            boolean doubled = i + 1 < end && record.charAt(i + 1) == dialect.quote;
+            out.writeUtf8(record, segmentStart, doubled ? i + 1 : i);
+            if (!doubled) return;
+            segmentStart = ++i + 1;
+        }
+        out.writeUtf8(record, segmentStart, end);
+    }
+
+    /**
+     * Replaces each ${graphic:name} placeholder with the command drawing the graphic, leaving column
+     * placeholders and $$ escapes in place.
+     * @param used receives each graphic the source draws, once
+     */
+    private static String resolveGraphics(String source, Map<String, StoredGraphic> graphics, List<StoredGraphic> used) {
+        StringBuilder resolved = new StringBuilder(source.length());
+        int i = 0;
+        while (i < source.length()) {
+            if (source.startsWith("$$", i)) {
+                resolved.append("$$");
+                i += 2;
+            } else if (source.startsWith(GRAPHIC_PLACEHOLDER, i)) {
+                int close = source.indexOf('}', i);
+                if (close < 0) throw new IllegalArgumentException("Unclosed placeholder at " + i);
+                String name = source.substring(i + GRAPHIC_PLACEHOLDER.length(), close).trim();
+                StoredGraphic graphic = graphics.get(name.toLowerCase(Locale.US));
+                if (graphic == null) throw new IllegalArgumentException("Unknown graphic: " + name);
+                if (!used.contains(graphic)) used.add(graphic);
+                resolved.append(graphic.recallCommand());
+                i = close + 1;
+            } else {
+                resolved.append(source.charAt(i++));
+            }
+        }
+        return resolved.toString();
+    }
+
+    private static Program compileProgram(String source, String[] columnNames) {
+        List<byte[]> literals = new ArrayList<>();
+        List<Integer> columns = new ArrayList<>();
+        StringBuilder literal = new StringBuilder();
+
+        int i = 0;
+        while (i < source.length()) {
+            char c = source.charAt(i);
+            if (c == '$' && i + 1 < source.length() && source.charAt(i + 1) == '$') {
+                literal.append('$');
+                i += 2;
+            } else if (c == '$' && i + 1 < source.length() && source.charAt(i + 1) == '{') {
+                int close = source.indexOf('}', i + 2);
+                if (close < 0) throw new IllegalArgumentException("Unclosed placeholder at " + i);
+                columns.add(resolveColumn(source.substring(i + 2, close).trim(), columnNames));
+                literals.add(literal.toString().getBytes(UTF_8));
+                literal.setLength(0);
+                i = close + 1;
+            } else {
+                literal.append(c);
+                i++;
+            }
+        }
+        literals.add(literal.toString().getBytes(UTF_8));
+
+        int[] columnArray = new int[columns.size()];
+        for (int j = 0; j < columnArray.length; j++) {
+            columnArray[j] = columns.get(j);
+        }
+        return new Program(literals.toArray(new byte[literals.size()][]), columnArray);
+    }
+
+    private static int resolveColumn(String name, String[] columnNames) {
+        if (name.isEmpty()) throw new IllegalArgumentException("Empty placeholder");
+        if (Character.isDigit(name.charAt(0))) {
+            try {
+                return Integer.parseInt(name);
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Invalid column number: " + name);
+            }
+        }
+        for (int i = 0; i < columnNames.length; i++) {
+            if (columnNames[i].trim().equalsIgnoreCase(name)) return i;
+        }
+        throw new IllegalArgumentException("Unknown column name: " + name);
+    }
+
+    /**
+     * Splits the template into a stored layout, where every ^FD...^FS holding a placeholder is replaced
+     * by ^FNn, and the matching ^FNn^FD...^FS fields for the recall format.
+     * @return false if the template cannot be stored, e.g. a placeholder is outside field data
+     *         or the template holds more than one format.
+     */
+    private static boolean splitStoredFields(String source, StringBuilder layout, StringBuilder recallFields) {
+        int start = indexOfCommand(source, "^XA", 0);
+        int end = source.lastIndexOf("^XZ");
+        if (end < 0) end = source.lastIndexOf("^xz");
+        if (start < 0 || end < start || indexOfCommand(source, "^XA", start + 3) >= 0) return false;
+
+        int fieldNumber = 0;
+        int position = start + 3;
+        while (position < end) {
+            int fd = indexOfCommand(source, "^FD", position);
+            int placeholder = source.indexOf("${", position);
+            if (fd < 0 || fd >= end) {
+                // No more field data, any placeholder left over cannot be stored.
+                if (placeholder >= 0 && placeholder < end) return false;
+                layout.append(unescape(source.substring(position, end)));
+                break;
+            }
+            if (placeholder >= 0 && placeholder < fd) return false;
+
+            int fs = indexOfCommand(source, "^FS", fd + 3);
+            if (fs < 0 || fs > end) return false;
+
+            String data = source.substring(fd + 3, fs);
+            layout.append(unescape(source.substring(position, fd)));
+            if (data.contains("${")) {
+                fieldNumber++;
+                layout.append("^FN").append(fieldNumber);
+                recallFields.append("^FN").append(fieldNumber).append("^FD").append(data).append("^FS\n");
+            } else {
+                layout.append("^FD").append(unescape(data));
+            }
+            position = fs;
+        }
+        return fieldNumber > 0;
+    }
+
+    private static int indexOfCommand(String source, String command, int from) {
+        for (int i = from; i + command.length() <= source.length(); i++) {
+            if (source.regionMatches(true, i, command, 0, command.length())) return i;
+        }
+        return -1;
+    }
+
+    private static String unescape(String text) {
+        return text.replace("$$", "$");
+    }
+}
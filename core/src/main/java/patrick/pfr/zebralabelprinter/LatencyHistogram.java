@@ -0,0 +1,172 @@
+package patrick.pfr.zebralabelprinter;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Author:      Patrick Snelgar
+ * Name:        LatencyHistogram.java
+ * Description: Rolling histogram of durations over the last WINDOW_SLOTS * SLOT_MS. Values are counted in
+ *              log-linear microsecond buckets (8 per power of two, so percentiles are within about 9%),
+ *              recording is a couple of atomic increments and never allocates.
+ *              The window is split into slots, the oldest slot is cleared and reused as time moves on.
+ */
+final class LatencyHistogram {
+
+    static final long SLOT_MS = 60 * 1000;
+    static final int WINDOW_SLOTS = 5;
+
+    private static final int SUB_BUCKET_BITS = 3;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    // Values below this are counted exactly.
+    private static final int LINEAR_LIMIT = 2 * SUB_BUCKETS;
+    // Up to 2^36us, about 19 hours, longer values land in the last bucket.
+    private static final int MAX_EXPONENT = 36;
+    static final int BUCKETS = LINEAR_LIMIT + (MAX_EXPONENT - SUB_BUCKET_BITS - 1) * SUB_BUCKETS;
+
+    /**
+     * Merged counts of the slots in the window.
+     */
+    static final class Snapshot {
+        final long count;
+        final long errors;
+        final long maxMicros;
+        private final long[] mCounts;
+
+        private Snapshot(long[] counts, long errors, long maxMicros) {
+            long count = 0;
+            for (long c : counts) count += c;
+            this.count = count;
+            this.errors = errors;
+            this.maxMicros = maxMicros;
+            mCounts = counts;
+        }
+
+        /**
+         * @param percentile between 0 and 100
+         * @return the upper bound of the bucket holding the percentile, in microseconds, or 0 if nothing was recorded.
+         */
+        long percentileMicros(double percentile) {
+            if (count == 0) return 0;
+            long rank = (long) Math.ceil(count * percentile / 100.0);
+            if (rank < 1) rank = 1;
+            long seen = 0;
+            for (int i = 0; i < mCounts.length; i++) {
+                seen += mCounts[i];
+                if (seen >= rank) return Math.min(upperBound(i), maxMicros);
+            }
+            return maxMicros;
+        }
+
+        /**
+         * @return errors as a fraction of all recorded events, successful or not.
+         */
+        double errorRate() {
+            long total = count + errors;
+            return total == 0 ? 0 : (double) errors / total;
+        }
+    }
+
+    private final AtomicLongArray[] mSlots = new AtomicLongArray[WINDOW_SLOTS];
+    private final AtomicLongArray mSlotErrors = new AtomicLongArray(WINDOW_SLOTS);
+    private final AtomicLongArray mSlotMax = new AtomicLongArray(WINDOW_SLOTS);
+    // Index of the time slot each slot currently holds, i.e. now / SLOT_MS. Read without the lock when
+    // recording, only changed while holding it.
+    private final AtomicLongArray mSlotEpochs = new AtomicLongArray(WINDOW_SLOTS);
+    private final Object mLock = new Object();
+
+    LatencyHistogram() {
+        for (int i = 0; i < WINDOW_SLOTS; i++) {
+            mSlots[i] = new AtomicLongArray(BUCKETS);
+            mSlotEpochs.set(i, -1);
+        }
+    }
+
+    /**
+     * @param nowMs monotonic time of the event, used to pick the slot
+     * @param micros duration
+     */
+    void record(long nowMs, long micros) {
+        int slot = slotFor(nowMs);
+        mSlots[slot].incrementAndGet(bucketOf(micros));
+        long max;
+        while (micros > (max = mSlotMax.get(slot)) && !mSlotMax.compareAndSet(slot, max, micros)) {
+            // Retry until the larger value is stored or another thread stored a larger one.
+        }
+    }
+
+    void recordError(long nowMs) {
+        mSlotErrors.incrementAndGet(slotFor(nowMs));
+    }
+
+    Snapshot snapshot(long nowMs) {
+        long epoch = nowMs / SLOT_MS;
+        long[] counts = new long[BUCKETS];
+        long errors = 0;
+        long max = 0;
+        synchronized (mLock) {
+            for (int slot = 0; slot < WINDOW_SLOTS; slot++) {
+                if (epoch - mSlotEpochs.get(slot) >= WINDOW_SLOTS) continue;
+                AtomicLongArray slotCounts = mSlots[slot];
+                for (int i = 0; i < BUCKETS; i++) {
+                    counts[i] += slotCounts.get(i);
+                }
+                errors += mSlotErrors.get(slot);
+                max = Math.max(max, mSlotMax.get(slot));
+            }
+        }
+        return new Snapshot(counts, errors, max);
+    }
+
+    void reset() {
+        synchronized (mLock) {
+            for (int slot = 0; slot < WINDOW_SLOTS; slot++) {
+                clearSlot(slot);
+                mSlotEpochs.set(slot, -1);
+            }
+        }
+    }
+
+    private int slotFor(long nowMs) {
+        long epoch = nowMs / SLOT_MS;
+        int slot = (int) (epoch % WINDOW_SLOTS);
+        // Only taken once per slot per SLOT_MS, when the slot is reused for a new period.
+        if (mSlotEpochs.get(slot) != epoch) {
+            synchronized (mLock) {
+                if (mSlotEpochs.get(slot) != epoch) {
+                    clearSlot(slot);
+                    mSlotEpochs.set(slot, epoch);
+                }
+            }
+        }
+        return slot;
+    }
+
+    private void clearSlot(int slot) {
+        AtomicLongArray counts = mSlots[slot];
+        for (int i = 0; i < BUCKETS; i++) {
+            counts.set(i, 0);
+        }
+        mSlotErrors.set(slot, 0);
+        mSlotMax.set(slot, 0);
+    }
+
+    static int bucketOf(long micros) {
+        if (micros < LINEAR_LIMIT) return micros < 0 ? 0 : (int) micros;
+        int exponent = 63 - Long.numberOfLeadingZeros(micros);
+        if (exponent >= MAX_EXPONENT) return BUCKETS - 1;
+        int subBucket = (int) (micros >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+        return LINEAR_LIMIT + (exponent - SUB_BUCKET_BITS - 1) * SUB_BUCKETS + subBucket;
+    }
+
+    /**
+     * @return the largest value counted in the bucket.
+     */
+    static long upperBound(int bucket) {
+        if (bucket < LINEAR_LIMIT) return bucket;
+        int offset = bucket - LINEAR_LIMIT;
+        int exponent = offset / SUB_BUCKETS + SUB_BUCKET_BITS + 1;
+        int subBucket = offset % SUB_BUCKETS;
+        long lower = (1L << exponent) + ((long) subBucket << (exponent - SUB_BUCKET_BITS));
+        return lower + (1L << (exponent - SUB_BUCKET_BITS)) - 1;
+    }
+}
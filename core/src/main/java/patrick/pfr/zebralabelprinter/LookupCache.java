@@ -0,0 +1,102 @@
+package patrick.pfr.zebralabelprinter;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Author:      Patrick Snelgar
+ * Name:        LookupCache.java
+ * Description: Bounded LRU cache of recent lookup results, both found records and barcodes known to be missing,
+ *              so rescanning an item does not read the lookup files again. Entries belong to one version of the
+ *              lookup files, identified by any object with equals(), and are dropped as soon as a lookup is made
+ *              against a different version.
+ */
+final class LookupCache {
+
+    /**
+     * A cached result, record is null for a barcode that is not in any file.
+     */
+    static final class CachedResult {
+
+        static final CachedResult NOT_FOUND = new CachedResult(null, -1);
+
+        final String record;
+        // Position of the lookup file the record came from.
+        final int source;
+
+        private CachedResult(String record, int source) {
+            this.record = record;
+            this.source = source;
+        }
+    }
+
+    private final Map<String, CachedResult> mEntries;
+    // Guarded by this.
+    private Object mSource;
+    private long mHits = 0;
+    private long mMisses = 0;
+
+    /**
+     * @param capacity number of barcodes kept, the least recently used is dropped beyond that
+     */
+    LookupCache(final int capacity) {
+        mEntries = new LinkedHashMap<String, CachedResult>(capacity * 4 / 3 + 1, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, CachedResult> eldest) {
+                return size() > capacity;
+            }
+        };
+    }
+
+    /**
+     * @param source identity of the lookup files being searched, e.g. their URIs and modification stamps
+     * @param barcode
+     * @return the cached result, or null if the barcode has not been looked up in this version of the file.
+     */
+    synchronized CachedResult get(Object source, String barcode) {
+        CachedResult result = source.equals(mSource) ? mEntries.get(barcode) : null;
+        if (result != null) mHits++;
+        else mMisses++;
+        return result;
+    }
+
+    /**
+     * Remembers the result of a lookup, replacing every entry from other versions of the files.
+     * @param source identity of the lookup files that were searched
+     * @param barcode
+     * @param record the matching record, or null if there was none
+     * @param recordSource position of the file the record came from
+     */
+    synchronized void put(Object source, String barcode, String record, int recordSource) {
+        if (!source.equals(mSource)) {
+            mEntries.clear();
+            mSource = source;
+        }
+        mEntries.put(barcode, record == null ? CachedResult.NOT_FOUND : new CachedResult(record, recordSource));
+    }
+
+    /**
+     * Drops every entry, e.g. when a different lookup file is selected.
+     */
+    synchronized void invalidate() {
+        mEntries.clear();
+        mSource = null;
+    }
+
+    synchronized int size() {
+        return mEntries.size();
+    }
+
+    synchronized long getHits() {
+        return mHits;
+    }
+
+    synchronized long getMisses() {
+        return mMisses;
+    }
+
+    synchronized void resetCounters() {
+        mHits = 0;
+        mMisses = 0;
+    }
+}
@@ -0,0 +1,503 @@
+package patrick.pfr.zebralabelprinter;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.zip.CRC32;
+
+/**
+ * Author:      Patrick Snelgar
+ * Name:        LookupIndexFile.java
+ * Description: Persistent index of one or more csv files, stored as a single table of (key hash, location) entries
+ *              sorted by hash. The table is memory mapped and binary searched, the matching line is then
+ *              read straight from its csv at its offset, so heap use does not grow with the size of the files,
+ *              and a lookup costs the same however many files are indexed together.
+ *              Each Source has its own key column and dialect, keys are read the same way as CsvReader does,
+ *              so quoted fields may contain the delimiter and line breaks. Where several records share a key
+ *              the one from the earliest source, and then the earliest in that file, is found.
+ *
+ *              Layout: magic (int), version (int), fingerprint (long), count (int), then count entries
+ *              of hash (long), location (long). A location holds the position of the source in its top 16 bits
+ *              and the byte offset of the record in the rest.
+ */
+final class LookupIndexFile implements Closeable {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private static final int MAGIC = 0x5a4c5049; // "ZLPI"
+    private static final int VERSION = 3;
+    private static final int COUNT_POSITION = 16;
+    private static final int HEADER_SIZE = 20;
+    private static final int ENTRY_SIZE = 16;
+    private static final int SOURCE_SHIFT = 48;
+    private static final long OFFSET_MASK = (1L << SOURCE_SHIFT) - 1;
+    // Kept below the sign bit, so locations sort by source and then offset.
+    static final int MAX_SOURCES = 1 << 15;
+
+    // Amount of the source sampled from each end when fingerprinting.
+    private static final int FINGERPRINT_SAMPLE = 64 * 1024;
+    private static final int READ_BUFFER_SIZE = 64 * 1024;
+
+    private static final long FNV_OFFSET = 0xcbf29ce484222325L;
+    private static final long FNV_PRIME = 0x100000001b3L;
+
+    /**
+     * A csv file indexed, or searched, through the index.
+     */
+    static final class Source {
+
+        final FileChannel channel;
+        final CsvReader.Dialect dialect;
+        // Column holding the key, counting from 0.
+        final int keyColumn;
+
+        Source(FileChannel channel, CsvReader.Dialect dialect, int keyColumn) {
+            if (keyColumn < 0) throw new IllegalArgumentException("Invalid key column " + keyColumn);
+            this.channel = channel;
+            this.dialect = dialect;
+            this.keyColumn = keyColumn;
+        }
+    }
+
+    /**
+     * A record found by lookup() and the position of its source in the list the index was built from.
+     */
+    static final class Match {
+
+        final int source;
+        final String record;
+
+        Match(int source, String record) {
+            this.source = source;
+            this.record = record;
+        }
+    }
+
+    private final RandomAccessFile mFile;
+    private final MappedByteBuffer mBuffer;
+    private final long mFingerprint;
+    private final int mCount;
+
+    private LookupIndexFile(RandomAccessFile file, MappedByteBuffer buffer) throws IOException {
+        mFile = file;
+        mBuffer = buffer;
+        if (buffer.capacity() < HEADER_SIZE || buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION)
+            throw new IOException("Not a lookup index");
+
+        mFingerprint = buffer.getLong(8);
+        mCount = buffer.getInt(COUNT_POSITION);
+        if (buffer.capacity() != HEADER_SIZE + (long) mCount * ENTRY_SIZE)
+            throw new IOException("Truncated lookup index");
+    }
+
+    /**
+     * Maps an existing index file.
+     * @param file
+     * @throws IOException if the file is missing or is not a complete index.
+     */
+    static LookupIndexFile open(File file) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            MappedByteBuffer buffer = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length());
+            return new LookupIndexFile(raf, buffer);
+        } catch (IOException e) {
+            raf.close();
+            throw e;
+        }
+    }
+
+    long getFingerprint() {
+        return mFingerprint;
+    }
+
+    int size() {
+        return mCount;
+    }
+
+    /**
+     * Finds the first line of a single csv file, indexed with the default dialect, whose first column equals the key.
+     * @param source channel of the csv file the index was built from
+     * @param key
+     * @return the matching line without its line terminator, or null if there is no match.
+     */
+    String lookup(FileChannel source, String key) throws IOException {
+        Match match = lookup(new Source[]{new Source(source, CsvReader.Dialect.DEFAULT, 0)}, key);
+        return match == null ? null : match.record;
+    }
+
+    /**
+     * Finds the first line whose key column equals the key, searching the sources in order.
+     * @param sources the sources the index was built from, in the same order
+     * @param key
+     * @return the matching line without its line terminator and where it came from, or null if there is no match.
+     */
+    Match lookup(Source[] sources, String key) throws IOException {
+        long hash = hashKey(key);
+        // Entries with equal hashes are ordered by source and offset, so the first verified match has the highest priority.
+        for (int i = lowerBound(hash); i < mCount && hashAt(i) == hash; i++) {
+            long location = locationAt(i);
+            int index = (int) (location >>> SOURCE_SHIFT);
+            if (index >= sources.length) throw new IOException("Lookup index does not match its sources");
+            Source source = sources[index];
+            String line = readLine(source.channel, location & OFFSET_MASK, source.dialect);
+            if (line != null && CsvReader.field(line, source.keyColumn, source.dialect).equals(key))
+                return new Match(index, line);
+        }
+        return null;
+    }
+
+    @Override
+    public void close() throws IOException {
+        mFile.close();
+    }
+
+    /**
+     * Writes an index of a single csv file, keyed on its first column, to the given file.
+     * @see #build(File, long, Source[])
+     */
+    static void build(File file, long fingerprint, FileChannel source) throws IOException {
+        build(file, fingerprint, new Source[]{new Source(source, CsvReader.Dialect.DEFAULT, 0)});
+    }
+
+    /**
+     * Writes a combined index of the sources to the given file. The entries are first written unsorted and then
+     * heap sorted in place through a mapping of the file, so the build does not need a copy of the table on the heap.
+     * The index is written to a temporary file and renamed over the destination once complete.
+     * @param file destination of the index
+     * @param fingerprint value identifying the content of the sources, see fingerprint()
+     * @param sources csv files to index, in the order they are searched
+     */
+    static void build(File file, long fingerprint, Source[] sources) throws IOException {
+        if (sources.length > MAX_SOURCES) throw new IllegalArgumentException("Too many lookup sources");
+        File tmp = new File(file.getPath() + ".tmp");
+        int count = 0;
+
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp), READ_BUFFER_SIZE));
+        try {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeLong(fingerprint);
+            out.writeInt(0);
+
+            ByteBuffer buffer = ByteBuffer.allocateDirect(READ_BUFFER_SIZE);
+            for (int i = 0; i < sources.length; i++) {
+                count += writeEntries(out, sources[i], i, buffer);
+            }
+        } finally {
+            out.close();
+        }
+
+        RandomAccessFile raf = new RandomAccessFile(tmp, "rw");
+        try {
+            raf.seek(COUNT_POSITION);
+            raf.writeInt(count);
+            MappedByteBuffer entries = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, HEADER_SIZE, (long) count * ENTRY_SIZE);
+            heapSort(entries, count);
+            entries.force();
+        } finally {
+            raf.close();
+        }
+
+        if (!tmp.renameTo(file)) {
+            tmp.delete();
+            throw new IOException("Could not replace " + file);
+        }
+    }
+
+    /**
+     * Writes an entry for each record of the source with a non-empty key, in the order of the file.
+     * @param index position of the source, stored in each entry's location
+     * @return the number of entries written.
+     */
+    private static int writeEntries(DataOutputStream out, Source source, int index, ByteBuffer buffer) throws IOException {
+        FileChannel channel = source.channel;
+        byte delimiter = (byte) source.dialect.delimiter;
+        byte quote = (byte) source.dialect.quote;
+        int keyColumn = source.keyColumn;
+        long sourceBits = (long) index << SOURCE_SHIFT;
+        int count = 0;
+
+        long position = byteOrderMarkLength(channel);
+        long lineStart = position;
+        long fieldStart = position;
+        int column = 0;
+        long hash = FNV_OFFSET;
+        int keyLength = 0;
+        boolean keyQuoted = false;
+        // Line feeds and delimiters inside quotes do not end the record or the field.
+        boolean quoted = false;
+        // Just past the closing quote of a quoted field, where a quote is the second of a doubled quote.
+        long closedAt = -1;
+        // A carriage return in the key is only part of it if it does not end the line.
+        boolean pendingReturn = false;
+        boolean header = source.dialect.hasHeader;
+
+        buffer.clear();
+        channel.position(position);
+        while (channel.read(buffer) != -1) {
+            buffer.flip();
+            while (buffer.hasRemaining()) {
+                byte b = buffer.get();
+                if (pendingReturn) {
+                    pendingReturn = false;
+                    if (b != '\n') {
+                        hash = (hash ^ '\r') * FNV_PRIME;
+                        keyLength++;
+                    }
+                }
+
+                if (b == quote) {
+                    // A quote elsewhere in a field is part of the value, as CsvReader reads it.
+                    if (quoted) {
+                        quoted = false;
+                        closedAt = position + 1;
+                    } else if (position == fieldStart || position == closedAt) {
+                        quoted = true;
+                    }
+                    if (column == keyColumn) {
+                        if (position == fieldStart) {
+                            keyQuoted = true;
+                        } else if (!keyQuoted || quoted) {
+                            // Quotes are part of an unquoted key, a doubled quote in a quoted key is one quote.
+                            hash = (hash ^ (b & 0xff)) * FNV_PRIME;
+                            keyLength++;
+                        }
+                    }
+                } else if (b == '\n' && !quoted) {
+                    if (column == keyColumn && keyLength > 0 && !header) {
+                        out.writeLong(hash);
+                        out.writeLong(sourceBits | lineStart);
+                        count++;
+                    }
+                    lineStart = fieldStart = position + 1;
+                    column = 0;
+                    hash = FNV_OFFSET;
+                    keyLength = 0;
+                    keyQuoted = false;
+                    header = false;
+                } else if (b == delimiter && !quoted) {
+                    if (column == keyColumn && keyLength > 0 && !header) {
+                        out.writeLong(hash);
+                        out.writeLong(sourceBits | lineStart);
+                        count++;
+                    }
+                    column++;
+                    fieldStart = position + 1;
+                } else if (column == keyColumn) {
+                    if (b == '\r' && !quoted && !keyQuoted) {
+                        pendingReturn = true;
+                    } else if (!keyQuoted || quoted) {
+                        // Anything after the closing quote of a quoted key is ignored, as CsvReader does.
+                        hash = (hash ^ (b & 0xff)) * FNV_PRIME;
+                        keyLength++;
+                    }
+                }
+                position++;
+            }
+            buffer.clear();
+        }
+        if (position > OFFSET_MASK) throw new IOException("Lookup file too large to index");
+        // Last line may not end with a newline, a carriage return at the very end is dropped as CsvReader does.
+        if (column == keyColumn && keyLength > 0 && !header) {
+            out.writeLong(hash);
+            out.writeLong(sourceBits | lineStart);
+            count++;
+        }
+        return count;
+    }
+
+    /**
+     * Cheap content fingerprint of the source: its size, modification time and a checksum
+     * of the data at each end of the file.
+     * @param source
+     * @param lastModified modification time reported for the source
+     */
+    static long fingerprint(FileChannel source, long lastModified) throws IOException {
+        long size = source.size();
+        CRC32 crc = new CRC32();
+        ByteBuffer buffer = ByteBuffer.allocate(FINGERPRINT_SAMPLE);
+
+        readFully(source, buffer, 0);
+        crc.update(buffer.array(), 0, buffer.position());
+        if (size > FINGERPRINT_SAMPLE) {
+            buffer.clear();
+            readFully(source, buffer, Math.max(FINGERPRINT_SAMPLE, size - FINGERPRINT_SAMPLE));
+            crc.update(buffer.array(), 0, buffer.position());
+        }
+
+        long fingerprint = FNV_OFFSET;
+        fingerprint = (fingerprint ^ size) * FNV_PRIME;
+        fingerprint = (fingerprint ^ lastModified) * FNV_PRIME;
+        fingerprint = (fingerprint ^ crc.getValue()) * FNV_PRIME;
+        return fingerprint;
+    }
+
+    /**
+     * Combines the fingerprints of the sources with how each is read, so the index is rebuilt when a file
+     * changes, or when a key column or dialect changes.
+     * @param sources
+     * @param lastModified modification time reported for each source
+     */
+    static long fingerprint(Source[] sources, long[] lastModified) throws IOException {
+        long fingerprint = FNV_OFFSET;
+        for (int i = 0; i < sources.length; i++) {
+            Source source = sources[i];
+            fingerprint = (fingerprint ^ fingerprint(source.channel, lastModified[i])) * FNV_PRIME;
+            fingerprint = (fingerprint ^ source.keyColumn) * FNV_PRIME;
+            fingerprint = (fingerprint ^ source.dialect.delimiter) * FNV_PRIME;
+            fingerprint = (fingerprint ^ source.dialect.quote) * FNV_PRIME;
+            fingerprint = (fingerprint ^ (source.dialect.hasHeader ? 1 : 0)) * FNV_PRIME;
+        }
+        return fingerprint;
+    }
+
+    /**
+     * 64 bit FNV-1a hash of the UTF-8 bytes of the key, the same hash applied to the key column when building.
+     * @param key
+     */
+    static long hashKey(String key) {
+        byte[] bytes = key.getBytes(UTF_8);
+        long hash = FNV_OFFSET;
+        for (byte b : bytes) {
+            hash = (hash ^ (b & 0xff)) * FNV_PRIME;
+        }
+        return hash;
+    }
+
+    /**
+     * @return 3 if the source starts with a UTF-8 byte order mark, otherwise 0.
+     */
+    private static int byteOrderMarkLength(FileChannel source) throws IOException {
+        ByteBuffer start = ByteBuffer.allocate(3);
+        readFully(source, start, 0);
+        byte[] bytes = start.array();
+        boolean bom = start.position() == 3
+                && (bytes[0] & 0xff) == 0xef && (bytes[1] & 0xff) == 0xbb && (bytes[2] & 0xff) == 0xbf;
+        return bom ? 3 : 0;
+    }
+
+    private long hashAt(int i) {
+        return mBuffer.getLong(HEADER_SIZE + i * ENTRY_SIZE);
+    }
+
+    private long locationAt(int i) {
+        return mBuffer.getLong(HEADER_SIZE + i * ENTRY_SIZE + 8);
+    }
+
+    /**
+     * @return the index of the first entry with a hash >= the given hash.
+     */
+    private int lowerBound(long hash) {
+        int low = 0;
+        int high = mCount;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (hashAt(mid) < hash) low = mid + 1;
+            else high = mid;
+        }
+        return low;
+    }
+
+    /**
+     * Reads the record starting at the offset, which continues past line feeds inside quotes.
+     */
+    private static String readLine(FileChannel source, long offset, CsvReader.Dialect dialect) throws IOException {
+        byte delimiter = (byte) dialect.delimiter;
+        byte quote = (byte) dialect.quote;
+        ByteBuffer buffer = ByteBuffer.allocate(256);
+        ByteArrayOutputStream line = null;
+        long position = offset;
+        long fieldStart = offset;
+        long closedAt = -1;
+        boolean quoted = false;
+
+        int read;
+        while ((read = source.read(buffer, position)) > 0) {
+            byte[] bytes = buffer.array();
+            for (int i = 0; i < read; i++) {
+                if (bytes[i] == quote) {
+                    // Quotes are matched as CsvReader matches them, see writeEntries().
+                    if (quoted) {
+                        quoted = false;
+                        closedAt = position + i + 1;
+                    } else if (position + i == fieldStart || position + i == closedAt) {
+                        quoted = true;
+                    }
+                } else if (bytes[i] == delimiter && !quoted) {
+                    fieldStart = position + i + 1;
+                } else if (bytes[i] == '\n' && !quoted) {
+                    if (line == null) return decodeLine(bytes, i);
+                    line.write(bytes, 0, i);
+                    return decodeLine(line.toByteArray(), line.size());
+                }
+            }
+            if (line == null) line = new ByteArrayOutputStream(512);
+            line.write(bytes, 0, read);
+            position += read;
+            buffer.clear();
+        }
+
+        if (line == null) return position == offset ? null : "";
+        return decodeLine(line.toByteArray(), line.size());
+    }
+
+    private static String decodeLine(byte[] bytes, int length) {
+        if (length > 0 && bytes[length - 1] == '\r') length--;
+        return new String(bytes, 0, length, UTF_8);
+    }
+
+    private static void readFully(FileChannel source, ByteBuffer buffer, long position) throws IOException {
+        int read;
+        while (buffer.hasRemaining() && (read = source.read(buffer, position)) > 0) {
+            position += read;
+        }
+    }
+
+    private static void heapSort(ByteBuffer entries, int count) {
+        for (int i = count / 2 - 1; i >= 0; i--) {
+            siftDown(entries, i, count);
+        }
+        for (int end = count - 1; end > 0; end--) {
+            swap(entries, 0, end);
+            siftDown(entries, 0, end);
+        }
+    }
+
+    private static void siftDown(ByteBuffer entries, int root, int count) {
+        while (true) {
+            int child = 2 * root + 1;
+            if (child >= count) return;
+            if (child + 1 < count && compare(entries, child, child + 1) < 0) child++;
+            if (compare(entries, root, child) >= 0) return;
+            swap(entries, root, child);
+            root = child;
+        }
+    }
+
+    private static int compare(ByteBuffer entries, int a, int b) {
+        long hashA = entries.getLong(a * ENTRY_SIZE);
+        long hashB = entries.getLong(b * ENTRY_SIZE);
+        if (hashA != hashB) return hashA < hashB ? -1 : 1;
+        long locationA = entries.getLong(a * ENTRY_SIZE + 8);
+        long locationB = entries.getLong(b * ENTRY_SIZE + 8);
+        return locationA < locationB ? -1 : (locationA == locationB ? 0 : 1);
+    }
+
+    private static void swap(ByteBuffer entries, int a, int b) {
+        long hash = entries.getLong(a * ENTRY_SIZE);
+        long location = entries.getLong(a * ENTRY_SIZE + 8);
+        entries.putLong(a * ENTRY_SIZE, entries.getLong(b * ENTRY_SIZE));
+        entries.putLong(a * ENTRY_SIZE + 8, entries.getLong(b * ENTRY_SIZE + 8));
+        entries.putLong(b * ENTRY_SIZE, hash);
+        entries.putLong(b * ENTRY_SIZE + 8, location);
+    }
+}
@@ -0,0 +1,234 @@
+package patrick.pfr.zebralabelprinter;
+
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+/**
+ * Author:      Patrick Snelgar
+ * Name:        PrintDispatcher.java
+ * Description: Queue of label formats drained by a single worker thread. Jobs that arrive within the batch
+ *              window are concatenated and sent to the printer in one write, until the batch reaches the
+ *              size limit. Every job in a batch is reported back on the callback executor with the batch's result.
+ *              Jobs without a printer address go to the pool, each batch to the member chosen by the PrinterSelector.
+ *              Pooled batches are not waited on before collecting the next, so every member can print at once.
+ */
+class PrintDispatcher {
+
+    private static final Logger LOG = Logger.getLogger(PrintDispatcher.class.getSimpleName());
+    private static final int INITIAL_BATCH_BYTES = 16 * 1024;
+
+    private final PrinterConnections mConnections;
+    private final PrintSettings mSettings;
+    private final PrintListener mListener;
+    private final Executor mCallbackExecutor;
+    private final PrinterSelector mSelector;
+    // Waits for pooled batches to finish, one thread per batch in flight.
+    private final ExecutorService mCompletionExecutor;
+    private final BlockingQueue<PrintJob> mJobs = new LinkedBlockingQueue<>();
+    private final Thread mWorker;
+
+    // Only accessed from the worker thread.
+    private final ByteArrayOutputStream mBatchBuffer = new ByteArrayOutputStream(INITIAL_BATCH_BYTES);
+    private PrintJob mCarriedOver;
+
+    /**
+     * @param connections
+     * @param settings
+     * @param listener
+     * @param callbackExecutor where job callbacks are run
+     */
+    PrintDispatcher(PrinterConnections connections, PrintSettings settings, PrintListener listener, Executor callbackExecutor) {
+        mConnections = connections;
+        mSettings = settings;
+        mListener = listener;
+        mCallbackExecutor = callbackExecutor;
+        mSelector = new PrinterSelector(settings);
+        mCompletionExecutor = Executors.newCachedThreadPool(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "PrintDispatcher completion");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+
+        mWorker = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                drain();
+            }
+        }, "PrintDispatcher");
+        mWorker.setDaemon(true);
+        mWorker.start();
+    }
+
+    /**
+     * Adds a job to the end of the queue.
+     * @param job
+     */
+    void enqueue(PrintJob job) {
+        mJobs.add(job);
+    }
+
+    /**
+     * @return the number of jobs waiting to be sent, not counting the batch currently printing.
+     */
+    int pendingCount() {
+        return mJobs.size();
+    }
+
+    /**
+     * Tells a batch waiting for a free pool member that the members have changed.
+     */
+    void poolChanged() {
+        mSelector.membersChanged();
+    }
+
+    /**
+     * Stops the worker thread, jobs still queued are not sent.
+     */
+    void shutdown() {
+        mWorker.interrupt();
+        mCompletionExecutor.shutdown();
+    }
+
+    private void drain() {
+        List<PrintJob> batch = new ArrayList<>();
+        while (true) {
+            try {
+                collectBatch(batch);
+                sendBatch(batch);
+            } catch (InterruptedException e) {
+                LOG.fine("Print dispatcher stopped");
+                return;
+            } finally {
+                batch.clear();
+            }
+        }
+    }
+
+    /**
+     * Blocks for the first job, then keeps adding jobs for the same printer until the batch window
+     * closes or the batch reaches the size limit.
+     * @param batch filled with the jobs to send together
+     */
+    private void collectBatch(List<PrintJob> batch) throws InterruptedException {
+        PrintJob first = mCarriedOver != null ? mCarriedOver : mJobs.take();
+        mCarriedOver = null;
+        batch.add(first);
+
+        int maxBytes = mSettings.getMaxBatchBytes();
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(mSettings.getBatchWindowMs());
+        int size = first.data.length();
+
+        while (size < maxBytes) {
+            long remaining = deadline - System.nanoTime();
+            PrintJob next = remaining > 0 ? mJobs.poll(remaining, TimeUnit.NANOSECONDS) : mJobs.poll();
+            if (next == null) break;
+
+            // A job for another printer, or one that would overflow the batch, starts the next batch.
+            if (!samePrinter(next, first) || size + next.data.length() > maxBytes) {
+                mCarriedOver = next;
+                break;
+            }
+            batch.add(next);
+            size += next.data.length();
+        }
+    }
+
+    private void sendBatch(List<PrintJob> batch) throws InterruptedException {
+        mBatchBuffer.reset();
+        Set<StoredFormat> storedFormats = new HashSet<>();
+        Set<StoredGraphic> graphics = new HashSet<>();
+        long now = System.nanoTime();
+        for (PrintJob job : batch) {
+            mListener.onJobDequeued(job, now - job.createdAt);
+            mBatchBuffer.write(job.data.array(), 0, job.data.length());
+            job.data.recycle();
+            if (job.storedFormat != null) storedFormats.add(job.storedFormat);
+            graphics.addAll(job.graphics);
+        }
+        String printerAddress = batch.get(0).printerAddress;
+        if (printerAddress == null) {
+            sendPooled(new ArrayList<>(batch), mBatchBuffer.toByteArray(), storedFormats, graphics);
+            return;
+        }
+        LOG.fine("Sending " + batch.size() + " labels, " + mBatchBuffer.size() + " bytes to " + printerAddress);
+
+        PrintResult result = await(mConnections.print(printerAddress, mBatchBuffer.toByteArray(), batch.size(),
+                storedFormats, graphics));
+        for (PrintJob job : batch) {
+            postResult(job, result);
+        }
+    }
+
+    /**
+     * Waits for a pool member to be free and sends the batch to it, the result is reported from another thread.
+     */
+    private void sendPooled(final List<PrintJob> batch, byte[] data, Set<StoredFormat> storedFormats,
+                            Set<StoredGraphic> graphics) throws InterruptedException {
+        final String printerAddress = mSelector.acquire();
+        if (printerAddress == null) {
+            // The pool was emptied while the jobs were waiting.
+            PrintResult result = new PrintResult(PrintResult.Status.CONNECTION_ERROR, "No printers in the pool", 0);
+            for (PrintJob job : batch) {
+                postResult(job, result);
+            }
+            return;
+        }
+        LOG.fine("Sending " + batch.size() + " labels, " + data.length + " bytes to pooled " + printerAddress);
+
+        final Future<PrintResult> pending = mConnections.print(printerAddress, data, batch.size(),
+                storedFormats, graphics);
+        mCompletionExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                PrintResult result;
+                try {
+                    result = await(pending);
+                } catch (InterruptedException e) {
+                    result = new PrintResult(PrintResult.Status.CONNECTION_ERROR, "Interrupted", 0);
+                }
+                mSelector.release(printerAddress, result);
+                for (PrintJob job : batch) {
+                    postResult(job, result);
+                }
+            }
+        });
+    }
+
+    private static PrintResult await(Future<PrintResult> pending) throws InterruptedException {
+        try {
+            return pending.get();
+        } catch (ExecutionException e) {
+            return new PrintResult(PrintResult.Status.CONNECTION_ERROR, e.getCause().getMessage(), 0);
+        }
+    }
+
+    static boolean samePrinter(PrintJob a, PrintJob b) {
+        return a.printerAddress == null ? b.printerAddress == null : a.printerAddress.equals(b.printerAddress);
+    }
+
+    private void postResult(final PrintJob job, final PrintResult result) {
+        if (job.callback == null) return;
+        mCallbackExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                job.callback.onJobComplete(job, result);
+            }
+        });
+    }
+}
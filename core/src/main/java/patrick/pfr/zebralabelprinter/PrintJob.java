@@ -0,0 +1,57 @@
+package patrick.pfr.zebralabelprinter;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Author:      Patrick Snelgar
+ * Name:        PrintJob.java
+ * Description: A single label format waiting in the PrintDispatcher, along with who to tell when it has printed.
+ */
+class PrintJob {
+
+    /**
+     * Receives the result of a job on the PrintDispatcher's callback executor, the main thread in the app.
+     */
+    interface Callback {
+        void onJobComplete(PrintJob job, PrintResult result);
+    }
+
+    private static final AtomicLong sNextId = new AtomicLong();
+
+    final long id;
+    // Null to print on whichever PrinterPool member is chosen when the job is sent.
+    final String printerAddress;
+    // Rendered format, recycled by the queue once it has been copied into a batch.
+    final LabelBuffer data;
+    // Short description shown to the user, e.g. the barcode the label is for.
+    final String label;
+    final Callback callback;
+    // Layout the data recalls with ^XF, which must be on the printer first. Null for self-contained formats.
+    final StoredFormat storedFormat;
+    // Graphics the data draws with ^XG, downloaded first to any printer that does not hold them yet.
+    final Collection<StoredGraphic> graphics;
+    // System.nanoTime() when the job was created, for the time spent waiting in the queue.
+    final long createdAt;
+
+    PrintJob(String printerAddress, LabelBuffer data, String label, Callback callback) {
+        this(printerAddress, data, label, callback, null);
+    }
+
+    PrintJob(String printerAddress, LabelBuffer data, String label, Callback callback, StoredFormat storedFormat) {
+        this(printerAddress, data, label, callback, storedFormat, Collections.<StoredGraphic>emptyList());
+    }
+
+    PrintJob(String printerAddress, LabelBuffer data, String label, Callback callback, StoredFormat storedFormat,
+             Collection<StoredGraphic> graphics) {
+        this.id = sNextId.incrementAndGet();
+        this.printerAddress = printerAddress;
+        this.data = data;
+        this.label = label;
+        this.callback = callback;
+        this.storedFormat = storedFormat;
+        this.graphics = graphics;
+        this.createdAt = System.nanoTime();
+    }
+}
@@ -0,0 +1,26 @@
+package patrick.pfr.zebralabelprinter;
+
+/**
+ * Author:      Patrick Snelgar
+ * Name:        PrintListener.java
+ * Description: Receives what the print core is doing, for statistics and for remembering printers.
+ *              Called on the print core's own threads, so implementations must be quick and thread-safe.
+ */
+interface PrintListener {
+
+    // Stages that run on one printer's connection thread.
+    enum Stage { CONNECT, WRITE, ACKNOWLEDGE, CLOSE }
+
+    // Called on the thread doing the work before each stage starts, and followed by onStageFinished on the same thread.
+    void onStageStarted(Stage stage);
+
+    void onStageFinished(Stage stage, long durationNanos, boolean success);
+
+    // A job was taken off the queue to be sent, after waiting for the given time.
+    void onJobDequeued(PrintJob job, long waitNanos);
+
+    void onConnected(String address);
+
+    // A batch was acknowledged by the printer.
+    void onPrinted(String address);
+}
@@ -0,0 +1,47 @@
+package patrick.pfr.zebralabelprinter;
+
+/**
+ * Author:      Patrick Snelgar
+ * Name:        PrintResult.java
+ * Description: Outcome of sending a label format to the printer, as acknowledged by the printer's host status.
+ */
+class PrintResult {
+
+    enum Status {
+        // The printer reported the format was consumed and printed.
+        COMPLETED,
+        // The printer did not finish the format within the timeout.
+        TIMEOUT,
+        // The printer reported a condition that stops it printing, e.g. head open or paper out.
+        PRINTER_ERROR,
+        // The data could not be sent, or the status could not be read back.
+        CONNECTION_ERROR
+    }
+
+    final Status status;
+    final String message;
+    // Time from the start of the write until the result was known.
+    final long elapsedMs;
+    // Whether the data reached the printer. A failure after it did may still have printed, so it is not resent.
+    final boolean sent;
+
+    PrintResult(Status status, String message, long elapsedMs) {
+        this(status, message, elapsedMs, false);
+    }
+
+    PrintResult(Status status, String message, long elapsedMs, boolean sent) {
+        this.status = status;
+        this.message = message;
+        this.elapsedMs = elapsedMs;
+        this.sent = sent;
+    }
+
+    boolean isSuccess() {
+        return status == Status.COMPLETED;
+    }
+
+    @Override
+    public String toString() {
+        return status + (message != null ? " (" + message + ")" : "") + " in " + elapsedMs + "ms";
+    }
+}
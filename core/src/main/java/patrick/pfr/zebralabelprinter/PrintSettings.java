@@ -0,0 +1,28 @@
+package patrick.pfr.zebralabelprinter;
+
+import java.util.Set;
+
+/**
+ * Author:      Patrick Snelgar
+ * Name:        PrintSettings.java
+ * Description: Tunables of the print core. Read every time they are needed, so changes apply to the next batch.
+ *              The app reads them from the preferences, the load test from its command line.
+ */
+interface PrintSettings {
+
+    // Time a connection is kept open after its last use.
+    long getIdleTimeoutMs();
+
+    // Time to wait for the printer to acknowledge each label of a batch.
+    long getPrintTimeoutMs();
+
+    // Time to wait for more jobs before sending a batch.
+    long getBatchWindowMs();
+
+    int getMaxBatchBytes();
+
+    // Printers jobs without an address are shared between, empty if there is no pool.
+    Set<String> getPoolMembers();
+
+    PrinterSelector.Policy getPoolPolicy();
+}
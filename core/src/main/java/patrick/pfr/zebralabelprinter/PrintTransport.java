@@ -0,0 +1,38 @@
+package patrick.pfr.zebralabelprinter;
+
+import java.io.IOException;
+
+/**
+ * Author:      Patrick Snelgar
+ * Name:        PrintTransport.java
+ * Description: How the print core reaches a printer. The app uses a Bluetooth transport built on the Zebra SDK,
+ *              the load test a simulated printer, so the queueing and connection logic is the same in both.
+ */
+interface PrintTransport {
+
+    /**
+     * An open connection to one printer. Only used from that printer's PrinterConnection thread.
+     */
+    interface Link {
+
+        void write(byte[] data) throws IOException;
+
+        /**
+         * Blocks until the printer has consumed everything written to it, it reports an error, or the timeout passes.
+         * @param timeoutMs
+         * @return the outcome, with the time spent waiting as its elapsed time
+         */
+        PrintResult awaitCompletion(long timeoutMs);
+
+        boolean isConnected();
+
+        void close() throws IOException;
+    }
+
+    /**
+     * Opens a connection to the printer.
+     * @param address
+     * @throws IOException if the printer could not be reached.
+     */
+    Link connect(String address) throws IOException;
+}
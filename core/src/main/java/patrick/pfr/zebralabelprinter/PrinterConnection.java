@@ -0,0 +1,252 @@
+package patrick.pfr.zebralabelprinter;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+/**
+ * Author:      Patrick Snelgar
+ * Name:        PrinterConnection.java
+ * Description: The kept-alive connection to one printer. Each printer has its own background thread,
+ *              so a slow or unreachable printer does not hold up prints to the others.
+ *              The connection is closed after the idle timeout, and reopened transparently if a write fails.
+ *              Each print waits for the printer to acknowledge the data before the next one is sent.
+ *              Stored formats are downloaded once per connection, graphics once per printer.
+ *              Created by PrinterConnections.
+ */
+class PrinterConnection {
+
+    private static final Logger LOG = Logger.getLogger(PrinterConnection.class.getSimpleName());
+
+    private final String mAddress;
+    private final PrintTransport mTransport;
+    private final PrintSettings mSettings;
+    private final PrintListener mListener;
+    private final GraphicRegistry mGraphics;
+    private final ScheduledExecutorService mExecutor;
+
+    // Only accessed from mExecutor.
+    private PrintTransport.Link mLink;
+    private ScheduledFuture<?> mIdleClose;
+    // Stored formats downloaded since the connection was opened, the printer may have been power cycled in between.
+    private final Set<String> mStoredFormats = new HashSet<>();
+    // Graphics downloaded by the current print, only recorded in the registry once the printer acknowledges it.
+    private final List<String> mDownloadedGraphics = new ArrayList<>();
+
+    PrinterConnection(final String address, PrintTransport transport, PrintSettings settings, PrintListener listener,
+                      GraphicRegistry graphics) {
+        mAddress = address;
+        mTransport = transport;
+        mSettings = settings;
+        mListener = listener;
+        mGraphics = graphics;
+        mExecutor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "PrinterConnection " + address);
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    String getAddress() {
+        return mAddress;
+    }
+
+    /**
+     * @return whether the connection could be opened
+     */
+    Future<Boolean> prewarm() {
+        return mExecutor.submit(new Callable<Boolean>() {
+            @Override
+            public Boolean call() {
+                try {
+                    ensureConnected();
+                    return true;
+                } catch (IOException e) {
+                    LOG.fine("Could not pre-connect to " + mAddress + ": " + e.getMessage());
+                    closeConnection();
+                    return false;
+                }
+            }
+        });
+    }
+
+    /**
+     * @param data
+     * @param labels number of labels in the data, the acknowledge timeout is allowed for each
+     * @param storedFormats layouts recalled by the data, downloaded first unless already sent on this connection
+     * @param graphics graphics drawn by the data, downloaded first unless the printer already holds them
+     * @return the acknowledged result, available once the printer has consumed the data
+     */
+    Future<PrintResult> print(final byte[] data, final int labels, final Collection<StoredFormat> storedFormats,
+                              final Collection<StoredGraphic> graphics) {
+        return mExecutor.submit(new Callable<PrintResult>() {
+            @Override
+            public PrintResult call() {
+                PrintResult result = send(data, labels, storedFormats, graphics);
+                if (!result.isSuccess()) {
+                    LOG.warning("Error printing to " + mAddress + ": " + result);
+                }
+                return result;
+            }
+        });
+    }
+
+    void disconnect() {
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                closeConnection();
+            }
+        });
+    }
+
+    /**
+     * Closes the connection and stops the connection thread, used when the print core is shut down.
+     */
+    void shutdown() {
+        disconnect();
+        mExecutor.shutdown();
+    }
+
+    private PrintResult send(byte[] data, int labels, Collection<StoredFormat> storedFormats,
+                             Collection<StoredGraphic> graphics) {
+        long start = System.nanoTime();
+        mDownloadedGraphics.clear();
+        try {
+            write(data, storedFormats, graphics);
+        } catch (IOException e) {
+            LOG.fine("Write failed, reconnecting: " + e.getMessage());
+            closeConnection();
+            mDownloadedGraphics.clear();
+            try {
+                write(data, storedFormats, graphics);
+            } catch (IOException retryError) {
+                closeConnection();
+                return new PrintResult(PrintResult.Status.CONNECTION_ERROR, retryError.getMessage(), elapsedMs(start));
+            }
+        }
+
+        mListener.onStageStarted(PrintListener.Stage.ACKNOWLEDGE);
+        long acknowledgeStart = System.nanoTime();
+        // A batch takes longer to print than a single label, so the timeout grows with it.
+        PrintResult acknowledged = mLink.awaitCompletion(mSettings.getPrintTimeoutMs() * Math.max(1, labels));
+        mListener.onStageFinished(PrintListener.Stage.ACKNOWLEDGE, System.nanoTime() - acknowledgeStart, acknowledged.isSuccess());
+        // Report the time from the start of the write, not just the wait.
+        PrintResult result = new PrintResult(acknowledged.status, acknowledged.message, elapsedMs(start), true);
+
+        if (result.isSuccess()) {
+            for (String graphic : mDownloadedGraphics) {
+                mGraphics.markStored(mAddress, graphic);
+            }
+            mListener.onPrinted(mAddress);
+        }
+        if (result.status == PrintResult.Status.CONNECTION_ERROR) {
+            // The data was sent, so do not resend it, but the link cannot be trusted for the next label.
+            closeConnection();
+        } else {
+            scheduleIdleClose();
+        }
+        return result;
+    }
+
+    private void write(byte[] data, Collection<StoredFormat> storedFormats, Collection<StoredGraphic> graphics)
+            throws IOException {
+        ensureConnected();
+        mListener.onStageStarted(PrintListener.Stage.WRITE);
+        long start = System.nanoTime();
+        boolean success = false;
+        try {
+            // Graphics first, a stored layout may draw them too.
+            for (StoredGraphic graphic : graphics) {
+                if (!mDownloadedGraphics.contains(graphic.name) && !mGraphics.isStored(mAddress, graphic.name)) {
+                    LOG.fine("Storing graphic " + graphic.name + " on " + mAddress);
+                    mLink.write(graphic.definition);
+                    mDownloadedGraphics.add(graphic.name);
+                }
+            }
+            for (StoredFormat format : storedFormats) {
+                if (mStoredFormats.add(format.name)) {
+                    LOG.fine("Storing format " + format.name + " on " + mAddress);
+                    mLink.write(format.definition);
+                }
+            }
+            mLink.write(data);
+            success = true;
+        } finally {
+            mListener.onStageFinished(PrintListener.Stage.WRITE, System.nanoTime() - start, success);
+        }
+    }
+
+    private void ensureConnected() throws IOException {
+        if (mLink != null && mLink.isConnected()) {
+            scheduleIdleClose();
+            return;
+        }
+
+        // Either the first print or the link dropped.
+        closeConnection();
+        LOG.fine("Connecting to " + mAddress);
+        mListener.onStageStarted(PrintListener.Stage.CONNECT);
+        long start = System.nanoTime();
+        boolean success = false;
+        try {
+            mLink = mTransport.connect(mAddress);
+            success = true;
+        } finally {
+            mListener.onStageFinished(PrintListener.Stage.CONNECT, System.nanoTime() - start, success);
+        }
+        mListener.onConnected(mAddress);
+        scheduleIdleClose();
+    }
+
+    private void scheduleIdleClose() {
+        if (mIdleClose != null) mIdleClose.cancel(false);
+        mIdleClose = mExecutor.schedule(new Runnable() {
+            @Override
+            public void run() {
+                LOG.fine("Connection to " + mAddress + " idle, closing");
+                closeConnection();
+            }
+        }, mSettings.getIdleTimeoutMs(), TimeUnit.MILLISECONDS);
+    }
+
+    private void closeConnection() {
+        if (mIdleClose != null) {
+            mIdleClose.cancel(false);
+            mIdleClose = null;
+        }
+        if (mLink != null) {
+            mListener.onStageStarted(PrintListener.Stage.CLOSE);
+            long start = System.nanoTime();
+            boolean success = false;
+            try {
+                mLink.close();
+                success = true;
+            } catch (Exception e) {
+                LOG.fine("Error closing connection: " + e.getMessage());
+            } finally {
+                mListener.onStageFinished(PrintListener.Stage.CLOSE, System.nanoTime() - start, success);
+            }
+            mLink = null;
+            mStoredFormats.clear();
+        }
+    }
+
+    private static long elapsedMs(long startNanos) {
+        return (System.nanoTime() - startNanos) / 1000000;
+    }
+}
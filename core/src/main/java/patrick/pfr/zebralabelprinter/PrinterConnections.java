@@ -0,0 +1,94 @@
+package patrick.pfr.zebralabelprinter;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Future;
+
+/**
+ * Author:      Patrick Snelgar
+ * Name:        PrinterConnections.java
+ * Description: Keeps a connection open to each printer between prints, so only the first label pays for the connect.
+ *              Connections are created on first use, all over the same transport.
+ */
+class PrinterConnections {
+
+    private final PrintTransport mTransport;
+    private final PrintSettings mSettings;
+    private final PrintListener mListener;
+    private final GraphicRegistry mGraphics;
+    // Guarded by itself.
+    private final Map<String, PrinterConnection> mConnections = new HashMap<>();
+
+    PrinterConnections(PrintTransport transport, PrintSettings settings, PrintListener listener, GraphicRegistry graphics) {
+        mTransport = transport;
+        mSettings = settings;
+        mListener = listener;
+        mGraphics = graphics;
+    }
+
+    /**
+     * Opens the connection ahead of time.
+     * @param printerAddress
+     * @return whether the connection could be opened
+     */
+    Future<Boolean> prewarm(String printerAddress) {
+        return connectionTo(printerAddress).prewarm();
+    }
+
+    /**
+     * Sends the data to the printer over the kept-alive connection and waits for the printer to acknowledge it.
+     * If the write fails the connection is reopened and the write retried once.
+     * @param printerAddress
+     * @param data
+     * @param labels number of labels in the data, the acknowledge timeout is allowed for each
+     * @param storedFormats layouts recalled by the data, downloaded first unless already sent on this connection
+     * @param graphics graphics drawn by the data, downloaded first unless the printer already holds them
+     * @return the acknowledged result, available once the printer has consumed the data
+     */
+    Future<PrintResult> print(String printerAddress, byte[] data, int labels, Collection<StoredFormat> storedFormats,
+                              Collection<StoredGraphic> graphics) {
+        return connectionTo(printerAddress).print(data, labels, storedFormats, graphics);
+    }
+
+    /**
+     * Closes every connection now rather than waiting for the idle timeout.
+     */
+    void disconnect() {
+        for (PrinterConnection connection : snapshot()) {
+            connection.disconnect();
+        }
+    }
+
+    /**
+     * Closes every connection and stops their threads.
+     */
+    void shutdown() {
+        List<PrinterConnection> connections = snapshot();
+        synchronized (mConnections) {
+            mConnections.clear();
+        }
+        for (PrinterConnection connection : connections) {
+            connection.shutdown();
+        }
+    }
+
+    private List<PrinterConnection> snapshot() {
+        synchronized (mConnections) {
+            return new ArrayList<>(mConnections.values());
+        }
+    }
+
+    private PrinterConnection connectionTo(String printerAddress) {
+        synchronized (mConnections) {
+            PrinterConnection connection = mConnections.get(printerAddress);
+            if (connection == null) {
+                connection = new PrinterConnection(printerAddress, mTransport, mSettings, mListener, mGraphics);
+                mConnections.put(printerAddress, connection);
+            }
+            return connection;
+        }
+    }
+}
@@ -0,0 +1,127 @@
+package patrick.pfr.zebralabelprinter;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Logger;
+
+/**
+ * Author:      Patrick Snelgar
+ * Name:        PrinterSelector.java
+ * Description: Picks the pool member for each batch using the policy from the PrintSettings. Round robin takes the
+ *              members in turn, least outstanding picks the member with the fewest unfinished batches. Members with
+ *              MAX_OUTSTANDING batches in flight are busy and skipped, members whose last print failed are skipped
+ *              for FAILURE_BACKOFF_MS unless no other member is healthy.
+ */
+class PrinterSelector {
+
+    enum Policy { ROUND_ROBIN, LEAST_OUTSTANDING }
+
+    private static final Logger LOG = Logger.getLogger(PrinterSelector.class.getSimpleName());
+
+    // Batches a printer can have in flight before it counts as busy. One printing and one waiting behind it
+    // keeps the printer fed without queueing work on it that an idle member could take.
+    static final int MAX_OUTSTANDING = 2;
+    static final long FAILURE_BACKOFF_MS = 30000;
+
+    private final PrintSettings mSettings;
+
+    // Guarded by this.
+    private final Map<String, Integer> mOutstanding = new HashMap<>();
+    private final Map<String, Long> mFailedUntil = new HashMap<>();
+    private int mNextIndex = 0;
+
+    PrinterSelector(PrintSettings settings) {
+        mSettings = settings;
+    }
+
+    /**
+     * Picks the printer for the next batch, waiting while every healthy member is busy.
+     * The caller must release() the printer once the batch has finished.
+     * @return the address of the chosen printer, or null if the pool is empty.
+     */
+    synchronized String acquire() throws InterruptedException {
+        while (true) {
+            List<String> members = new ArrayList<>(mSettings.getPoolMembers());
+            if (members.isEmpty()) return null;
+            Collections.sort(members);
+
+            String chosen = choose(members);
+            if (chosen != null) {
+                mOutstanding.put(chosen, outstanding(chosen) + 1);
+                return chosen;
+            }
+            // Woken by release() or a change of members, the timeout catches backoffs expiring.
+            wait(FAILURE_BACKOFF_MS);
+        }
+    }
+
+    /**
+     * Reports the outcome of a batch sent to a printer returned by acquire().
+     * @param address
+     * @param result
+     */
+    synchronized void release(String address, PrintResult result) {
+        int outstanding = outstanding(address) - 1;
+        if (outstanding > 0) mOutstanding.put(address, outstanding);
+        else mOutstanding.remove(address);
+
+        if (result.status == PrintResult.Status.COMPLETED) {
+            mFailedUntil.remove(address);
+        } else {
+            LOG.fine("Backing off " + address + " after " + result.status);
+            mFailedUntil.put(address, nowMs() + FAILURE_BACKOFF_MS);
+        }
+        notifyAll();
+    }
+
+    /**
+     * Wakes a waiting acquire() to pick again from the new members.
+     */
+    synchronized void membersChanged() {
+        notifyAll();
+    }
+
+    /**
+     * @return the member to use, or null if every usable member is busy.
+     */
+    private String choose(List<String> members) {
+        long now = nowMs();
+        List<String> healthy = new ArrayList<>(members.size());
+        for (String address : members) {
+            Long failedUntil = mFailedUntil.get(address);
+            if (failedUntil == null || failedUntil <= now) healthy.add(address);
+        }
+        // With every member failing keep trying them rather than stalling the queue.
+        List<String> candidates = healthy.isEmpty() ? members : healthy;
+
+        boolean leastOutstanding = mSettings.getPoolPolicy() == Policy.LEAST_OUTSTANDING;
+        String chosen = null;
+        int chosenIndex = -1;
+        for (int i = 0; i < candidates.size(); i++) {
+            // Start from the member after the last one used, so ties are also shared in turn.
+            int index = (mNextIndex + i) % candidates.size();
+            String address = candidates.get(index);
+            int outstanding = outstanding(address);
+            if (outstanding >= MAX_OUTSTANDING) continue;
+            if (chosen == null || (leastOutstanding && outstanding < outstanding(chosen))) {
+                chosen = address;
+                chosenIndex = index;
+                if (!leastOutstanding) break;
+            }
+        }
+        if (chosen != null) mNextIndex = chosenIndex + 1;
+        return chosen;
+    }
+
+    private int outstanding(String address) {
+        Integer outstanding = mOutstanding.get(address);
+        return outstanding == null ? 0 : outstanding;
+    }
+
+    private static long nowMs() {
+        return System.nanoTime() / 1000000;
+    }
+}
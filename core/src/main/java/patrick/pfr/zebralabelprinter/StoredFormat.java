@@ -0,0 +1,72 @@
+package patrick.pfr.zebralabelprinter;
+
+import java.io.UnsupportedEncodingException;
+import java.util.Locale;
+import java.util.zip.CRC32;
+
+/**
+ * Author:      Patrick Snelgar
+ * Name:        StoredFormat.java
+ * Description: A label layout kept in the printer's memory with ^DF and recalled with ^XF.
+ *              The file name is derived from a hash of the layout, so a changed layout is stored
+ *              under a new name rather than the printer using a stale copy.
+ */
+class StoredFormat {
+
+    // R: is the printer's DRAM, which is cleared on power cycle, so formats never pile up in flash.
+    private static final String DEVICE = "R:";
+    private static final String EXTENSION = ".ZPL";
+
+    final String name;
+    // The complete ^XA^DF...^XZ format that stores the layout.
+    final byte[] definition;
+
+    private StoredFormat(String name, byte[] definition) {
+        this.name = name;
+        this.definition = definition;
+    }
+
+    /**
+     * @param layout ZPL commands of the layout, using ^FNn fields for the variable data,
+     *               without the surrounding ^XA and ^XZ
+     */
+    static StoredFormat fromLayout(String layout) {
+        try {
+            CRC32 crc = new CRC32();
+            byte[] layoutBytes = layout.getBytes("UTF-8");
+            crc.update(layoutBytes);
+            // Names are limited to 8 characters on older firmware.
+            String name = DEVICE + String.format(Locale.US, "L%07X", crc.getValue() & 0xfffffffL) + EXTENSION;
+            String definition = "^XA\n^DF" + name + "^FS\n" + layout + "^XZ\n";
+            return new StoredFormat(name, definition.getBytes("UTF-8"));
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Recreates a format saved with its name and definition, e.g. by the PrintSpool.
+     * @param name
+     * @param definition
+     */
+    static StoredFormat fromDefinition(String name, byte[] definition) {
+        return new StoredFormat(name, definition);
+    }
+
+    /**
+     * @return the command that starts a label using this format, fields follow as ^FNn^FD...^FS
+     */
+    String recallCommand() {
+        return "^XA\n^XF" + name + "^FS\n";
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        return o instanceof StoredFormat && name.equals(((StoredFormat) o).name);
+    }
+
+    @Override
+    public int hashCode() {
+        return name.hashCode();
+    }
+}
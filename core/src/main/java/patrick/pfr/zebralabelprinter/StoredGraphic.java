@@ -0,0 +1,99 @@
+package patrick.pfr.zebralabelprinter;
+
+import java.nio.charset.Charset;
+import java.util.Locale;
+import java.util.zip.CRC32;
+
+/**
+ * Author:      Patrick Snelgar
+ * Name:        StoredGraphic.java
+ * Description: A monochrome image kept in the printer's flash with ~DG and drawn on a label with ^XG, so a logo
+ *              costs a few bytes per label instead of a full ^GF bitmap. The image is converted and Z64 encoded
+ *              once, and the file name is derived from a hash of the bitmap, so a changed image is stored under
+ *              a new name rather than the printer drawing a stale copy.
+ *              Unlike a StoredFormat it survives the printer being power cycled, the GraphicRegistry records
+ *              which printers already hold it.
+ */
+final class StoredGraphic {
+
+    // E: is the printer's flash, graphics are only ever downloaded once per printer.
+    private static final String DEVICE = "E:";
+    private static final String EXTENSION = ".GRF";
+    private static final Charset US_ASCII = Charset.forName("US-ASCII");
+
+    final String name;
+    // The ~DG command that stores the graphic.
+    final byte[] definition;
+
+    private StoredGraphic(String name, byte[] definition) {
+        this.name = name;
+        this.definition = definition;
+    }
+
+    /**
+     * Converts an image to a monochrome graphic, pixels darker than mid grey print black and
+     * transparent pixels are left blank.
+     * @param argb pixels of the image, row by row, as packed ARGB
+     * @param width
+     * @param height
+     */
+    static StoredGraphic fromPixels(int[] argb, int width, int height) {
+        if (width <= 0 || height <= 0 || argb.length < width * height)
+            throw new IllegalArgumentException("Invalid image size " + width + "x" + height);
+
+        int bytesPerRow = (width + 7) / 8;
+        byte[] bitmap = new byte[bytesPerRow * height];
+        for (int y = 0; y < height; y++) {
+            int rowStart = y * bytesPerRow;
+            for (int x = 0; x < width; x++) {
+                int pixel = argb[y * width + x];
+                int luminance = (299 * ((pixel >> 16) & 0xff) + 587 * ((pixel >> 8) & 0xff) + 114 * (pixel & 0xff)) / 1000;
+                // A set bit is a black dot.
+                if ((pixel >>> 24) >= 0x80 && luminance < 0x80)
+                    bitmap[rowStart + (x >> 3)] |= 0x80 >>> (x & 7);
+            }
+        }
+        return fromBitmap(bitmap, bytesPerRow);
+    }
+
+    /**
+     * @param bitmap packed rows of the graphic, most significant bit first, a set bit prints black
+     * @param bytesPerRow
+     */
+    static StoredGraphic fromBitmap(byte[] bitmap, int bytesPerRow) {
+        CRC32 crc = new CRC32();
+        crc.update(bytesPerRow >>> 8);
+        crc.update(bytesPerRow);
+        crc.update(bitmap);
+        // Names are limited to 8 characters on older firmware.
+        String name = DEVICE + String.format(Locale.US, "G%07X", crc.getValue() & 0xfffffffL) + EXTENSION;
+        String definition = "~DG" + name + "," + bitmap.length + "," + bytesPerRow + "," + Z64.encode(bitmap) + "\n";
+        return new StoredGraphic(name, definition.getBytes(US_ASCII));
+    }
+
+    /**
+     * Recreates a graphic saved with its name and definition, e.g. by the PrintSpool.
+     * @param name
+     * @param definition
+     */
+    static StoredGraphic fromDefinition(String name, byte[] definition) {
+        return new StoredGraphic(name, definition);
+    }
+
+    /**
+     * @return the command that draws the graphic at the current field origin, at its stored size.
+     */
+    String recallCommand() {
+        return "^XG" + name + ",1,1";
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        return o instanceof StoredGraphic && name.equals(((StoredGraphic) o).name);
+    }
+
+    @Override
+    public int hashCode() {
+        return name.hashCode();
+    }
+}
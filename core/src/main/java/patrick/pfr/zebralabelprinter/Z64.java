@@ -0,0 +1,81 @@
+package patrick.pfr.zebralabelprinter;
+
+import java.io.ByteArrayOutputStream;
+import java.util.Locale;
+import java.util.zip.Deflater;
+
+/**
+ * Author:      Patrick Snelgar
+ * Name:        Z64.java
+ * Description: Zebra's Z64 encoding for graphic data in ZPL, the data is deflated, base64 encoded and followed by
+ *              a CRC-16-CCITT of the base64 text, written as :Z64:<base64>:<crc>. Base64 is written out here as
+ *              the core module targets Java 7, which has no java.util.Base64.
+ */
+final class Z64 {
+
+    private static final char[] BASE64 = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/".toCharArray();
+
+    private Z64() {
+    }
+
+    /**
+     * @param data
+     * @return the data in Z64 form, ready to follow the byte counts of ~DG or ^GF.
+     */
+    static String encode(byte[] data) {
+        String base64 = base64(deflate(data));
+        return ":Z64:" + base64 + ":" + String.format(Locale.US, "%04X", crc16(base64));
+    }
+
+    static byte[] deflate(byte[] data) {
+        Deflater deflater = new Deflater(Deflater.BEST_COMPRESSION);
+        try {
+            deflater.setInput(data);
+            deflater.finish();
+            ByteArrayOutputStream out = new ByteArrayOutputStream(data.length / 4 + 64);
+            byte[] buffer = new byte[4096];
+            while (!deflater.finished()) {
+                int length = deflater.deflate(buffer);
+                out.write(buffer, 0, length);
+            }
+            return out.toByteArray();
+        } finally {
+            deflater.end();
+        }
+    }
+
+    static String base64(byte[] data) {
+        StringBuilder out = new StringBuilder((data.length + 2) / 3 * 4);
+        int i = 0;
+        for (; i + 2 < data.length; i += 3) {
+            int bits = (data[i] & 0xff) << 16 | (data[i + 1] & 0xff) << 8 | (data[i + 2] & 0xff);
+            out.append(BASE64[bits >>> 18]).append(BASE64[(bits >>> 12) & 0x3f])
+                    .append(BASE64[(bits >>> 6) & 0x3f]).append(BASE64[bits & 0x3f]);
+        }
+        int remaining = data.length - i;
+        if (remaining == 1) {
+            int bits = (data[i] & 0xff) << 16;
+            out.append(BASE64[bits >>> 18]).append(BASE64[(bits >>> 12) & 0x3f]).append("==");
+        } else if (remaining == 2) {
+            int bits = (data[i] & 0xff) << 16 | (data[i + 1] & 0xff) << 8;
+            out.append(BASE64[bits >>> 18]).append(BASE64[(bits >>> 12) & 0x3f])
+                    .append(BASE64[(bits >>> 6) & 0x3f]).append('=');
+        }
+        return out.toString();
+    }
+
+    /**
+     * CRC-16-CCITT with polynomial 0x1021 and an initial value of 0, over the ASCII text.
+     * @param text
+     */
+    static int crc16(String text) {
+        int crc = 0;
+        for (int i = 0; i < text.length(); i++) {
+            crc ^= (text.charAt(i) & 0xff) << 8;
+            for (int bit = 0; bit < 8; bit++) {
+                crc = (crc & 0x8000) != 0 ? (crc << 1) ^ 0x1021 : crc << 1;
+            }
+        }
+        return crc & 0xffff;
+    }
+}
@@ -0,0 +1,217 @@
+package patrick.pfr.zebralabelprinter;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Author:      Patrick Snelgar
+ * Name:        CsvReaderTest.java
+ * Description: Record splitting, key matching and the static field helpers of CsvReader.
+ */
+public class CsvReaderTest {
+
+    private static final CsvReader.Dialect SEMICOLON = new CsvReader.Dialect(';', '"', false);
+    private static final CsvReader.Dialect WITH_HEADER = new CsvReader.Dialect(',', '"', true);
+
+    @Test
+    public void splitsRecordsOnLineFeeds() throws IOException {
+        assertEquals(list("a,1", "b,2", "c,3"), records("a,1\nb,2\nc,3\n", CsvReader.Dialect.DEFAULT));
+    }
+
+    @Test
+    public void readsLastRecordWithoutLineFeed() throws IOException {
+        assertEquals(list("a,1", "b,2"), records("a,1\nb,2", CsvReader.Dialect.DEFAULT));
+    }
+
+    @Test
+    public void quotedFieldsHoldDelimitersAndLineBreaks() throws IOException {
+        String csv = "\"a,b\",1\n\"two\nlines\",2\n";
+        assertEquals(list("\"a,b\",1", "\"two\nlines\",2"), records(csv, CsvReader.Dialect.DEFAULT));
+    }
+
+    @Test
+    public void quoteInsideUnquotedFieldIsData() throws IOException {
+        String csv = "1,3/4\" fitting,x\n2,1/2\" pipe,y\n3,plain,z\n";
+        List<String> records = records(csv, CsvReader.Dialect.DEFAULT);
+        assertEquals(list("1,3/4\" fitting,x", "2,1/2\" pipe,y", "3,plain,z"), records);
+        assertEquals("3/4\" fitting", CsvReader.field(records.get(0), 1, CsvReader.Dialect.DEFAULT));
+        assertEquals("x", CsvReader.field(records.get(0), 2, CsvReader.Dialect.DEFAULT));
+    }
+
+    @Test
+    public void quoteInsideUnquotedFieldSpanningBufferRefill() throws IOException {
+        StringBuilder csv = new StringBuilder();
+        for (int i = 0; i < 5000; i++) {
+            csv.append(i).append(",").append(i).append("\" long item description,x\n");
+        }
+        List<String> records = records(csv.toString(), CsvReader.Dialect.DEFAULT);
+        assertEquals(5000, records.size());
+        assertEquals("4999,4999\" long item description,x", records.get(4999));
+    }
+
+    @Test
+    public void doubledQuoteInQuotedField() throws IOException {
+        List<String> records = records("\"say \"\"hi\"\", then go\",1\n2,3\n", CsvReader.Dialect.DEFAULT);
+        assertEquals(2, records.size());
+        assertEquals("say \"hi\", then go", CsvReader.field(records.get(0), 0, CsvReader.Dialect.DEFAULT));
+        assertEquals("1", CsvReader.field(records.get(0), 1, CsvReader.Dialect.DEFAULT));
+    }
+
+    @Test
+    public void stripsCarriageReturns() throws IOException {
+        CsvReader reader = reader("a,1\r\nb,2\r\n", CsvReader.Dialect.DEFAULT, 1);
+        try {
+            assertTrue(reader.next());
+            assertEquals("a,1", reader.record());
+            assertTrue(reader.keyEquals(bytes("1")));
+            assertEquals(5, reader.getPosition());
+            assertTrue(reader.next());
+            assertEquals("b,2", reader.record());
+            assertTrue(reader.keyEquals(bytes("2")));
+            assertFalse(reader.next());
+        } finally {
+            reader.close();
+        }
+    }
+
+    @Test
+    public void keepsCarriageReturnInsideQuotes() throws IOException {
+        List<String> records = records("\"a\r\nb\",1\r\n", CsvReader.Dialect.DEFAULT);
+        assertEquals(list("\"a\r\nb\",1"), records);
+    }
+
+    @Test
+    public void skipsByteOrderMark() throws IOException {
+        CsvReader reader = reader("\uFEFFa,1\nb,2\n", CsvReader.Dialect.DEFAULT, 0);
+        try {
+            assertTrue(reader.next());
+            assertEquals("a,1", reader.record());
+            assertTrue(reader.keyEquals(bytes("a")));
+        } finally {
+            reader.close();
+        }
+    }
+
+    @Test
+    public void skipsHeaderRow() throws IOException {
+        assertEquals(list("a,1", "b,2"), records("code,qty\na,1\nb,2\n", WITH_HEADER));
+        assertEquals(list("a,1"), records("\uFEFFcode,qty\r\na,1\r\n", WITH_HEADER));
+        assertEquals(list(), records("code,qty\n", WITH_HEADER));
+    }
+
+    @Test
+    public void emptyInputHasNoRecords() throws IOException {
+        assertEquals(list(), records("", CsvReader.Dialect.DEFAULT));
+        assertEquals(list(), records("\uFEFF", CsvReader.Dialect.DEFAULT));
+    }
+
+    @Test
+    public void matchesKeyInOtherColumnsAndDelimiters() throws IOException {
+        CsvReader reader = reader("x;\"B;1\";y\nshort\n", SEMICOLON, 1);
+        try {
+            assertTrue(reader.next());
+            assertTrue(reader.keyEquals(bytes("B;1")));
+            assertFalse(reader.keyEquals(bytes("B")));
+            assertTrue(reader.next());
+            // The record has no second column, so the key is empty.
+            assertTrue(reader.keyEquals(bytes("")));
+        } finally {
+            reader.close();
+        }
+    }
+
+    @Test
+    public void comparesKeysBytewise() throws IOException {
+        CsvReader reader = reader("\"m\"\"2\",1\n", CsvReader.Dialect.DEFAULT, 0);
+        try {
+            assertTrue(reader.next());
+            assertEquals(0, reader.compareKey(bytes("m\"2")));
+            assertTrue(reader.compareKey(bytes("a")) > 0);
+            assertTrue(reader.compareKey(bytes("z")) < 0);
+            assertTrue(reader.compareKey(bytes("m")) > 0);
+            assertTrue(reader.compareKey(bytes("m\"20")) < 0);
+        } finally {
+            reader.close();
+        }
+    }
+
+    @Test
+    public void stopsReadingOnceCancelled() throws IOException {
+        StringBuilder csv = new StringBuilder();
+        for (int i = 0; i < 50000; i++) {
+            csv.append(i).append(",item\n");
+        }
+        final boolean[] cancelled = {false};
+        CsvReader reader = new CsvReader(new ByteArrayInputStream(bytes(csv.toString())), CsvReader.Dialect.DEFAULT, 0,
+                new CsvReader.Cancellation() {
+                    @Override
+                    public boolean isCancelled() {
+                        return cancelled[0];
+                    }
+                });
+        try {
+            assertTrue(reader.next());
+            cancelled[0] = true;
+            while (reader.next()) {
+                // Records already buffered are still returned.
+            }
+            fail("Read past a cancellation");
+        } catch (CsvReader.CancelledException expected) {
+            // Stopped at the next read of the input.
+        } finally {
+            reader.close();
+        }
+    }
+
+    @Test
+    public void fieldOfMissingColumnIsEmpty() {
+        assertEquals("", CsvReader.field("a,b", 2, CsvReader.Dialect.DEFAULT));
+        assertEquals(-1, CsvReader.fieldStart("a,b", 2, CsvReader.Dialect.DEFAULT));
+        assertEquals(2, CsvReader.fieldStart("a,b", 1, CsvReader.Dialect.DEFAULT));
+    }
+
+    @Test
+    public void convertsBetweenDialects() {
+        assertEquals("a,\"b,c\",\"d\"\"\"", CsvReader.convert("a;b,c;\"d\"\"\"", SEMICOLON, CsvReader.Dialect.DEFAULT));
+        assertEquals("1,\"3/4\"\" fitting\"", CsvReader.convert("1;3/4\" fitting", SEMICOLON, CsvReader.Dialect.DEFAULT));
+        assertEquals("a;\"b;c\"", CsvReader.convert("a,b;c", CsvReader.Dialect.DEFAULT, SEMICOLON));
+    }
+
+    private static CsvReader reader(String csv, CsvReader.Dialect dialect, int keyColumn) {
+        return new CsvReader(new ByteArrayInputStream(bytes(csv)), dialect, keyColumn);
+    }
+
+    private static List<String> records(String csv, CsvReader.Dialect dialect) throws IOException {
+        List<String> records = new ArrayList<>();
+        CsvReader reader = reader(csv, dialect, 0);
+        try {
+            while (reader.next()) {
+                records.add(reader.record());
+            }
+        } finally {
+            reader.close();
+        }
+        return records;
+    }
+
+    private static List<String> list(String... values) {
+        List<String> list = new ArrayList<>();
+        for (String value : values) {
+            list.add(value);
+        }
+        return list;
+    }
+
+    private static byte[] bytes(String value) {
+        return value.getBytes(CsvReader.UTF_8);
+    }
+}
@@ -0,0 +1,122 @@
+package patrick.pfr.zebralabelprinter;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Author:      Patrick Snelgar
+ * Name:        LatencyHistogramTest.java
+ * Description: Bucket bounds, percentiles and the rolling window of LatencyHistogram.
+ */
+public class LatencyHistogramTest {
+
+    private static final long WINDOW_MS = LatencyHistogram.WINDOW_SLOTS * LatencyHistogram.SLOT_MS;
+
+    @Test
+    public void smallValuesAreCountedExactly() {
+        for (long micros = 0; micros < 16; micros++) {
+            assertEquals(micros, LatencyHistogram.upperBound(LatencyHistogram.bucketOf(micros)));
+        }
+    }
+
+    @Test
+    public void bucketsHoldTheirValuesWithinAboutNinePercent() {
+        int previous = -1;
+        for (long micros = 1; micros < (1L << 34); micros = micros * 9 / 8 + 1) {
+            int bucket = LatencyHistogram.bucketOf(micros);
+            long upper = LatencyHistogram.upperBound(bucket);
+            assertTrue(bucket >= previous);
+            assertTrue(upper >= micros);
+            assertTrue(upper - micros <= micros / 8 + 1);
+            previous = bucket;
+        }
+    }
+
+    @Test
+    public void bucketsAreContiguous() {
+        for (int bucket = 0; bucket < LatencyHistogram.BUCKETS - 1; bucket++) {
+            long upper = LatencyHistogram.upperBound(bucket);
+            assertEquals(bucket, LatencyHistogram.bucketOf(upper));
+            assertEquals(bucket + 1, LatencyHistogram.bucketOf(upper + 1));
+        }
+    }
+
+    @Test
+    public void hugeAndNegativeValuesAreClamped() {
+        assertEquals(LatencyHistogram.BUCKETS - 1, LatencyHistogram.bucketOf(Long.MAX_VALUE));
+        assertEquals(0, LatencyHistogram.bucketOf(-5));
+    }
+
+    @Test
+    public void percentilesOfRecordedValues() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (int i = 1; i <= 100; i++) {
+            histogram.record(1000, i * 1000);
+        }
+        LatencyHistogram.Snapshot snapshot = histogram.snapshot(1000);
+        assertEquals(100, snapshot.count);
+        assertEquals(100000, snapshot.maxMicros);
+        assertWithin(50000, snapshot.percentileMicros(50));
+        assertWithin(95000, snapshot.percentileMicros(95));
+        assertEquals(100000, snapshot.percentileMicros(100));
+    }
+
+    @Test
+    public void emptySnapshot() {
+        LatencyHistogram.Snapshot snapshot = new LatencyHistogram().snapshot(0);
+        assertEquals(0, snapshot.count);
+        assertEquals(0, snapshot.percentileMicros(99));
+        assertEquals(0, snapshot.errorRate(), 0);
+    }
+
+    @Test
+    public void errorRateCountsErrorsAgainstAllEvents() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (int i = 0; i < 3; i++) {
+            histogram.record(0, 100);
+        }
+        histogram.recordError(0);
+        assertEquals(0.25, histogram.snapshot(0).errorRate(), 1e-9);
+    }
+
+    @Test
+    public void valuesLeaveTheWindow() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        histogram.record(0, 100);
+        histogram.record(LatencyHistogram.SLOT_MS, 200);
+        assertEquals(2, histogram.snapshot(WINDOW_MS - 1).count);
+        assertEquals(1, histogram.snapshot(WINDOW_MS).count);
+        assertEquals(0, histogram.snapshot(WINDOW_MS + LatencyHistogram.SLOT_MS).count);
+    }
+
+    @Test
+    public void reusedSlotStartsEmpty() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        histogram.record(0, 100);
+        histogram.recordError(0);
+        // Same slot index, one window later.
+        histogram.record(WINDOW_MS, 300);
+        LatencyHistogram.Snapshot snapshot = histogram.snapshot(WINDOW_MS);
+        assertEquals(1, snapshot.count);
+        assertEquals(300, snapshot.maxMicros);
+        assertEquals(0, snapshot.errors);
+    }
+
+    @Test
+    public void resetClearsEverything() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        histogram.record(0, 100);
+        histogram.recordError(0);
+        histogram.reset();
+        LatencyHistogram.Snapshot snapshot = histogram.snapshot(0);
+        assertEquals(0, snapshot.count);
+        assertEquals(0, snapshot.errors);
+    }
+
+    private static void assertWithin(long expected, long actual) {
+        assertTrue("expected about " + expected + " but was " + actual,
+                actual >= expected && actual - expected <= expected / 8 + 1);
+    }
+}
@@ -0,0 +1,86 @@
+package patrick.pfr.zebralabelprinter;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+/**
+ * Author:      Patrick Snelgar
+ * Name:        LookupCacheTest.java
+ * Description: Hits, misses, eviction and versioning of LookupCache.
+ */
+public class LookupCacheTest {
+
+    private static final String VERSION_1 = "lookup.csv@1";
+    private static final String VERSION_2 = "lookup.csv@2";
+
+    @Test
+    public void returnsWhatWasPut() {
+        LookupCache cache = new LookupCache(4);
+        assertNull(cache.get(VERSION_1, "A1"));
+        cache.put(VERSION_1, "A1", "A1,widget", 2);
+
+        LookupCache.CachedResult result = cache.get(VERSION_1, "A1");
+        assertEquals("A1,widget", result.record);
+        assertEquals(2, result.source);
+        assertEquals(1, cache.getHits());
+        assertEquals(1, cache.getMisses());
+    }
+
+    @Test
+    public void remembersMissingBarcodes() {
+        LookupCache cache = new LookupCache(4);
+        cache.put(VERSION_1, "B2", null, 0);
+        assertSame(LookupCache.CachedResult.NOT_FOUND, cache.get(VERSION_1, "B2"));
+    }
+
+    @Test
+    public void otherVersionMissesAndReplacesEntries() {
+        LookupCache cache = new LookupCache(4);
+        cache.put(VERSION_1, "A1", "A1,old", 0);
+        assertNull(cache.get(VERSION_2, "A1"));
+
+        cache.put(VERSION_2, "B2", "B2,new", 0);
+        assertEquals(1, cache.size());
+        assertNull(cache.get(VERSION_1, "A1"));
+        assertEquals("B2,new", cache.get(VERSION_2, "B2").record);
+    }
+
+    @Test
+    public void dropsLeastRecentlyUsed() {
+        LookupCache cache = new LookupCache(2);
+        cache.put(VERSION_1, "A", "A,1", 0);
+        cache.put(VERSION_1, "B", "B,2", 0);
+        // Using A makes B the eldest.
+        cache.get(VERSION_1, "A");
+        cache.put(VERSION_1, "C", "C,3", 0);
+
+        assertEquals(2, cache.size());
+        assertNull(cache.get(VERSION_1, "B"));
+        assertEquals("A,1", cache.get(VERSION_1, "A").record);
+        assertEquals("C,3", cache.get(VERSION_1, "C").record);
+    }
+
+    @Test
+    public void invalidateDropsEverything() {
+        LookupCache cache = new LookupCache(4);
+        cache.put(VERSION_1, "A1", "A1,widget", 0);
+        cache.invalidate();
+        assertEquals(0, cache.size());
+        assertNull(cache.get(VERSION_1, "A1"));
+    }
+
+    @Test
+    public void resetCountersKeepsEntries() {
+        LookupCache cache = new LookupCache(4);
+        cache.put(VERSION_1, "A1", "A1,widget", 0);
+        cache.get(VERSION_1, "A1");
+        cache.get(VERSION_1, "Z9");
+        cache.resetCounters();
+        assertEquals(0, cache.getHits());
+        assertEquals(0, cache.getMisses());
+        assertEquals(1, cache.size());
+    }
+}
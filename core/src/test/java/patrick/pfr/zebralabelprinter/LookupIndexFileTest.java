@@ -0,0 +1,209 @@
+package patrick.pfr.zebralabelprinter;
+
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+/**
+ * Author:      Patrick Snelgar
+ * Name:        LookupIndexFileTest.java
+ * Description: Builds indexes of small csv files and checks lookups find the same records a CsvReader scan does.
+ */
+public class LookupIndexFileTest {
+
+    private static final CsvReader.Dialect SEMICOLON = new CsvReader.Dialect(';', '"', false);
+    private static final CsvReader.Dialect WITH_HEADER = new CsvReader.Dialect(',', '"', true);
+
+    @Rule
+    public final TemporaryFolder mFolder = new TemporaryFolder();
+
+    private final List<RandomAccessFile> mOpened = new ArrayList<>();
+
+    @After
+    public void closeFiles() throws IOException {
+        for (RandomAccessFile file : mOpened) {
+            file.close();
+        }
+    }
+
+    @Test
+    public void findsRecordsByFirstColumn() throws IOException {
+        FileChannel csv = csv("A1,widget\nB2,gadget\nC3,gizmo");
+        LookupIndexFile index = build(source(csv, CsvReader.Dialect.DEFAULT, 0));
+        try {
+            assertEquals(3, index.size());
+            assertEquals("B2,gadget", index.lookup(csv, "B2"));
+            assertEquals("C3,gizmo", index.lookup(csv, "C3"));
+            assertNull(index.lookup(csv, "D4"));
+            assertNull(index.lookup(csv, "widget"));
+        } finally {
+            index.close();
+        }
+    }
+
+    @Test
+    public void quoteInsideUnquotedFieldDoesNotHideLaterRecords() throws IOException {
+        FileChannel csv = csv("P1,3/4\" fitting,brass\nP2,1/2\" pipe,copper\nP3,washer,steel\n");
+        LookupIndexFile index = build(source(csv, CsvReader.Dialect.DEFAULT, 0));
+        try {
+            assertEquals(3, index.size());
+            assertEquals("P1,3/4\" fitting,brass", index.lookup(csv, "P1"));
+            assertEquals("P2,1/2\" pipe,copper", index.lookup(csv, "P2"));
+            assertEquals("P3,washer,steel", index.lookup(csv, "P3"));
+        } finally {
+            index.close();
+        }
+    }
+
+    @Test
+    public void quoteInsideUnquotedKeyIsPartOfIt() throws IOException {
+        LookupIndexFile.Source source = source(csv("1/2\",half inch\n3/4\",three quarter\n"), CsvReader.Dialect.DEFAULT, 0);
+        LookupIndexFile index = build(source);
+        try {
+            assertEquals("3/4\",three quarter", lookup(index, source, "3/4\""));
+            assertNull(lookup(index, source, "3/4"));
+        } finally {
+            index.close();
+        }
+    }
+
+    @Test
+    public void quotedKeysMayHoldDelimitersLineBreaksAndQuotes() throws IOException {
+        LookupIndexFile.Source source = source(csv("\"a,b\",1\n\"two\nlines\",2\n\"say \"\"hi\"\"\",3\n"),
+                CsvReader.Dialect.DEFAULT, 0);
+        LookupIndexFile index = build(source);
+        try {
+            assertEquals("\"a,b\",1", lookup(index, source, "a,b"));
+            assertEquals("\"two\nlines\",2", lookup(index, source, "two\nlines"));
+            assertEquals("\"say \"\"hi\"\"\",3", lookup(index, source, "say \"hi\""));
+        } finally {
+            index.close();
+        }
+    }
+
+    @Test
+    public void handlesCrlfByteOrderMarkAndHeader() throws IOException {
+        LookupIndexFile.Source source = source(csv("\uFEFFcode,name\r\nA1,widget\r\nB2,gadget\r\n"), WITH_HEADER, 0);
+        LookupIndexFile index = build(source);
+        try {
+            assertEquals(2, index.size());
+            assertEquals("A1,widget", lookup(index, source, "A1"));
+            assertEquals("B2,gadget", lookup(index, source, "B2"));
+            assertNull(lookup(index, source, "code"));
+        } finally {
+            index.close();
+        }
+    }
+
+    @Test
+    public void usesKeyColumnAndDelimiterOfEachSource() throws IOException {
+        LookupIndexFile.Source first = source(csv("widget;A1\ngadget;B2\n"), SEMICOLON, 1);
+        LookupIndexFile.Source second = source(csv("B2,from second\nC3,only in second\n"), CsvReader.Dialect.DEFAULT, 0);
+        LookupIndexFile.Source[] sources = {first, second};
+        LookupIndexFile index = build(sources);
+        try {
+            // The earliest source wins.
+            LookupIndexFile.Match match = index.lookup(sources, "B2");
+            assertEquals(0, match.source);
+            assertEquals("gadget;B2", match.record);
+
+            match = index.lookup(sources, "C3");
+            assertEquals(1, match.source);
+            assertEquals("C3,only in second", match.record);
+
+            assertNull(index.lookup(sources, "widget"));
+        } finally {
+            index.close();
+        }
+    }
+
+    @Test
+    public void findsFirstOfDuplicateKeys() throws IOException {
+        LookupIndexFile.Source source = source(csv("A1,first\nA1,second\n"), CsvReader.Dialect.DEFAULT, 0);
+        LookupIndexFile index = build(source);
+        try {
+            assertEquals("A1,first", lookup(index, source, "A1"));
+        } finally {
+            index.close();
+        }
+    }
+
+    @Test
+    public void fingerprintFollowsContentAndSettings() throws IOException {
+        FileChannel csv = csv("A1,widget\n");
+        FileChannel changed = csv("A1,wodget\n");
+        long original = fingerprint(source(csv, CsvReader.Dialect.DEFAULT, 0), 1000);
+        assertEquals(original, fingerprint(source(csv, CsvReader.Dialect.DEFAULT, 0), 1000));
+        assertNotEquals(original, fingerprint(source(changed, CsvReader.Dialect.DEFAULT, 0), 1000));
+        assertNotEquals(original, fingerprint(source(csv, CsvReader.Dialect.DEFAULT, 0), 2000));
+        assertNotEquals(original, fingerprint(source(csv, CsvReader.Dialect.DEFAULT, 1), 1000));
+        assertNotEquals(original, fingerprint(source(csv, SEMICOLON, 0), 1000));
+    }
+
+    @Test
+    public void rejectsFilesThatAreNotIndexes() throws IOException {
+        File file = mFolder.newFile("not-an-index");
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write("A1,widget\nB2,gadget\n".getBytes(CsvReader.UTF_8));
+        } finally {
+            out.close();
+        }
+        try {
+            LookupIndexFile.open(file).close();
+            fail("Opened a csv as an index");
+        } catch (IOException expected) {
+            // Rejected as it should be.
+        }
+    }
+
+    private FileChannel csv(String content) throws IOException {
+        File file = mFolder.newFile();
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write(content.getBytes(CsvReader.UTF_8));
+        } finally {
+            out.close();
+        }
+        RandomAccessFile opened = new RandomAccessFile(file, "r");
+        mOpened.add(opened);
+        return opened.getChannel();
+    }
+
+    private static LookupIndexFile.Source source(FileChannel channel, CsvReader.Dialect dialect, int keyColumn) {
+        return new LookupIndexFile.Source(channel, dialect, keyColumn);
+    }
+
+    private LookupIndexFile build(LookupIndexFile.Source... sources) throws IOException {
+        File file = new File(mFolder.getRoot(), "lookup-" + mOpened.size() + ".idx");
+        long[] lastModified = new long[sources.length];
+        long fingerprint = LookupIndexFile.fingerprint(sources, lastModified);
+        LookupIndexFile.build(file, fingerprint, sources);
+        LookupIndexFile index = LookupIndexFile.open(file);
+        assertEquals(fingerprint, index.getFingerprint());
+        return index;
+    }
+
+    private static String lookup(LookupIndexFile index, LookupIndexFile.Source source, String key) throws IOException {
+        LookupIndexFile.Match match = index.lookup(new LookupIndexFile.Source[]{source}, key);
+        return match == null ? null : match.record;
+    }
+
+    private static long fingerprint(LookupIndexFile.Source source, long lastModified) throws IOException {
+        return LookupIndexFile.fingerprint(new LookupIndexFile.Source[]{source}, new long[]{lastModified});
+    }
+}
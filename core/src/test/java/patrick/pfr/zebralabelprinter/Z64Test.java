@@ -0,0 +1,79 @@
+package patrick.pfr.zebralabelprinter;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.Random;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Author:      Patrick Snelgar
+ * Name:        Z64Test.java
+ * Description: Base64, CRC and deflate steps of the Z64 encoding, checked against known values.
+ */
+public class Z64Test {
+
+    @Test
+    public void base64MatchesRfc4648Vectors() {
+        assertEquals("", Z64.base64(ascii("")));
+        assertEquals("Zg==", Z64.base64(ascii("f")));
+        assertEquals("Zm8=", Z64.base64(ascii("fo")));
+        assertEquals("Zm9v", Z64.base64(ascii("foo")));
+        assertEquals("Zm9vYg==", Z64.base64(ascii("foob")));
+        assertEquals("Zm9vYmE=", Z64.base64(ascii("fooba")));
+        assertEquals("Zm9vYmFy", Z64.base64(ascii("foobar")));
+        assertEquals("//79", Z64.base64(new byte[]{(byte) 0xff, (byte) 0xfe, (byte) 0xfd}));
+    }
+
+    @Test
+    public void crc16MatchesCcittCheckValue() {
+        // CRC-16/XMODEM check value.
+        assertEquals(0x31c3, Z64.crc16("123456789"));
+        assertEquals(0, Z64.crc16(""));
+    }
+
+    @Test
+    public void deflatedDataInflatesBack() throws DataFormatException {
+        byte[] data = new byte[10000];
+        new Random(1).nextBytes(data);
+        // Mostly blank, like a label graphic.
+        Arrays.fill(data, 2000, 9000, (byte) 0);
+        assertArrayEquals(data, inflate(Z64.deflate(data), data.length));
+    }
+
+    @Test
+    public void encodeWritesPrefixAndCrcOfText() {
+        String encoded = Z64.encode(new byte[512]);
+        assertTrue(encoded.startsWith(":Z64:"));
+        int crcStart = encoded.lastIndexOf(':');
+        String base64 = encoded.substring(5, crcStart);
+        assertEquals(String.format(Locale.US, "%04X", Z64.crc16(base64)), encoded.substring(crcStart + 1));
+        assertEquals(Z64.base64(Z64.deflate(new byte[512])), base64);
+    }
+
+    private static byte[] inflate(byte[] deflated, int length) throws DataFormatException {
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(deflated);
+            byte[] data = new byte[length];
+            int read = 0;
+            while (read < length && !inflater.finished()) {
+                read += inflater.inflate(data, read, length - read);
+            }
+            assertTrue(inflater.finished());
+            return data;
+        } finally {
+            inflater.end();
+        }
+    }
+
+    private static byte[] ascii(String text) {
+        return text.getBytes(CsvReader.UTF_8);
+    }
+}